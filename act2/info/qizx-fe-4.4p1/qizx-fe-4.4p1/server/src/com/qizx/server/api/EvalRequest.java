@@ -16,6 +16,7 @@ import com.qizx.api.QName;
 import com.qizx.api.QizxException;
 import com.qizx.api.admin.Profiling;
 import com.qizx.api.util.XMLSerializer;
+import com.qizx.apps.restapi.BinaryItemWriter;
 import com.qizx.apps.restapi.RestAPI;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
@@ -51,8 +52,11 @@ public class EvalRequest extends QizxRequestBase
     {
         String libName = getLibraryParam();
         //String path = getPathParam();
+        // "new" opens a result cursor, otherwise resumes an existing cursor:
+        String cursor = getParameter("cursor");
+        boolean resumed = cursor != null && !RestAPI.CURSOR_NEW.equals(cursor);
         String query = getParameter("query"); 
-        if(query == null) { // in a part?
+        if(query == null && !resumed) { // in a part?
             query = getPartAsString("query");
             if(query == null)
                 requiredParam("query");
@@ -62,27 +66,58 @@ public class EvalRequest extends QizxRequestBase
         int maxTime = getIntParameter("maxtime", -1);
         
         String mode = getParameter("mode");
-        String counting = getParameter("counting");
+        // by default no counting with a cursor: an exact count evaluates
+        // the whole sequence, and is pointless on the next pages
+        String counting = getParameter("counting",
+                                       cursor != null ? RestAPI.COUNTING_NONE
+                                                      : null);
         int count = getIntParameter("count", -1);
         int first = getIntParameter("first", 0);
+        if (cursor != null && count < 0)
+            requiredParam("count");     // page size of the cursor
         
         boolean wrapped = ITEMS_FORMAT.equals(format);
 //        if(count < 0 && !wrapped)
 //            count = 1;
         
         XMLSerializer serial = null;
-        
+        ItemSequence items = null;  // until parked or released by endPage
         try {
             requireQizxDriver();
-            // looks in caches for the best matching sequence
-            // if not found, acquire a session and evaluate it
-            ItemSequence items =
-                driver.acquireSequence(this, libName, query,
+            if (resumed) {
+                // continues where the previous page stopped
+                items = driver.resumeCursor(cursor, getUserName());
+                if (items == null)
+                    throw new RequestException(NOT_FOUND,
+                                   "unknown or expired cursor '" + cursor + "'");
+            }
+            else {
+                if (cursor != null) {
+                    cursor = driver.newCursorId();
+                    if (cursor == null)
+                        throw new RequestException(BAD_REQUEST,
+                                                   "result cursors are disabled");
+                }
+                // looks in caches for the best matching sequence
+                // if not found, acquire a session and evaluate it
+                items = driver.acquireSequence(this, libName, query,
                                        RestAPI.PROFILE.equalsIgnoreCase(mode),
                                        first, maxTime, getUserName());
+            }
+            setStatsLibrary(items);
+            if (cursor != null)
+                response.setHeader(RestAPI.CURSOR_HEADER, cursor);
+
+            if (RestAPI.FORMAT_BINARY.equalsIgnoreCase(format)) {
+                if (!resumed)
+                    items.moveTo(first);
+                int itemCnt = putBinaryItems(items, cursor, counting, count);
+                endPage(items, cursor, itemCnt, count);
+                items = null;
+                return;
+            }
             
-            
-            serial = new XMLSerializer(output, encoding);
+            serial = new XMLSerializer(startStreaming(), encoding);
             QName RESULTS = IQName.get("items");
 
             if(HTML_FMT.equalsIgnoreCase(format)) {
@@ -99,11 +134,14 @@ public class EvalRequest extends QizxRequestBase
 
             int itemCnt = 0;
 
-            items.moveTo(first);
+            if (!resumed)
+                items.moveTo(first);
 
             if (wrapped) {
                 serial.putDocumentStart();
                 serial.putElementStart(RESULTS);
+                if (cursor != null)
+                    serial.putAttribute(RestAPI.CURSOR, cursor, null);
                 if (counting == null || "exact".equalsIgnoreCase(counting)) {
                     serial.putAttribute(IQName.get("total-count"),
                                         Long.toString(items.countItems()), null);
@@ -161,7 +199,8 @@ public class EvalRequest extends QizxRequestBase
             }
 
             serial.flush();
-            driver.releaseSequence(items);
+            endPage(items, cursor, itemCnt, count);
+            items = null;
         }
         catch (CompilationException e) {
             throw new RequestException(e);
@@ -174,5 +213,48 @@ public class EvalRequest extends QizxRequestBase
         catch (QizxException e) {
             throw new RequestException(e);
         }
+        finally {
+            // error before the end of the page: the sequence is in an
+            // uncertain state, neither cached nor kept by a cursor
+            if (items != null)
+                driver.discardSequence(items);
+        }
+    }
+
+    // binary equivalent of the "items" format
+    private int putBinaryItems(ItemSequence items, String cursor,
+                               String counting, int count)
+        throws QizxException, RequestException
+    {
+        response.setContentType(BinaryItemWriter.CONTENT_TYPE);
+        BinaryItemWriter out = new BinaryItemWriter(startStreaming());
+        if (counting == null || "exact".equalsIgnoreCase(counting))
+            out.putHeader(cursor, BinaryItemWriter.COUNT_EXACT,
+                          items.countItems());
+        else if ("estimated".equalsIgnoreCase(counting))
+            out.putHeader(cursor, BinaryItemWriter.COUNT_ESTIMATED,
+                          items.estimatedDocumentCount());
+        else
+            out.putHeader(cursor, BinaryItemWriter.COUNT_NONE, 0);
+
+        int itemCnt = 0;
+        for (; (count < 0 || itemCnt < count) && items.moveToNextItem(); ++itemCnt)
+            out.putItem(items);
+
+        List<Profiling> profs = items.getProfilingAnnotations();
+        if (profs != null)
+            out.putProfiling(profs);
+        out.putEnd();
+        return itemCnt;
+    }
+
+    private void endPage(ItemSequence items, String cursor, int itemCnt,
+                         int count)
+    {
+        // a short page means the sequence is exhausted: no need to keep it
+        if (cursor != null && itemCnt == count)
+            driver.parkCursor(cursor, items, getUserName());
+        else
+            driver.releaseSequence(items);
     }
 }
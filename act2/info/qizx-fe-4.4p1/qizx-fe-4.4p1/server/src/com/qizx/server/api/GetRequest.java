@@ -16,6 +16,7 @@ import com.qizx.util.basic.FileUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 
@@ -69,7 +70,7 @@ public class GetRequest extends QizxRequestBase
             else if(member instanceof Document) {
                 response.setContentType(MIME_XML);
                 Document doc = (Document) member;
-                XMLSerializer serial = new XMLSerializer(output, "UTF-8");
+                XMLSerializer serial = new XMLSerializer(startStreaming(), "UTF-8");
                 if(options != null)
                     for (int i = 0; i < options.length; i++) {
                         String op = options[i];
@@ -89,7 +90,9 @@ public class GetRequest extends QizxRequestBase
                 response.setContentType(mimeType != null? mimeType : MIME_DATA);
                 NonXMLDocument nonx = (NonXMLDocument) member;
                 InputStream export = nonx.open();
-                FileUtil.copy(export, output, null);
+                OutputStream out = startStreaming();
+                FileUtil.copy(export, out, null);
+                out.flush();
                 export.close();
             }
         }
@@ -9,19 +9,32 @@
 package com.qizx.server.api;
 
 import com.qizx.api.DataModelException;
-import com.qizx.api.Document;
 import com.qizx.api.Library;
 import com.qizx.api.QName;
+import com.qizx.api.XMLPushStream;
+import com.qizx.server.util.QizxDriver;
 import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RecordedDocument;
 import com.qizx.server.util.RequestException;
 import com.qizx.util.basic.PathUtil;
+import com.qizx.xdm.DocumentParser;
 import com.qizx.xdm.IQName;
+import com.xmlmind.multipartreq.Part;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class PutRequest extends QizxRequestBase
 {
@@ -40,8 +53,10 @@ public class PutRequest extends QizxRequestBase
     public void handlePost()
         throws RequestException, IOException
     {
+        // streaming mode: path parts can follow the first data part
+        boolean streaming = multipart != null && multipart.isStreaming();
         String path = getPathParam();
-        if(path == null)
+        if(path == null && !streaming)
             throw new RequestException(BAD_REQUEST, "at least one document required");
 
         String libName = getParameter("library");
@@ -62,52 +77,31 @@ public class PutRequest extends QizxRequestBase
             response.setContentType(MIME_PLAIN_TEXT);
             StringBuilder status = new StringBuilder();
             
-            String curDataParam = "data";
-            InputSource data = openXMLSource(curDataParam);
-            String lastPath;
-            
-            int rank = 2, errorCount = 0;
-            for( ; ; ++rank)
-            {
-                if(data == null)
-                    throw new RequestException(BAD_REQUEST, "no XML data for parameter " + curDataParam);
-                path = PathUtil.normalizePath(path, true);
-                lastPath = path;
-                try {
-                    if(driver.debug)
-                        log("import XML " + path + " from " + curDataParam);
-                    Document doc = lib.importDocument(path, data);
-                }
-                catch (DataModelException e) {
-                    Exception ex = e;
-                    if (e.getCause() instanceof SAXException)
-                        ex = (SAXException) e.getCause();
-                    
-                    status.append(ex.getClass().getSimpleName()).append('\t');
-                    status.append(path).append('\t');
-                    if(ex instanceof SAXParseException) {
-                        SAXParseException sax = (SAXParseException) ex;
-                        status.append("[line " + sax.getLineNumber() + "] ");
-                    }
-                    status.append(ex.getMessage()).append('\n');
-                    
-                    ++ errorCount;
+            // list of documents: path, path2 ... pathN
+            ArrayList<String> paths = new ArrayList<String>();
+            int errorCount;
+            if (streaming) {
+                errorCount = importStreaming(lib, paths, status);
+                if (paths.isEmpty())
+                    throw new RequestException(BAD_REQUEST, "no XML data");
+            }
+            else {
+                for (int rank = 2; path != null; ++rank) {
+                    paths.add(PathUtil.normalizePath(path, true));
+                    path = getParameter("path" + rank);
                 }
-//                finally {
-//                    if(currentPart != null)
-//                        currentPart.delete();
-//                }
-                // more?
-                path = getParameter("path" + rank);
-                if(path == null)
-                    break;
-                curDataParam = "data" + rank;
-                data = openXMLSource(curDataParam);
+
+                ExecutorService parsers = null;
+                if (paths.size() > 1)
+                    parsers = driver.getImportService();
+                errorCount = (parsers == null) ? importSequential(lib, paths, status)
+                                 : importPipelined(lib, paths, parsers, status);
             }
+            String lastPath = paths.get(paths.size() - 1);
             
             lib.commit();
             
-            log("imported " + (rank - 1 - errorCount) + " document[s]"
+            log("imported " + (paths.size() - errorCount) + " document[s]"
                 + " (last:" + lastPath + "), " + errorCount + " error(s)");
             
             status.append("IMPORT ERRORS ").append(errorCount);
@@ -122,4 +116,373 @@ public class PutRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    public boolean isStreamingParts()
+    {
+        return true;
+    }
+
+    /*
+     * Multipart request in streaming mode: parts are read in the order of the
+     * request body, a part pathN can precede or follow the part dataN.
+     * Documents are stored in the order of their data parts.
+     * A document whose path is known when its data part is reached is parsed
+     * directly from the request body, once the documents ahead are stored.
+     * Otherwise its contents are kept in memory, within the import buffer
+     * size, and parsed in parallel as in importPipelined: there is no
+     * temporary file.
+     */
+    private int importStreaming(Library lib, ArrayList<String> paths,
+                                StringBuilder status)
+        throws RequestException, IOException
+    {
+        StreamedImport imp = new StreamedImport(lib, paths, status);
+        try {
+            for (Part part; (part = nextPart()) != null; ) {
+                String dataParam = part.getName();
+                if (!dataParam.startsWith("data"))
+                    continue;
+                String path = getParameter(pathParam(dataParam));
+                if (imp.storeReady() && path != null)
+                    imp.importDocument(path, dataParam, part.getInputStream());
+                else
+                    imp.add(dataParam, part);
+            }
+            imp.finish();
+        }
+        catch (InterruptedException e) {
+            throw new RequestException(SERVER, e);
+        }
+        finally {
+            imp.cancel();
+        }
+        return imp.errorCount;
+    }
+
+    // Parses and stores each document in turn on the request thread
+    private int importSequential(Library lib, ArrayList<String> paths,
+                                 StringBuilder status)
+        throws RequestException
+    {
+        int errorCount = 0;
+        for (int rank = 1; rank <= paths.size(); rank++) {
+            String path = paths.get(rank - 1);
+            String dataParam = dataParam(rank);
+            InputSource data = openXMLSource(dataParam);
+            if(data == null)
+                throw new RequestException(BAD_REQUEST, "no XML data for parameter " + dataParam);
+            try {
+                if(driver.debug)
+                    log("import XML " + path + " from " + dataParam);
+                lib.importDocument(path, data);
+            }
+            catch (DataModelException e) {
+                Exception ex = e;
+                if (e.getCause() instanceof SAXException)
+                    ex = (SAXException) e.getCause();
+                reportError(status, path, ex);
+                ++ errorCount;
+            }
+        }
+        return errorCount;
+    }
+
+    /*
+     * Documents are parsed in parallel by a pool of worker threads into
+     * in-memory recordings, then stored by the request thread in the order of
+     * the request, which is the only writer on the Library session.
+     * The number of documents parsed in advance is bounded.
+     */
+    private int importPipelined(Library lib, ArrayList<String> paths,
+                                ExecutorService parsers, StringBuilder status)
+        throws RequestException
+    {
+        int window = 2 * Math.max(1, driver.getImportThreadCount());
+        ArrayDeque<Future<RecordedDocument>> pending =
+            new ArrayDeque<Future<RecordedDocument>>(window);
+        int errorCount = 0, submitted = 0;
+        try {
+            for (int rank = 1; rank <= paths.size(); rank++) {
+                // parse ahead:
+                for (; submitted < paths.size() && pending.size() < window; ) {
+                    String dataParam = dataParam(++submitted);
+                    InputSource data = openXMLSource(dataParam);
+                    if(data == null)
+                        throw new RequestException(BAD_REQUEST,
+                                                   "no XML data for parameter " + dataParam);
+                    pending.add(parsers.submit(new ParseTask(driver, data)));
+                }
+                
+                String path = paths.get(rank - 1);
+                if(driver.debug)
+                    log("import XML " + path + " from " + dataParam(rank));
+                if (!storeParsed(lib, path, pending.poll(), status))
+                    ++ errorCount;
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RequestException(SERVER, e);
+        }
+        finally {
+            for (Future<RecordedDocument> f : pending)
+                f.cancel(true);
+        }
+        return errorCount;
+    }
+
+    /*
+     * Stores a document parsed by a ParseTask, waiting for the end of the
+     * parsing. Returns false if the document has an error.
+     */
+    private static boolean storeParsed(Library lib, String path,
+                                       Future<RecordedDocument> parsed,
+                                       StringBuilder status)
+        throws RequestException, InterruptedException
+    {
+        RecordedDocument doc;
+        try {
+            doc = parsed.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (!(cause instanceof Exception))
+                throw new RequestException(SERVER, e);
+            reportError(status, path, (Exception) cause);
+            return false;
+        }
+        try {
+            XMLPushStream out = lib.beginImportDocument(path);
+            try {
+                doc.replay(out);
+                lib.endImportDocument();
+            }
+            catch (DataModelException e) {
+                lib.cancelImportDocument();
+                throw e;
+            }
+            return true;
+        }
+        catch (DataModelException e) {
+            Exception ex = e;
+            if (e.getCause() instanceof SAXException)
+                ex = (SAXException) e.getCause();
+            reportError(status, path, ex);
+            return false;
+        }
+    }
+
+    private static String dataParam(int rank)
+    {
+        return (rank == 1) ? "data" : ("data" + rank);
+    }
+
+    private static String pathParam(String dataParam)
+    {
+        return "path" + dataParam.substring(4);
+    }
+
+    private static void reportError(StringBuilder status, String path, Exception ex)
+    {
+        status.append(ex.getClass().getSimpleName()).append('\t');
+        status.append(path).append('\t');
+        if(ex instanceof SAXParseException) {
+            SAXParseException sax = (SAXParseException) ex;
+            status.append("[line " + sax.getLineNumber() + "] ");
+        }
+        status.append(ex.getMessage()).append('\n');
+    }
+
+    /*
+     * State of an import in streaming mode: documents whose data part
+     * preceded their path, waiting for their path or for the end of their
+     * parsing. Their contents are kept in memory, bounded in total size by
+     * driver.getImportBufferSize(); the number of documents parsed in
+     * advance is bounded too (2 per parser thread), the others are parsed
+     * by the request thread when their turn comes.
+     */
+    private class StreamedImport
+    {
+        Library lib;
+        ArrayList<String> paths;
+        StringBuilder status;
+        ExecutorService parsers;
+        int window;
+        long maxBytes;
+
+        ArrayDeque<PendingDocument> pending = new ArrayDeque<PendingDocument>();
+        int parsing;        // documents parsed in advance, in pending
+        long pendingBytes;  // size of the contents in pending
+        int errorCount;
+
+        StreamedImport(Library lib, ArrayList<String> paths,
+                       StringBuilder status)
+        {
+            this.lib = lib;
+            this.paths = paths;
+            this.status = status;
+            parsers = driver.getImportService();
+            window = 2 * Math.max(1, driver.getImportThreadCount());
+            maxBytes = driver.getImportBufferSize();
+        }
+
+        // Keeps the contents of a part whose path is not yet known.
+        void add(String dataParam, Part part)
+            throws RequestException, IOException
+        {
+            PendingDocument doc =
+                new PendingDocument(dataParam, readContents(dataParam, part));
+            if (parsers != null && parsing < window) {
+                InputSource source =
+                    new InputSource(new ByteArrayInputStream(doc.contents));
+                doc.parsed = parsers.submit(new ParseTask(driver, source));
+                ++ parsing;
+            }
+            pending.add(doc);
+            pendingBytes += doc.contents.length;
+        }
+
+        // at most the room left in the import buffer
+        private byte[] readContents(String dataParam, Part part)
+            throws RequestException, IOException
+        {
+            long room = maxBytes - pendingBytes;
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            InputStream data = part.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                for (int size; (size = data.read(buffer)) > 0; ) {
+                    if (contents.size() + size > room)
+                        throw new RequestException(BAD_REQUEST, "part "
+                            + dataParam + " exceeds the import buffer size: "
+                            + "send it after " + pathParam(dataParam));
+                    contents.write(buffer, 0, size);
+                }
+            }
+            finally {
+                data.close();
+            }
+            return contents.toByteArray();
+        }
+
+        /*
+         * Stores the pending documents whose path is known, in order.
+         * Returns true if no document is left pending.
+         */
+        boolean storeReady()
+            throws RequestException, IOException, InterruptedException
+        {
+            for (; !pending.isEmpty(); )
+                if (!storeFirst())
+                    return false;
+            return true;
+        }
+
+        void finish()
+            throws RequestException, IOException, InterruptedException
+        {
+            if (!storeReady()) {
+                PendingDocument first = pending.peek();
+                throw new RequestException(BAD_REQUEST, "no parameter "
+                                           + pathParam(first.dataParam)
+                                           + " for " + first.dataParam);
+            }
+        }
+
+        // Stores the first pending document, unless its path is not known.
+        boolean storeFirst()
+            throws RequestException, IOException, InterruptedException
+        {
+            PendingDocument doc = pending.peek();
+            String path = getParameter(pathParam(doc.dataParam));
+            if (path == null)
+                return false;
+            pending.poll();
+            pendingBytes -= doc.contents.length;
+            if (doc.parsed == null) {
+                importDocument(path, doc.dataParam,
+                               new ByteArrayInputStream(doc.contents));
+                return true;
+            }
+            -- parsing;
+            path = PathUtil.normalizePath(path, true);
+            paths.add(path);
+            if(driver.debug)
+                log("import XML " + path + " from " + doc.dataParam);
+            if (!storeParsed(lib, path, doc.parsed, status))
+                ++ errorCount;
+            return true;
+        }
+
+        // Parses a document and stores it.
+        void importDocument(String path, String dataParam, InputStream data)
+            throws IOException
+        {
+            path = PathUtil.normalizePath(path, true);
+            paths.add(path);
+            try {
+                if(driver.debug)
+                    log("import XML " + path + " from " + dataParam);
+                lib.importDocument(path, new InputSource(data));
+            }
+            catch (DataModelException e) {
+                Exception ex = e;
+                if (e.getCause() instanceof SAXException)
+                    ex = (SAXException) e.getCause();
+                reportError(status, path, ex);
+                ++ errorCount;
+            }
+            finally {
+                data.close();
+            }
+        }
+
+        void cancel()
+        {
+            for (PendingDocument doc : pending)
+                if (doc.parsed != null)
+                    doc.parsed.cancel(true);
+        }
+    }
+
+    static class PendingDocument
+    {
+        String dataParam;
+        byte[] contents;
+        Future<RecordedDocument> parsed;    // null if not parsed in advance
+
+        PendingDocument(String dataParam, byte[] contents)
+        {
+            this.dataParam = dataParam;
+            this.contents = contents;
+        }
+    }
+
+    static class ParseTask implements Callable<RecordedDocument>
+    {
+        // one parser per worker thread:
+        private static ThreadLocal<DocumentParser> parsers =
+            new ThreadLocal<DocumentParser>();
+
+        private QizxDriver driver;
+        private InputSource source;
+
+        ParseTask(QizxDriver driver, InputSource source)
+        {
+            this.driver = driver;
+            this.source = source;
+        }
+
+        public RecordedDocument call()
+            throws Exception
+        {
+            DocumentParser parser = parsers.get();
+            if (parser == null) {
+                parser = driver.newDocumentParser();
+                parsers.set(parser);
+            }
+            RecordedDocument doc = new RecordedDocument();
+            parser.parseDocument(source, doc);
+            return doc;
+        }
+    }
 }
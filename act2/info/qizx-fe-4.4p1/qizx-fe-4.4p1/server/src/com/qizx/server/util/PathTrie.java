@@ -0,0 +1,146 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Associates values with Library paths, and finds the values attached to a
+ * path or to any of its ancestors in time proportional to the path depth.
+ * <p>
+ * Paths are split on '/'; empty steps are ignored, so "/a/b", "/a/b/" and
+ * "a/b" are equivalent, and "/" (or null) is the root.
+ * <p>
+ * Not synchronized.
+ */
+public class PathTrie<T>
+{
+    private Node<T> root = new Node<T>();
+
+    /**
+     * Attaches a value to a path. A value can be attached several times.
+     */
+    public void add(String path, T value)
+    {
+        Node<T> node = root;
+        if (path != null) {
+            for (int pos = 0, end; pos < path.length(); pos = end + 1) {
+                end = stepEnd(path, pos);
+                if (end == pos)
+                    continue;
+                String step = path.substring(pos, end);
+                if (node.children == null)
+                    node.children = new HashMap<String, Node<T>>(4);
+                Node<T> child = node.children.get(step);
+                if (child == null)
+                    node.children.put(step, child = new Node<T>());
+                node = child;
+            }
+        }
+        if (node.values == null)
+            node.values = new ArrayList<T>(2);
+        node.values.add(value);
+    }
+
+    /**
+     * Detaches a value (compared by identity) from a path.
+     * Nodes left empty are pruned.
+     * @return true if the value was attached to the path
+     */
+    public boolean remove(String path, T value)
+    {
+        // descend, remembering the nodes traversed for pruning:
+        ArrayList<Node<T>> nodes = new ArrayList<Node<T>>();
+        ArrayList<String> steps = new ArrayList<String>();
+        Node<T> node = root;
+        if (path != null) {
+            for (int pos = 0, end; pos < path.length(); pos = end + 1) {
+                end = stepEnd(path, pos);
+                if (end == pos)
+                    continue;
+                String step = path.substring(pos, end);
+                Node<T> child = (node.children == null) ? null
+                                    : node.children.get(step);
+                if (child == null)
+                    return false;
+                nodes.add(node);
+                steps.add(step);
+                node = child;
+            }
+        }
+        if (node.values == null)
+            return false;
+        int v = node.values.size();
+        while (--v >= 0 && node.values.get(v) != value)
+            ;
+        if (v < 0)
+            return false;
+        node.values.remove(v);
+        if (node.values.isEmpty())
+            node.values = null;
+
+        // prune:
+        for (int n = nodes.size(); --n >= 0 && node.isEmpty(); ) {
+            node = nodes.get(n);
+            node.children.remove(steps.get(n));
+            if (node.children.isEmpty())
+                node.children = null;
+        }
+        return true;
+    }
+
+    /**
+     * Adds to <code>result</code> all values attached to the path itself or
+     * to one of its ancestors (including the root).
+     */
+    public void collect(String path, Collection<? super T> result)
+    {
+        Node<T> node = root;
+        if (node.values != null)
+            result.addAll(node.values);
+        if (path == null)
+            return;
+        for (int pos = 0, end; pos < path.length(); pos = end + 1) {
+            end = stepEnd(path, pos);
+            if (end == pos)
+                continue;
+            if (node.children == null)
+                return;
+            node = node.children.get(path.substring(pos, end));
+            if (node == null)
+                return;
+            if (node.values != null)
+                result.addAll(node.values);
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return root.isEmpty();
+    }
+
+    private static int stepEnd(String path, int pos)
+    {
+        int end = path.indexOf('/', pos);
+        return end < 0 ? path.length() : end;
+    }
+
+    static class Node<T>
+    {
+        HashMap<String, Node<T>> children;
+        ArrayList<T> values;
+
+        boolean isEmpty()
+        {
+            return values == null && children == null;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.qizx.server.util.accesscontrol.ACLAccessControl;
 import com.qizx.server.util.accesscontrol.BaseUser;
 import com.qizx.util.ConfigTable;
 import com.qizx.util.basic.FileUtil;
+import com.qizx.xdm.DocumentParser;
 import com.qizx.xdm.DocumentPool;
 import com.qizx.xquery.ExpressionImpl;
 import com.qizx.xquery.ext.AdminFunctions;
@@ -41,8 +42,12 @@ import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletConfig;
@@ -168,6 +173,34 @@ public class QizxDriver
                      "Maximum size of the session pool",
                      20);
     
+    /**
+     * Maximum number of pooled sessions on a same XML Library.
+     * <p>If value is <= 0, only the global size of the pool is limited.
+     */
+    public static final Property SESSION_CACHE_LIBRARY_SIZE =
+        new Property("session_pool_library_size", "Server", "admin",
+                     "Maximum number of pooled sessions on a same XML Library",
+                     0);
+    
+    /**
+     * Maximum idle time of a pooled session, in seconds.
+     * <p>If value is <= 0, idle sessions are kept until evicted.
+     */
+    public static final Property SESSION_IDLE_TIME =
+        new Property("session_pool_idle_time", "Server", "admin",
+                     "Maximum idle time in seconds of a pooled session",
+                     600);
+    
+    /**
+     * Number of sessions opened on each XML Library when the server starts.
+     * <p>These sessions are opened for anonymous requests (without
+     * authenticated user), with the same Access Control and XQuery bindings.
+     */
+    public static final Property SESSION_WARMUP_COUNT =
+        new Property("session_pool_warmup", "Server", "admin",
+                     "Number of pooled sessions opened on each XML Library at startup",
+                     0);
+    
     /**
      * Maximum size of the Stored Query Cache.
      * <p>This cache is used for 
@@ -185,6 +218,15 @@ public class QizxDriver
         new Property("sequence_cache_size", "Server", "admin",
                      "Size of the Sequence Cache",
                      20);
+    /**
+     * Maximum memory used by the Sequence Cache, in Mb.
+     * <p>The size of cached sequences is estimated. If value is <= 0,
+     * only the number of sequences is limited.
+     */
+    public static final Property SEQUENCE_CACHE_MAX_MEMORY =
+        new Property("sequence_cache_max_memory", "Server", "admin",
+                     "Maximum memory in Mb used by the Sequence Cache (estimated)",
+                     64);
     /**
      * Policy of the Sequence Cache, used in 'eval' request.
      * <p>value is "smart" by default, or "brutal" (invalidate whole cache on each update)
@@ -203,6 +245,70 @@ public class QizxDriver
         new Property("eval_time_out", "Server", "admin",
                      "Maximum execution time for XQuery evaluations, in milliseconds",
                      0);
+    /**
+     * Maximum idle time of a result cursor of the 'eval' request, in seconds.
+     * <p>If value is <= 0, result cursors are disabled.
+     */
+    public static final Property EVAL_CURSOR_TIME_OUT =
+        new Property("eval_cursor_time_out", "Server", "admin",
+                     "Maximum idle time in seconds of a result cursor",
+                     300);
+    /**
+     * Maximum number of idle result cursors per user.
+     * <p>When exceeded, the least recently used cursor of the user is closed.
+     */
+    public static final Property EVAL_CURSOR_MAX_PER_USER =
+        new Property("eval_cursor_max_per_user", "Server", "admin",
+                     "Maximum number of idle result cursors per user",
+                     5);
+    /**
+     * Maximum number of concurrent streamed responses, per request type.
+     * <p>Value is a list of request=count, for example "eval=8,get=4".
+     * Request types not listed are not limited. This prevents slow clients
+     * downloading large results from holding all the threads of the
+     * container.
+     */
+    public static final Property STREAMING_LIMITS =
+        new Property("streaming_limits", "Server", "admin",
+                     "Maximum number of concurrent streamed responses per request " +
+                     "type, for example 'eval=8,get=4'",
+                     "");
+    /**
+     * Size in Kb of the buffer of a streamed response.
+     * <p>The buffer is sent as a HTTP chunk each time it is full.
+     */
+    public static final Property STREAMING_BUFFER_SIZE =
+        new Property("streaming_buffer_size", "Server", "admin",
+                     "Size in Kb of the buffer of a streamed response",
+                     64);
+    /**
+     * Maximum time in milliseconds a request waits for a streaming slot.
+     * <p>When exceeded, the request is rejected with HTTP status 503 (Service
+     * Unavailable) and a Retry-After header.
+     */
+    public static final Property STREAMING_WAIT_TIME =
+        new Property("streaming_wait_time", "Server", "admin",
+                     "Maximum time in milliseconds a request waits for a streaming slot",
+                     2000);
+    /**
+     * Number of threads parsing documents in parallel in a 'put' request.
+     * <p>If value is <= 1, documents are parsed by the request thread.
+     */
+    public static final Property IMPORT_PARSER_THREADS =
+        new Property("import_parser_threads", "Server", "admin",
+                     "Number of threads parsing documents in parallel in a 'put' request",
+                     Runtime.getRuntime().availableProcessors());
+    /**
+     * Maximum size in Kb of the documents held in memory in a streamed 'put'
+     * request, because their data part precedes their path.
+     * <p>Such documents are never written to a temporary file: a request
+     * exceeding this size is rejected. Documents sent after their path are
+     * parsed directly from the request body, without limit.
+     */
+    public static final Property IMPORT_BUFFER_SIZE =
+        new Property("import_buffer_size", "Server", "admin",
+                     "Maximum size in Kb of the documents held in memory in a 'put' request",
+                     16384);
     /**
      * Maximum size in Mb of a POST request.
      * <p>Beware that the J2EE container might have its own limits.
@@ -361,8 +467,17 @@ public class QizxDriver
     private String servicesDefaultLibrary;
 
     private SequenceCache sequenceCache;
-    private SessionPool sessionPool;
+    private volatile SessionPool sessionPool;
     private QueryCache queryCache;
+    private volatile ResultCursors resultCursors;
+    // concurrent streamed responses per request type:
+    private volatile HashMap<String, Semaphore> streamingSlots;
+    private int streamingBufferSize;
+    private long streamingWaitTime;
+    // parallel parsing of imported documents:
+    private ExecutorService importService;
+    private int importThreads;
+    private long importBufferSize;
 
     private CatalogManager catManager;
 
@@ -372,7 +487,7 @@ public class QizxDriver
     public int evalTimeout;
 
     private Statistics statsTable;
-    protected HashMap<String, Statistics.Activity> reqStats;
+    protected ConcurrentHashMap<String, Statistics.Activity> reqStats;
 
 
 
@@ -389,11 +504,15 @@ public class QizxDriver
                 MODULES_DIR, 
                 EXPATH_REPOSITORY,
                 SERVICES_DIR, SERVICES_LIBRARY, 
-                SEQUENCE_CACHE_SIZE, SEQUENCE_CACHE_POLICY, 
+                SEQUENCE_CACHE_SIZE, SEQUENCE_CACHE_MAX_MEMORY,
+                SEQUENCE_CACHE_POLICY, 
                 STORED_QUERIES_CACHE_SIZE, SESSION_CACHE_SIZE,
+                SESSION_CACHE_LIBRARY_SIZE, SESSION_IDLE_TIME, SESSION_WARMUP_COUNT,
                 ACCESS_CONTROL, ADMIN_USER, ADMIN_ROLE,
                 CATALOGS, CATALOGS_PREFER, CATALOGS_VERBOSITY, 
-                EVAL_TIME_OUT,
+                EVAL_TIME_OUT, EVAL_CURSOR_TIME_OUT, EVAL_CURSOR_MAX_PER_USER,
+                STREAMING_LIMITS, STREAMING_BUFFER_SIZE, STREAMING_WAIT_TIME,
+                IMPORT_PARSER_THREADS, IMPORT_BUFFER_SIZE,
                 POST_LIMIT,
                 BACKUP_DIR, BACKUP_DIR_COUNT, BACKUP_INTERVAL, BACKUP_START_TIME,
                 IBACKUP_DIR, IBACKUP_INTERVAL, IBACKUP_START_TIME,
@@ -401,7 +520,7 @@ public class QizxDriver
             });
         
         statsTable = new Statistics();
-        reqStats = new HashMap<String, Statistics.Activity>(); // requests
+        reqStats = new ConcurrentHashMap<String, Statistics.Activity>(); // requests
     }
 
     /**
@@ -572,10 +691,22 @@ public class QizxDriver
         
         int sessionCacheSize = config.intProp(SESSION_CACHE_SIZE);
         if (sessionCacheSize > 1) {
-            sessionPool = new SessionPool(sessionCacheSize);
+            int libCacheSize = config.intProp(SESSION_CACHE_LIBRARY_SIZE);
+            sessionPool = new SessionPool(sessionCacheSize, libCacheSize);
             sessionPool.setStats(statsTable.forCache("server|session_cache", "Cache",
                                                      "Session pool"));
-            context.log(" Session Cache size=" + sessionCacheSize);
+            context.log(" Session Cache size=" + sessionCacheSize
+                        + (libCacheSize > 0 ? " per library=" + libCacheSize : ""));
+            
+            int idleTime = config.intProp(SESSION_IDLE_TIME);
+            if (idleTime > 0) {
+                startActionService();
+                long period = Math.max(1, idleTime / 4);
+                actionService.scheduleWithFixedDelay(new SessionReaper(idleTime),
+                                                     period, period,
+                                                     TimeUnit.SECONDS);
+            }
+            warmUpSessions(config.intProp(SESSION_WARMUP_COUNT));
         }
         else {
             sessionPool = null; // in case it existed
@@ -590,17 +721,19 @@ public class QizxDriver
             context.log(" Query Cache size=" + queryCacheSize);
         }
         else {
-            sequenceCache = null;
+            queryCache = null;
             context.log(" no Query Cache");
         }
 
         int seqCacheSize = config.intProp(SEQUENCE_CACHE_SIZE);
         if (seqCacheSize > 1) {
-            sequenceCache = new SequenceCache(seqCacheSize, 0); // TODO memory size
+            long seqCacheMemory = config.longProp(SEQUENCE_CACHE_MAX_MEMORY);
+            sequenceCache = new SequenceCache(seqCacheSize, seqCacheMemory * MB);
             sequenceCache.setStats(statsTable.forCache("server|seq_cache", "Cache",
                                                        "Result Sequence cache"));
             
-            context.log(" Sequence Cache size=" + seqCacheSize);
+            context.log(" Sequence Cache size=" + seqCacheSize
+                        + " max memory=" + seqCacheMemory + "Mb");
             String policy = config.stringProp(SEQUENCE_CACHE_POLICY);
             sequenceCache.setSmart(!"dumb".equalsIgnoreCase(policy));
             libManager.addPostCommitTrigger(null,
@@ -646,6 +779,26 @@ public class QizxDriver
         
         evalTimeout = config.intProp(EVAL_TIME_OUT);
 
+        initStreamingSlots(config.stringProp(STREAMING_LIMITS));
+        streamingBufferSize = Math.max(1, config.intProp(STREAMING_BUFFER_SIZE)) * 1024;
+        streamingWaitTime = config.longProp(STREAMING_WAIT_TIME);
+
+        importThreads = config.intProp(IMPORT_PARSER_THREADS);
+        importBufferSize = Math.max(0, config.intProp(IMPORT_BUFFER_SIZE)) * 1024L;
+
+        int cursorTimeOut = config.intProp(EVAL_CURSOR_TIME_OUT);
+        if (cursorTimeOut > 0) {
+            resultCursors = new ResultCursors(this,
+                                   config.intProp(EVAL_CURSOR_MAX_PER_USER),
+                                   cursorTimeOut * 1000L);
+            startActionService();
+            long period = Math.max(1, cursorTimeOut / 4);
+            actionService.scheduleWithFixedDelay(new CursorReaper(),
+                                                 period, period, TimeUnit.SECONDS);
+        }
+        else
+            resultCursors = null;
+
         // scheduled backups or optims?
         if (config.intProp(BACKUP_INTERVAL) > 0
             || config.intProp(IBACKUP_INTERVAL) > 0
@@ -665,6 +818,10 @@ public class QizxDriver
         if(libManager == null)
             return;
         context.log("stopping Qizx engine... ");
+        ResultCursors cursors = resultCursors;
+        resultCursors = null;
+        if (cursors != null)
+            cursors.clear();
         boolean graceful = libManager.closeAllLibraries(1000);
         changedLibraryList(null);
         libManager = null;
@@ -672,6 +829,10 @@ public class QizxDriver
             actionService.shutdownNow();
             actionService = null;   // otherwise rejects tasks
         }
+        if (importService != null) {
+            importService.shutdownNow();
+            importService = null;
+        }
         context.log("Qizx engine stopped " + (graceful? "gracefully" : "with rollbacks"));
     }
 
@@ -690,10 +851,11 @@ public class QizxDriver
     // returns a non-null library name iff there is one library exactly.
     private String singleLibName()
     {
-        if(libNames == null) {
-            synchronized (libManager) {
+        LibraryManager engine = libManager;
+        if(libNames == null && engine != null) {
+            synchronized (engine) {
                 try {
-                    libNames = libManager.listLibraries();
+                    libNames = engine.listLibraries();
                 }
                 catch (DataModelException e) {
                     context.log("error getting library names", e);
@@ -860,9 +1022,10 @@ public class QizxDriver
     public LibraryManager requireEngine()
         throws RequestException
     {
-        if(libManager == null)
+        LibraryManager engine = libManager;
+        if(engine == null)
             throw new RequestException(Request.SERVER, "Qizx server is offline");
-        return libManager;
+        return engine;
     }
 
     /**
@@ -870,12 +1033,13 @@ public class QizxDriver
      * If sessions are pooled, look in the pool, otherwise simply create new session
      * @param qizxRequestBase 
      */
-    public synchronized Library acquireSession (String libraryName,
-                                                String userName,
-                                                QizxRequestBase request)
+    public Library acquireSession (String libraryName,
+                                   String userName,
+                                   QizxRequestBase request)
         throws RequestException, DataModelException
     {
-        requireEngine();
+        // read once: set to null by a concurrent stop()
+        LibraryManager engine = requireEngine();
         if(libraryName == null || libraryName.length() == 0)
             libraryName = singleLibName();
         if(libraryName == null)
@@ -883,6 +1047,7 @@ public class QizxDriver
                                        "unspecified XML Library name");
         Library lib = null;
         // session pool has a candidate?
+        SessionPool sessionPool = this.sessionPool;
         if (sessionPool != null) {
             lib = sessionPool.acquireSession(libraryName, userName);
             if (lib != null) {
@@ -892,28 +1057,47 @@ public class QizxDriver
         }
         
         // no: open a new session
-        User user = null;
-        AccessControl acctrl = getAccessControl(libraryName);
-        //if(acctrl != null)
-        user = new ServerUser(userName, request);
-        
-        lib = libManager.openLibrary(libraryName, acctrl, user);
+        lib = openSession(engine, libraryName, userName, request);
         if(lib == null)
             throw new RequestException(Request.BAD_REQUEST,
                                        "no XML Library named '" + libraryName +"'");
+        return lib;
+    }
+
+    /*
+     * Opens a session for a user with Access Control and XQuery bindings.
+     * The request is null for sessions opened in advance for anonymous
+     * requests.
+     */
+    private Library openSession(LibraryManager engine, String libraryName,
+                                String userName, QizxRequestBase request)
+        throws DataModelException
+    {
+        AccessControl acctrl = getAccessControl(libraryName);
+        User user = new ServerUser(userName, request);
+        
+        Library lib = engine.openLibrary(libraryName, acctrl, user);
+        if(lib == null)
+            return null;
 
         // init XQuery context:
-        if (hasAdminRole(userName, request.getRequest())) {
+        if (hasAdminRole(userName,
+                         request == null? null : request.getRequest())) {
             XQuerySessionManager.bind(lib, "admin", AdminFunctions.class);
             XQuerySessionManager.bind(lib, "server", ServerFunctions.class);
         }
 
+        enableJavaBinding(lib);
+        return lib;
+    }
+    
+    private void enableJavaBinding(Library lib)
+    {
         if (allowedClasses != null) {
             for (String cl : allowedClasses) {
                 lib.enableJavaBinding(cl);
             }
         }
-        return lib;
     }
     
     /**
@@ -921,8 +1105,9 @@ public class QizxDriver
      * If sessions are pooled, release it to the pool, otherwise simply 
      * close the session.
      */
-    public synchronized void releaseSession(Library session)
+    public void releaseSession(Library session)
     {
+        SessionPool sessionPool = this.sessionPool;
         if (sessionPool != null) {
             sessionPool.releaseSession(session);
         }
@@ -932,6 +1117,57 @@ public class QizxDriver
         }
     }
 
+    /*
+     * Opens sessions on each XML Library and puts them in the pool, so that
+     * first requests do not pay for opening Libraries. Sessions are opened
+     * like those of anonymous requests, the only ones they can be used for.
+     */
+    private void warmUpSessions(int count)
+    {
+        if (count <= 0)
+            return;
+        try {
+            for (String libName : libManager.listLibraries()) {
+                for (int s = 0; s < count; s++) {
+                    Library lib = openSession(libManager, libName, null, null);
+                    if (lib == null)
+                        break;
+                    sessionPool.releaseSession(lib);
+                }
+            }
+            context.log(" Session pool warmed up with " + sessionPool.size()
+                        + " sessions");
+        }
+        catch (DataModelException e) {
+            context.log("ERROR in session warm-up: " + e, e);
+        }
+    }
+    
+    private class SessionReaper implements Runnable
+    {
+        private long maxIdleTime;
+
+        SessionReaper(int maxIdleSeconds)
+        {
+            maxIdleTime = maxIdleSeconds * 1000L;
+        }
+
+        public void run()
+        {
+            SessionPool pool = sessionPool;
+            if (pool == null)
+                return;
+            try {
+                int closed = pool.reap(maxIdleTime);
+                if (closed > 0 && debug)
+                    context.log("closed " + closed + " idle sessions");
+            }
+            catch (Exception e) {
+                context.log("ERROR closing idle sessions: " + e, e);
+            }
+        }
+    }
+    
     private void closeSession(Library session)
     {
         try {
@@ -996,20 +1232,199 @@ public class QizxDriver
     public void releaseSequence(ItemSequence sequence)
     {
         if (sequenceCache != null) {
-            ItemSequence evicted = sequenceCache.release(sequence);
+            List<ItemSequence> evicted = sequenceCache.release(sequence);
             if(evicted != null) {
-                Expression expr = evicted.getExpression();
-                
+                for (ItemSequence seq : evicted) {
+                    Expression expr = seq.getExpression();
 
-                // There is ONE expression per session: otherwise it would not
-                // be guaranteed that a session is used by only one thread
-                releaseSession(expr.getLibrary());
-                expr.close(); // AFTER release session
+                    // There is ONE expression per session: otherwise it would not
+                    // be guaranteed that a session is used by only one thread
+                    releaseSession(expr.getLibrary());
+                    expr.close(); // AFTER release session
+                }
             }
         }
         // else just GC it
     }
     
+    /**
+     * Drops a sequence that must not be reused, for example after an error
+     * while iterating it: its session is released and its expression closed.
+     */
+    public void discardSequence(ItemSequence sequence)
+    {
+        Expression expr = sequence.getExpression();
+        if (expr == null)
+            return;
+        releaseSession(expr.getLibrary());
+        expr.close(); // AFTER release session
+    }
+    
+    private void initStreamingSlots(String limits)
+    {
+        HashMap<String, Semaphore> slots = new HashMap<String, Semaphore>();
+        if (limits != null) {
+            for (String limit : limits.split("[ \t;,]+")) {
+                int eq = limit.indexOf('=');
+                if (eq <= 0)
+                    continue;
+                try {
+                    int max = Integer.parseInt(limit.substring(eq + 1).trim());
+                    if (max > 0)
+                        slots.put(limit.substring(0, eq).trim(), new Semaphore(max));
+                }
+                catch (NumberFormatException e) {
+                    context.log("ERROR: invalid streaming limit: " + limit);
+                }
+            }
+        }
+        streamingSlots = slots;
+        if (!slots.isEmpty())
+            context.log(" Streaming limits " + limits);
+    }
+
+    /**
+     * Reserves a slot for streaming the response of a request.
+     * @param requestName name of the request type
+     * @return false if no slot is available within the configured time
+     */
+    public boolean acquireStreamingSlot(String requestName)
+    {
+        Semaphore slots = streamingSlots.get(requestName);
+        if (slots == null)
+            return true;
+        try {
+            return slots.tryAcquire(streamingWaitTime, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Frees a slot reserved by {@link #acquireStreamingSlot(String)}.
+     */
+    public void releaseStreamingSlot(String requestName)
+    {
+        Semaphore slots = streamingSlots.get(requestName);
+        if (slots != null)
+            slots.release();
+    }
+
+    /**
+     * Returns the maximum time in milliseconds a request waits for a
+     * streaming slot.
+     */
+    public long getStreamingWaitTime()
+    {
+        return streamingWaitTime;
+    }
+
+    /**
+     * Returns the buffer size of streamed responses, in bytes.
+     */
+    public int getStreamingBufferSize()
+    {
+        return streamingBufferSize;
+    }
+
+    /**
+     * Returns the thread pool used for parsing imported documents, or null if
+     * documents are parsed by the request thread.
+     */
+    public synchronized ExecutorService getImportService()
+    {
+        if (importService == null && importThreads > 1) {
+            importService = Executors.newFixedThreadPool(importThreads,
+                                                         new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "qizx-import-parser");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return importService;
+    }
+
+    /**
+     * Returns the number of parser threads.
+     */
+    public int getImportThreadCount()
+    {
+        return importThreads;
+    }
+
+    /**
+     * Returns the maximum size in bytes of the documents parsed in advance
+     * by an import.
+     */
+    public long getImportBufferSize()
+    {
+        return importBufferSize;
+    }
+
+    /**
+     * Creates a XML parser using the server's XML catalogs.
+     */
+    public DocumentParser newDocumentParser()
+    {
+        DocumentParser parser = new DocumentParser();
+        parser.setLocalCatalogManager(catManager);
+        return parser;
+    }
+
+    /**
+     * Returns a new result cursor identifier, or null if cursors are disabled.
+     */
+    public String newCursorId()
+    {
+        ResultCursors cursors = resultCursors;
+        return (cursors == null) ? null : cursors.newId();
+    }
+
+    /**
+     * Takes the sequence of a result cursor, at the position where the
+     * previous page ended.
+     * @return null if the cursor is unknown, expired or owned by another user
+     */
+    public ItemSequence resumeCursor(String cursorId, String userName)
+    {
+        ResultCursors cursors = resultCursors;
+        return (cursors == null) ? null : cursors.take(cursorId, userName);
+    }
+
+    /**
+     * Keeps a sequence under a result cursor, until resumed or expired.
+     */
+    public void parkCursor(String cursorId, ItemSequence sequence, String userName)
+    {
+        ResultCursors cursors = resultCursors;
+        if (cursors != null)
+            cursors.park(cursorId, sequence, userName);
+        else
+            releaseSequence(sequence);
+    }
+
+    private class CursorReaper implements Runnable
+    {
+        public void run()
+        {
+            ResultCursors cursors = resultCursors;
+            if (cursors == null)
+                return;
+            try {
+                int closed = cursors.expire();
+                if (closed > 0 && debug)
+                    context.log("closed " + closed + " expired result cursors");
+            }
+            catch (Exception e) {
+                context.log("ERROR closing expired result cursors: " + e, e);
+            }
+        }
+    }
+
     public void invalidateAll(String libName)
     {
         if (sequenceCache != null) {
@@ -1037,7 +1452,7 @@ public class QizxDriver
     {
         String adminRole = getAdminRoleName();
         return adminRole == null
-            || request.isUserInRole(adminRole)
+            || (request != null && request.isUserInRole(adminRole))
             || isAdminUser(userName);
     }
     
@@ -1182,12 +1597,13 @@ public class QizxDriver
         public ServerUser(String name, Request req)
         {
             super(name);
-            this.request = req.request;
+            this.request = (req == null)? null : req.request;
         }
 
         public boolean isInRole(String roleName)
         {
-            return request.isUserInRole(roleName);
+            // no request: anonymous session opened in advance
+            return request != null && request.isUserInRole(roleName);
         }
 
         @Override
@@ -1545,6 +1961,23 @@ public class QizxDriver
         return ac;
     }
 
+    /**
+     * Returns the statistics of a request type on a particular Library.
+     */
+    public Statistics.Activity getActivityStats(String name, String libraryName)
+    {
+        String key = name + "|" + libraryName;
+        Statistics.Activity ac = reqStats.get(key);
+        if (ac == null) {
+            ac = statsTable.forActivity("server|request|" + key, "Activity",
+                                        "REST API request '" + name
+                                        + "' on library '" + libraryName + "'");
+            
+            reqStats.put(key, ac);
+        }
+        return ac;
+    }
+
     public URL resolve(String resource)
         throws MalformedURLException
     {
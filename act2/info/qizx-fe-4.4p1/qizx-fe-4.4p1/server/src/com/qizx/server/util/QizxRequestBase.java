@@ -18,6 +18,7 @@ import org.xml.sax.InputSource;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.util.HashSet;
 
@@ -45,7 +46,9 @@ public abstract class QizxRequestBase extends Request
     protected Library libSession;
     protected Part currentPart;
 
+    private String statsLibrary;    // library used without libSession
     private long startTime;
+    private boolean streaming;  // holds a streaming slot
 
     
     protected QizxDriver getDriver()
@@ -60,9 +63,20 @@ public abstract class QizxRequestBase extends Request
     {
         driver = getDriver();
         libSession = null;
+        statsLibrary = null;
         startTime = System.nanoTime();
     }
     
+    public void reset()
+    {
+        super.reset();
+        driver = null;  // can change after reload
+        libSession = null;
+        statsLibrary = null;
+        currentPart = null;
+        streaming = false;
+    }
+
     public void cleanup()
     {
         if(driver == null)
@@ -71,10 +85,51 @@ public abstract class QizxRequestBase extends Request
         long endTime = System.nanoTime();
         ac.addTime(endTime - startTime);
         
+        String libName = (libSession != null)? libSession.getName() : statsLibrary;
+        if(libName != null)
+            driver.getActivityStats(getName(), libName)
+                  .addTime(endTime - startTime);
         if(libSession != null) {
             driver.releaseSession(libSession);
             libSession = null;
         }
+        if(streaming) {
+            driver.releaseStreamingSlot(getName());
+            streaming = false;
+        }
+    }
+
+    /**
+     * Records the library of a sequence obtained without holding a session
+     * in libSession (for example by driver.acquireSequence), so that the
+     * time of the request is also accounted per library.
+     */
+    protected void setStatsLibrary(ItemSequence items)
+    {
+        Expression expr = items.getExpression();
+        Library lib = (expr == null)? null : expr.getLibrary();
+        if(lib != null)
+            statsLibrary = lib.getName();
+    }
+
+    /**
+     * Returns a stream for sending a potentially large response.
+     * <p>The response is sent in chunks through a bounded buffer. The number
+     * of concurrent streamed responses of a request type can be limited: if
+     * no slot is available in time, the request is rejected. The slot is
+     * released by cleanup().
+     */
+    protected OutputStream startStreaming()
+        throws RequestException
+    {
+        if (!driver.acquireStreamingSlot(getName()))
+            throw new RequestException(UNAVAILABLE, "too many concurrent '"
+                                       + getName() + "' responses, retry later");
+        streaming = true;
+        int bufferSize = driver.getStreamingBufferSize();
+        if (!response.isCommitted())
+            response.setBufferSize(bufferSize);
+        return new StreamingOutput(output, bufferSize);
     }
 
     protected void sendError(RequestException he)
@@ -85,6 +140,13 @@ public abstract class QizxRequestBase extends Request
 
         // define the content-type and error code: can be redefined
         startErrorContent();
+        if (UNAVAILABLE.equals(he.code)) {
+            // load shedding, not a failure: the client can retry
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            long wait = (driver == null)? 0 : driver.getStreamingWaitTime();
+            response.setHeader("Retry-After",
+                               Long.toString(Math.max(1, (wait + 999) / 1000)));
+        }
         
         // handle Qizx exceptions:
         Throwable cause = he.getCause();
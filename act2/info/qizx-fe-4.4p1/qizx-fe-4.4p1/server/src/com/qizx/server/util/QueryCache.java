@@ -14,28 +14,52 @@ import com.qizx.util.basic.Check;
 import com.qizx.util.basic.FileUtil;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A cache for "Stored Queries", i.e compiled XQuery expressions.
  * <p>
  * Checks that a query has been modified on disk and reloads if necessary.
  * A minimum time between 2 lookups on disk is used to avoid too many disk accesses
+ * <p>
+ * Entries are hashed on (query URL, library, user) into independently locked
+ * segments, each maintaining its own LRU list. Several compiled instances of
+ * the same query can coexist, one per concurrent user of the query.
  */
 public class QueryCache
 {
+    // max number of segments (power of 2)
+    private static final int MAX_SEGMENTS = 16;
+    // minimum number of entries per segment
+    private static final int MIN_SEGMENT_SIZE = 8;
+
     private QizxDriver serverDriver;
-    private ArrayList<Entry> lru;
+    private Segment[] segments;
+    private int segmentMask;
+    // checked-out expressions, for fast release:
+    private ConcurrentHashMap<Expression, Entry> inUse;
     private int minCheckTime = 1000;
     private Statistics.Cache stats;
     private int maxEntryCount;
     private boolean trace = !true;
-    
+
     public QueryCache(QizxDriver serverDriver, int maxEntryCount) // TODO memory size
     {
         this.serverDriver = serverDriver;
         this.maxEntryCount = maxEntryCount;
-        lru = new ArrayList<QueryCache.Entry>();
+
+        int segCount = 1;
+        while (segCount < MAX_SEGMENTS
+               && segCount * 2 * MIN_SEGMENT_SIZE <= maxEntryCount)
+            segCount *= 2;
+        segments = new Segment[segCount];
+        segmentMask = segCount - 1;
+        int segSize = (maxEntryCount + segCount - 1) / segCount;
+        for (int s = 0; s < segCount; s++)
+            segments[s] = new Segment(segSize);
+        inUse = new ConcurrentHashMap<Expression, Entry>();
     }
 
     public Statistics.Cache getStats()
@@ -48,85 +72,88 @@ public class QueryCache
         this.stats = stats;
     }
 
+    public int getMaxEntryCount()
+    {
+        return maxEntryCount;
+    }
+
     /**
      * Looks for a ready compiled expression matching queryURL, library, and user.
      * <p>
-     * removed from the cache and returned.
-     * @param mode
+     * A matching expression is marked as in use and returned: it must be
+     * given back through {@link #release(Expression)}.
      */
-    public synchronized Expression get(String queryURL, String libraryName,
-                                       String user)
+    public Expression get(String queryURL, String libraryName, String user)
     {
         Check.nonNull("libraryName", libraryName);
         Check.nonNull("queryURL", queryURL);
 
-        int h = hashKey(queryURL, libraryName, user);
+        Key key = new Key(queryURL, libraryName, user);
         if (trace)
-            System.err.println("get " + queryURL + " " + user + " " + h);
-
-        for (int i = 0, size = lru.size(); i < size; i++) {
-            Entry e = lru.get(i);
-            if (e.hash == h && !e.locked
-                && e.matches(queryURL, libraryName, user))
-            {
-                lru.remove(i);
-                if (isStale(e.queryURL, e.loadTime)) {
-                    serverDriver.releaseSession(e.expr.getLibrary());
-                    if (trace)
-                        System.err.println("stale entry "
-                                           + e.expr.getIdentifier());
-                    return null;
-                }
-                if (trace)
-                    System.err.println("hit " + e.expr);
-                if (stats != null)
-                    stats.addAccess(true);
-                lru.add(0, e);
-                e.locked = true;
-                return e.expr;
-            }
+            System.err.println("get " + queryURL + " " + user + " " + key.hash);
+
+        Segment seg = segmentFor(key);
+        Entry e = seg.acquire(key);
+        if (e == null) {
+            // miss counted in put()
+            if (trace)
+                System.err.println("miss ");
+            return null;
+        }
+        if (isStale(key.queryURL, e.loadTime)) {
+            seg.remove(e);
+            serverDriver.releaseSession(e.expr.getLibrary());
+            if (trace)
+                System.err.println("stale entry " + e.expr.getIdentifier());
+            return null;
         }
-        // miss counted in put()
         if (trace)
-            System.err.println("miss ");
-        return null;
+            System.err.println("hit " + e.expr);
+        if (stats != null)
+            stats.addAccess(true);
+        inUse.put(e.expr, e);
+        return e.expr;
     }
 
-    public synchronized void put(Expression expr, String queryURL,
-                                 String libName, String userName,
-                                 long loadTimeNanos)
+    /**
+     * Adds a newly compiled expression, considered in use by the caller.
+     */
+    public void put(Expression expr, String queryURL,
+                    String libName, String userName, long loadTimeNanos)
     {
-        Entry e = new Entry(expr, queryURL, libName, userName);
+        Entry e = new Entry(expr, new Key(queryURL, libName, userName));
         e.loadTime = System.currentTimeMillis() - loadTimeNanos / 1000000; // picky!
-        
-        lru.add(0, e);
-        if (lru.size() > maxEntryCount) {
-            e = lru.remove(lru.size() - 1);
-            serverDriver.releaseSession(e.expr.getLibrary());
-        }
+        e.locked = true;
+        inUse.put(expr, e);
+
+        Entry evicted = segmentFor(e.key).add(e);
+        if (evicted != null)
+            serverDriver.releaseSession(evicted.expr.getLibrary());
         if (stats != null) {
             stats.addMiss(-1, loadTimeNanos);
         }
     }
 
-    public synchronized void release(Expression expr)
+    public void release(Expression expr)
     {
-        for(int i = 0, size = lru.size(); i < size; i++) {
-            Entry e = lru.get(i);
-            if (e.expr == expr) {
-                e.locked = false;
-                return;
-            }
-        }
+        Entry e = inUse.remove(expr);
+        if (e != null && segmentFor(e.key).release(e))
+            return;
         // dropped:
         serverDriver.releaseSession(expr.getLibrary());
     }
 
+    private Segment segmentFor(Key key)
+    {
+        int h = key.hash;
+        return segments[(h ^ (h >>> 16)) & segmentMask];
+    }
+
     private boolean isStale(String queryURI, long timeStamp)
     {
         File file = FileUtil.urlToFile(queryURI);
         long now = System.currentTimeMillis();
-        
+
         return file != null && now  > timeStamp + minCheckTime &&
                file.lastModified() > timeStamp;
     }
@@ -138,32 +165,161 @@ public class QueryCache
                (user == null? 0 : user.hashCode());
     }
 
-    public static class Entry
+    /**
+     * Independently locked part of the cache: a hash of idle entries by key,
+     * and a LRU list of all entries (idle or in use).
+     */
+    static class Segment
+    {
+        private HashMap<Key, ArrayDeque<Entry>> idle;
+        private Entry head;     // sentinel of circular LRU list
+        private int entryCount;
+        private int maxEntryCount;
+
+        Segment(int maxEntryCount)
+        {
+            this.maxEntryCount = maxEntryCount;
+            idle = new HashMap<Key, ArrayDeque<Entry>>();
+            head = new Entry(null, null);
+            head.prev = head.next = head;
+        }
+
+        synchronized Entry acquire(Key key)
+        {
+            ArrayDeque<Entry> list = idle.get(key);
+            if (list == null)
+                return null;
+            Entry e = list.pollFirst();
+            if (list.isEmpty())
+                idle.remove(key);
+            if (e == null)
+                return null;
+            e.locked = true;
+            unlink(e);
+            linkFirst(e);
+            return e;
+        }
+
+        // Adds an entry in use; returns an evicted idle entry if any
+        synchronized Entry add(Entry e)
+        {
+            linkFirst(e);
+            ++entryCount;
+            if (entryCount <= maxEntryCount)
+                return null;
+            // evict least recently used, preferably an idle entry:
+            Entry victim = head.prev;
+            for (; victim != head; victim = victim.prev)
+                if (!victim.locked)
+                    break;
+            if (victim == head)
+                victim = head.prev;
+            drop(victim);
+            // entries in use are released to the driver by release()
+            return victim.locked ? null : victim;
+        }
+
+        // Returns false if the entry is no longer cached
+        synchronized boolean release(Entry e)
+        {
+            if (e.dropped)
+                return false;
+            e.locked = false;
+            ArrayDeque<Entry> list = idle.get(e.key);
+            if (list == null)
+                idle.put(e.key, list = new ArrayDeque<Entry>(2));
+            list.addFirst(e);
+            return true;
+        }
+
+        synchronized void remove(Entry e)
+        {
+            if (!e.dropped)
+                drop(e);
+        }
+
+        private void drop(Entry e)
+        {
+            unlink(e);
+            --entryCount;
+            e.dropped = true;
+            if (!e.locked) {
+                ArrayDeque<Entry> list = idle.get(e.key);
+                if (list != null) {
+                    list.remove(e);
+                    if (list.isEmpty())
+                        idle.remove(e.key);
+                }
+            }
+        }
+
+        private void linkFirst(Entry e)
+        {
+            e.prev = head;
+            e.next = head.next;
+            head.next.prev = e;
+            head.next = e;
+        }
+
+        private void unlink(Entry e)
+        {
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+            e.prev = e.next = null;
+        }
+    }
+
+    static class Key
     {
-        long    loadTime;
-        Expression expr;
         String  queryURL;
-        String  userName;
         String  libName;
+        String  userName;
         int     hash; // speedup
-        boolean locked;
-        
-        public Entry(Expression expression, String queryURL, String libName, String user)
+
+        Key(String queryURL, String libName, String userName)
         {
-            this.expr = expression;
             this.queryURL = queryURL;
             this.libName = libName;
-            this.userName = user;
+            this.userName = userName;
             hash = hashKey(queryURL, libName, userName);
         }
-        
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key) obj;
+            return hash == k.hash && matches(k.queryURL, k.libName, k.userName);
+        }
+
         public boolean matches(String queryURL, String libraryName, String userName)
         {
             if ( !this.queryURL.equals(queryURL) || !libName.equals(libraryName))
                 return false;
             if (this.userName == userName)
                 return true;
-            return (userName != null && userName.equals(this.userName));                
+            return (userName != null && userName.equals(this.userName));
+        }
+    }
+
+    public static class Entry
+    {
+        long    loadTime;
+        Expression expr;
+        Key     key;
+        boolean locked;
+        boolean dropped;
+        Entry   prev, next; // LRU list
+
+        public Entry(Expression expression, Key key)
+        {
+            this.expr = expression;
+            this.key = key;
         }
     }
 }
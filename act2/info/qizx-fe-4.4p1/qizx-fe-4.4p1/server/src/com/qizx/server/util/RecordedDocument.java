@@ -0,0 +1,261 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.api.XMLPushStream;
+
+import java.util.Arrays;
+
+/**
+ * In-memory recording of the events of a parsed XML document.
+ * <p>
+ * Allows parsing a document in one thread and storing it into a Library in
+ * another thread: the recorded events are replayed on the push stream
+ * returned by Library.beginImportDocument.
+ */
+public class RecordedDocument
+    implements XMLPushStream
+{
+    private static final byte DOC_START = 1;
+    private static final byte DOC_END = 2;
+    private static final byte DTD = 3;
+    private static final byte ELEM_START = 4;
+    private static final byte ELEM_END = 5;
+    private static final byte NAMESPACE = 6;
+    private static final byte ATTRIBUTE = 7;
+    private static final byte TEXT = 8;
+    private static final byte COMMENT = 9;
+    private static final byte PI = 10;
+    private static final byte ATOM = 11;
+
+    private byte[] events = new byte[64];
+    private int eventCount;
+    private Object[] args = new Object[128];
+    private int argCount;
+    private StringBuilder text = new StringBuilder();   // pending text
+
+    /**
+     * Sends the recorded events to a push stream.
+     */
+    public void replay(XMLPushStream out)
+        throws DataModelException
+    {
+        flushText();
+        int a = 0;
+        for (int e = 0; e < eventCount; e++) {
+            switch (events[e]) {
+            case DOC_START:
+                out.putDocumentStart();
+                break;
+            case DOC_END:
+                out.putDocumentEnd();
+                break;
+            case DTD:
+                out.putDTD((String) args[a], (String) args[a + 1],
+                           (String) args[a + 2], (String) args[a + 3]);
+                a += 4;
+                break;
+            case ELEM_START:
+                out.putElementStart((QName) args[a++]);
+                break;
+            case ELEM_END:
+                out.putElementEnd((QName) args[a++]);
+                break;
+            case NAMESPACE:
+                out.putNamespace((String) args[a], (String) args[a + 1]);
+                a += 2;
+                break;
+            case ATTRIBUTE:
+                out.putAttribute((QName) args[a], (String) args[a + 1],
+                                 (String) args[a + 2]);
+                a += 3;
+                break;
+            case TEXT:
+                out.putText((String) args[a++]);
+                break;
+            case COMMENT:
+                out.putComment((String) args[a++]);
+                break;
+            case PI:
+                out.putProcessingInstruction((String) args[a], (String) args[a + 1]);
+                a += 2;
+                break;
+            case ATOM:
+                out.putAtom(args[a++]);
+                break;
+            }
+        }
+    }
+
+    // ---------- recording ---------------------------------------------------
+
+    public void reset()
+    {
+        Arrays.fill(args, 0, argCount, null);
+        eventCount = argCount = 0;
+        text.setLength(0);
+    }
+
+    public boolean putDocumentStart()
+        throws DataModelException
+    {
+        event(DOC_START);
+        return true;
+    }
+
+    public void putDocumentEnd()
+        throws DataModelException
+    {
+        event(DOC_END);
+    }
+
+    public void putDTD(String name, String publicId, String systemId,
+                       String internalSubset)
+        throws DataModelException
+    {
+        event(DTD);
+        arg(name);
+        arg(publicId);
+        arg(systemId);
+        arg(internalSubset);
+    }
+
+    public void putElementStart(QName name)
+        throws DataModelException
+    {
+        event(ELEM_START);
+        arg(name);
+    }
+
+    public void putElementEnd(QName name)
+        throws DataModelException
+    {
+        event(ELEM_END);
+        arg(name);
+    }
+
+    public boolean putNamespace(String prefix, String namespaceURI)
+        throws DataModelException
+    {
+        event(NAMESPACE);
+        arg(prefix);
+        arg(namespaceURI);
+        return true;
+    }
+
+    public void putAttribute(QName name, String value, String attrType)
+        throws DataModelException
+    {
+        event(ATTRIBUTE);
+        arg(name);
+        arg(value);
+        arg(attrType);
+    }
+
+    public void putText(String text)
+        throws DataModelException
+    {
+        if (text != null)
+            this.text.append(text);
+    }
+
+    public void putChars(char[] text, int start, int textLength)
+        throws DataModelException
+    {
+        this.text.append(text, start, textLength);
+    }
+
+    public void putComment(String text)
+        throws DataModelException
+    {
+        event(COMMENT);
+        arg(text);
+    }
+
+    public void putProcessingInstruction(String target, String contents)
+        throws DataModelException
+    {
+        event(PI);
+        arg(target);
+        arg(contents);
+    }
+
+    public void putAtom(Object value)
+        throws DataModelException
+    {
+        event(ATOM);
+        arg(value);
+    }
+
+    public void flush()
+        throws DataModelException
+    {
+    }
+
+    public void putNodeCopy(Node node, int copyNamespaceMode)
+        throws DataModelException
+    {
+        throw new DataModelException("node copy not supported in recording");
+    }
+
+    public void putNamespaces(Node element, int copyNamespaceMode)
+        throws DataModelException
+    {
+        throw new DataModelException("node copy not supported in recording");
+    }
+
+    public String getNSPrefix(String namespaceURI)
+    {
+        return null;
+    }
+
+    public String getNSURI(String nsPrefix)
+    {
+        return null;
+    }
+
+    // consecutive text fragments are coalesced into one event
+    private void flushText()
+    {
+        if (text.length() == 0)
+            return;
+        addEvent(TEXT);
+        arg(text.toString());
+        text.setLength(0);
+    }
+
+    private void event(byte event)
+    {
+        flushText();
+        addEvent(event);
+    }
+
+    private void addEvent(byte event)
+    {
+        if (eventCount == events.length) {
+            byte[] old = events;
+            events = new byte[old.length * 2];
+            System.arraycopy(old, 0, events, 0, old.length);
+        }
+        events[eventCount++] = event;
+    }
+
+    private void arg(Object arg)
+    {
+        if (argCount == args.length) {
+            Object[] old = args;
+            args = new Object[old.length * 2];
+            System.arraycopy(old, 0, args, 0, old.length);
+        }
+        args[argCount++] = arg;
+    }
+}
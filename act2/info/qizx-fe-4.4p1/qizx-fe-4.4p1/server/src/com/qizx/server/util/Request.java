@@ -15,6 +15,7 @@ import com.xmlmind.multipartreq.Part;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.security.Principal;
 import java.util.Enumeration;
 
@@ -35,6 +36,8 @@ public abstract class Request
     public static final String BAD_REQUEST = "BadRequest";
     public static final String SERVER = "Server";
     public static final String NOT_FOUND = "NotFound";
+    /** Temporary overload: sent with HTTP status 503. */
+    public static final String UNAVAILABLE = "Unavailable";
 
     public static final String MIME_DATA = "application/data";
     public static final String MIME_PLAIN_TEXT = "text/plain";
@@ -51,6 +54,9 @@ public abstract class Request
     protected HttpServletResponse response;
     protected ServletOutputStream output;
 
+    // pool this handler belongs to, if any
+    ServletBase.HandlerPool pool;
+
     public abstract String getName();
     
     public void handleHead()
@@ -90,6 +96,54 @@ public abstract class Request
         this.output = response.getOutputStream();
     }
     
+    /**
+     * Returns true if this handler reads the file parts of a multipart
+     * request in streaming mode, through {@link #nextPart()}: their contents
+     * are then not stored before the handler is invoked.
+     */
+    public boolean isStreamingParts()
+    {
+        return false;
+    }
+
+    /**
+     * Creates a new handler of the same kind.
+     * <p>The default implementation uses reflection: handlers are pooled, so
+     * this is called only when no idle handler is available.
+     */
+    public Request newInstance()
+        throws ServletException
+    {
+        try {
+            return getClass().getDeclaredConstructor().newInstance();
+        }
+        catch (InvocationTargetException e) {
+            throw new ServletException(e.getCause());
+        }
+        catch (NoSuchMethodException e) {
+            throw new ServletException(e);
+        }
+        catch (InstantiationException e) {
+            throw new ServletException(e);
+        }
+        catch (IllegalAccessException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Clears the state related to a HTTP request, before reuse of this
+     * handler. Redefined by handlers having their own state.
+     */
+    public void reset()
+    {
+        servlet = null;
+        request = null;
+        response = null;
+        multipart = null;
+        output = null;
+    }
+
     public abstract void setup();
 
     public abstract void cleanup();
@@ -243,6 +297,17 @@ public abstract class Request
         return multipart != null;
     }
     
+    /**
+     * Streaming mode: returns the next part of a multipart request, or null.
+     * @see #isStreamingParts()
+     */
+    protected Part nextPart()
+        throws IOException
+    {
+        return multipart == null || !multipart.isStreaming() ? null
+                                      : multipart.nextPart();
+    }
+
     protected Part getPart(String name)
         throws IOException, ServletException
     {
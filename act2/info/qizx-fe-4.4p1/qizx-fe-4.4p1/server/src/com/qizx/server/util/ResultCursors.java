@@ -0,0 +1,172 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.ItemSequence;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Named server-side cursors on result sequences, used for paging through
+ * the results of the 'eval' request.
+ * <p>
+ * A cursor keeps an evaluated ItemSequence at its current position between
+ * two requests, so that the next page is obtained without re-iterating from
+ * the beginning. A cursor is removed from the table while a request is using
+ * it. Idle cursors expire after a time-out, and the number of idle cursors
+ * per user is limited: the oldest cursor of a user is dropped first.
+ */
+public class ResultCursors
+{
+    private QizxDriver serverDriver;
+    private HashMap<String, Cursor> cursors;
+    private int maxPerUser;
+    private long timeOut;
+    private SecureRandom random;
+
+    /**
+     * @param maxPerUser maximum number of idle cursors per user
+     * @param timeOut maximum idle time of a cursor in milliseconds
+     */
+    public ResultCursors(QizxDriver serverDriver, int maxPerUser, long timeOut)
+    {
+        this.serverDriver = serverDriver;
+        this.maxPerUser = Math.max(1, maxPerUser);
+        this.timeOut = timeOut;
+        cursors = new HashMap<String, Cursor>();
+        random = new SecureRandom();
+    }
+
+    /**
+     * Returns a new unique opaque identifier.
+     */
+    public String newId()
+    {
+        return "C" + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the sequence of a cursor for use by a request.
+     * @return null if the cursor is unknown, expired, in use, or belongs to
+     * another user.
+     */
+    public ItemSequence take(String id, String userName)
+    {
+        Cursor c;
+        synchronized (this) {
+            c = cursors.get(id);
+            if (c == null || !sameUser(userName, c.userName))
+                return null;
+            cursors.remove(id);
+        }
+        if (c.lastAccess + timeOut >= System.currentTimeMillis())
+            return c.sequence;
+        // expired but not yet collected:
+        serverDriver.releaseSequence(c.sequence);
+        return null;
+    }
+
+    /**
+     * Stores a sequence under the given cursor identifier, after use by a
+     * request.
+     */
+    public void park(String id, ItemSequence sequence, String userName)
+    {
+        Cursor dropped = null;
+        synchronized (this) {
+            Cursor c = new Cursor(id, sequence, userName);
+            cursors.put(id, c);
+
+            // enforce per user limit:
+            int count = 0;
+            Cursor oldest = null;
+            for (Cursor o : cursors.values()) {
+                if (!sameUser(userName, o.userName))
+                    continue;
+                ++count;
+                if (oldest == null || o.lastAccess < oldest.lastAccess)
+                    oldest = o;
+            }
+            if (count > maxPerUser && oldest != null) {
+                cursors.remove(oldest.id);
+                dropped = oldest;
+            }
+        }
+        if (dropped != null)
+            serverDriver.releaseSequence(dropped.sequence);
+    }
+
+    /**
+     * Drops the cursors idle for longer than the time-out.
+     * @return the number of dropped cursors
+     */
+    public int expire()
+    {
+        ArrayList<Cursor> expired = new ArrayList<Cursor>();
+        synchronized (this) {
+            long limit = System.currentTimeMillis() - timeOut;
+            for (Iterator<Cursor> iter = cursors.values().iterator();
+                 iter.hasNext(); ) {
+                Cursor c = iter.next();
+                if (c.lastAccess < limit) {
+                    iter.remove();
+                    expired.add(c);
+                }
+            }
+        }
+        for (Cursor c : expired)
+            serverDriver.releaseSequence(c.sequence);
+        return expired.size();
+    }
+
+    /**
+     * Drops all the cursors, for example when the server stops.
+     * @return the number of dropped cursors
+     */
+    public int clear()
+    {
+        ArrayList<Cursor> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<Cursor>(cursors.values());
+            cursors.clear();
+        }
+        for (Cursor c : dropped)
+            serverDriver.releaseSequence(c.sequence);
+        return dropped.size();
+    }
+
+    public synchronized int size()
+    {
+        return cursors.size();
+    }
+
+    private static boolean sameUser(String user1, String user2)
+    {
+        return user1 == user2 || (user1 != null && user1.equals(user2));
+    }
+
+    static class Cursor
+    {
+        String id;
+        ItemSequence sequence;
+        String userName;
+        long lastAccess;
+
+        Cursor(String id, ItemSequence sequence, String userName)
+        {
+            this.id = id;
+            this.sequence = sequence;
+            this.userName = userName;
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+}
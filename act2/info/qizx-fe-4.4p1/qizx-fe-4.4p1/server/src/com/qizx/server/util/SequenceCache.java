@@ -13,33 +13,66 @@ import com.qizx.api.ItemSequence;
 import com.qizx.api.Library;
 import com.qizx.api.User;
 import com.qizx.api.util.logging.Statistics;
-import com.qizx.util.basic.PathUtil;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A Pool of evaluated ItemSequences.
  * <p>
  * Everything is done so that a user who requires consecutive pages of items on a
  * given query would retrieve the same Sequence.
+ * <p>
+ * The cache is bounded both by a number of sequences and by an estimated
+ * memory size. Eviction follows a "Greedy Dual Size" policy: large
+ * sequences are evicted before small ones of the same age.
+ * <p>
+ * Cached sequences are indexed by the root paths of their Expression, per
+ * XML Library, so that invalidation after a commit only visits the sequences
+ * depending on an updated path. Invalidation does not lock the cache itself:
+ * it flags sequences, which are then skipped by lookups and purged at the
+ * next release.
  */
 public class SequenceCache
 {
+    // rough footprint of a cached sequence: the compiled expression, its
+    // evaluation context, and each item expanded so far
+    private static final int ENTRY_OVERHEAD = 4096;
+    private static final int SOURCE_CHAR_SIZE = 16;
+    private static final int ITEM_SIZE = 256;
+    
     private LinkedHashMap<String, Entry> hash;
     private int maxEntryCount;
     private int entryCount;
     //private int hits, misses;
     Statistics.Cache stats;
     private long maxSize;
+    private long usedSize;
+    // "inflation" value of Greedy Dual Size: credit of the latest evicted
+    private double inflation;
     private boolean smart = true;
+    // root path index, by library name:
+    private ConcurrentHashMap<String, PathTrie<Slot>> pathIndex;
+    // invalidated sequences, to be removed and released:
+    private ConcurrentLinkedQueue<Slot> invalidated;
     
+    /**
+     * @param maxEntryCount maximum number of cached sequences
+     * @param maxSize maximum estimated memory size in bytes; no limit if <= 0
+     */
     public SequenceCache(int maxEntryCount, long maxSize)
     {
         this.maxEntryCount = maxEntryCount;
         this.maxSize = maxSize;
         hash = new LinkedHashMap<String, Entry>();
+        pathIndex = new ConcurrentHashMap<String, PathTrie<Slot>>();
+        invalidated = new ConcurrentLinkedQueue<Slot>();
     }
 
     public boolean isSmart()
@@ -60,6 +93,16 @@ public class SequenceCache
     public void setStats(Statistics.Cache stats)
     {
         this.stats = stats;
+        if (stats != null)
+            stats.setUsedMemory(usedSize);
+    }
+
+    /**
+     * Returns the estimated memory size of cached sequences.
+     */
+    public synchronized long getUsedSize()
+    {
+        return usedSize;
     }
 
     /**
@@ -85,9 +128,12 @@ public class SequenceCache
         }
 
         if (e != null) {
-            ItemSequence best = null;
+            int best = -1;
             int bestPenalty = Integer.MAX_VALUE;
-            for (ItemSequence s : e) {
+            for (int sp = 0, size = e.size(); sp < size; sp++) {
+                if (e.get(sp).invalid)
+                    continue;
+                ItemSequence s = e.get(sp).sequence;
                 if (profiling && s.getExpression() != null &&
                                 !s.getExpression().isProfiled())
                     continue;
@@ -100,14 +146,13 @@ public class SequenceCache
                     penalty = (int) dist;
                 if (penalty < bestPenalty) {
                     bestPenalty = penalty;
-                    best = s;
+                    best = sp;
                 }
             }
-            if(best != null) {
-                
-                e.remove(best);
-                -- entryCount;
-                return best;
+            if(best >= 0) {
+                Slot slot = removeSlot(key, e, best);
+                unindex(slot);
+                return slot.sequence;
             }
         }
         
@@ -119,10 +164,12 @@ public class SequenceCache
     /**
      * Puts a sequence back to the cache. 
      * Note: a used Sequence is not in the cache.
-     * This methods handles cache eviction in LRU way: older sequences are evicted
-     * returns the evicted Sequence, or null if none.
+     * This methods handles cache eviction: when the maximum count or memory
+     * size is exceeded, sequences with the lowest credit (oldest and largest)
+     * are evicted.
+     * @return the list of evicted Sequences, or null if none.
      */
-    public synchronized ItemSequence release(ItemSequence seq)
+    public List<ItemSequence> release(ItemSequence seq)
     {
         Expression expr = seq.getExpression();
         // FIX: if expression is closed it is useless to cache it
@@ -131,43 +178,140 @@ public class SequenceCache
         // FIX: never cache sequences of expr that modify the context
         //   instead return the sequence itself: will release the session
         if (expr.isUpdating())
-            return seq;
+            return Collections.singletonList(seq);
         
         String query = expr.getSource();
         Library library = expr.getLibrary();
         if (library == null)
             return null; // what's that crap?
         
+        long size = estimateSize(seq, query);
+        // too big to be cached at all:
+        if (maxSize > 0 && size > maxSize)
+            return Collections.singletonList(seq);
+        
         String libName = library.getName();
         User u = library.getUser();
         String userName = (u == null)? null : u.getName();
-        
-
         String key = hashKey(libName, userName, query);
-        Entry e = hash.get(key);
-        if (e == null) {
-            e = new Entry();
-            hash.put(key, e);
-        }
-        e.add(seq);
-        ++ entryCount;
-        
-        // eviction:
-        if (entryCount > maxEntryCount) {
-            // need to drop a sequence: 
-            // we use a LinkedHashMap, so we get the oldest key:
-            Iterator<String> iter = hash.keySet().iterator();
-            if (iter.hasNext()) { // should
-                key = iter.next();
-                e = hash.get(key);
-                if (e.size() > 0)
-                    seq = e.remove(0);
-                if (e.size() == 0)
-                    hash.remove(key);
-                return seq;
+        // computed outside of the lock:
+        String[] rootPaths = smart ? expr.getRootPaths() : null;
+        Slot slot = new Slot(seq, key, libName, userName, rootPaths, size);
+
+        synchronized (this) {
+            ArrayList<ItemSequence> evicted = purgeInvalidated(null);
+
+            Entry e = hash.get(key);
+            if (e == null) {
+                e = new Entry();
+                hash.put(key, e);
+            }
+            slot.credit = inflation + (double) ENTRY_OVERHEAD / size;
+            e.add(slot);
+            ++ entryCount;
+            usedSize += size;
+            index(slot);
+
+            // eviction:
+            while (entryCount > maxEntryCount
+                   || (maxSize > 0 && usedSize > maxSize))
+            {
+                // need to drop the sequence with lowest credit:
+                String victimKey = null;
+                Entry victimEntry = null;
+                int victim = -1;
+                double minCredit = Double.MAX_VALUE;
+                for (Map.Entry<String, Entry> me : hash.entrySet()) {
+                    Entry ve = me.getValue();
+                    for (int sp = ve.size(); --sp >= 0; ) {
+                        if (ve.get(sp).credit < minCredit) {
+                            minCredit = ve.get(sp).credit;
+                            victimKey = me.getKey();
+                            victimEntry = ve;
+                            victim = sp;
+                        }
+                    }
+                }
+                if (victimEntry == null)
+                    break;  // should not happen
+                inflation = minCredit;
+                if (evicted == null)
+                    evicted = new ArrayList<ItemSequence>(2);
+                Slot victimSlot = removeSlot(victimKey, victimEntry, victim);
+                unindex(victimSlot);
+                evicted.add(victimSlot.sequence);
             }
+            if (stats != null)
+                stats.setUsedMemory(usedSize);
+            return evicted;
         }
-        return null;
+    }
+    
+    // removes invalidated sequences from the cache, returns them for release
+    private ArrayList<ItemSequence> purgeInvalidated(ArrayList<ItemSequence> list)
+    {
+        for (Slot slot; (slot = invalidated.poll()) != null; ) {
+            Entry e = hash.get(slot.key);
+            int sp = (e == null) ? -1 : e.indexOf(slot);
+            if (sp < 0)
+                continue;   // acquired or evicted meanwhile
+            removeSlot(slot.key, e, sp);
+            if (list == null)
+                list = new ArrayList<ItemSequence>(2);
+            list.add(slot.sequence);
+        }
+        return list;
+    }
+
+    private void index(Slot slot)
+    {
+        if (slot.rootPaths == null || slot.rootPaths.length == 0)
+            return;
+        PathTrie<Slot> trie = pathIndex.get(slot.libName);
+        if (trie == null) {
+            PathTrie<Slot> newTrie = new PathTrie<Slot>();
+            trie = pathIndex.putIfAbsent(slot.libName, newTrie);
+            if (trie == null)
+                trie = newTrie;
+        }
+        synchronized (trie) {
+            for (String path : slot.rootPaths)
+                trie.add(path, slot);
+        }
+    }
+
+    private void unindex(Slot slot)
+    {
+        if (slot.rootPaths == null || slot.rootPaths.length == 0)
+            return;
+        PathTrie<Slot> trie = pathIndex.get(slot.libName);
+        if (trie == null)
+            return;
+        synchronized (trie) {
+            for (String path : slot.rootPaths)
+                trie.remove(path, slot);
+        }
+    }
+
+    private Slot removeSlot(String key, Entry e, int index)
+    {
+        Slot slot = dropSlot(e, index);
+        if (e.size() == 0)
+            hash.remove(key);
+        if (stats != null)
+            stats.setUsedMemory(usedSize);
+        return slot;
+    }
+
+    /**
+     * Estimates the memory footprint of a sequence.
+     * Lazy sequences grow with the number of items already expanded.
+     */
+    private static long estimateSize(ItemSequence seq, String query)
+    {
+        long position = Math.max(0, seq.getPosition());
+        return ENTRY_OVERHEAD + SOURCE_CHAR_SIZE * (long) query.length()
+               + ITEM_SIZE * position;
     }
     
     /**
@@ -175,28 +319,38 @@ public class SequenceCache
      */
     public synchronized void invalidateAll(String libraryName)
     {
-        for(Entry e : hash.values()) {
+        for(Iterator<Map.Entry<String, Entry>> iter = hash.entrySet().iterator();
+            iter.hasNext(); ) {
+            Entry e = iter.next().getValue();
             for(int sp = e.size(); --sp >= 0; )
             {
-                Expression expr = e.get(sp).getExpression();
+                Expression expr = e.get(sp).sequence.getExpression();
                 if(expr == null || expr.getLibrary() == null)
                     continue; // 
                 Library library = expr.getLibrary();
                 if (libraryName == null || 
                     libraryName.equals(library.getName())) {
-                    e.remove(sp);
+                    unindex(dropSlot(e, sp));
                 }
             }
+            if (e.size() == 0)
+                iter.remove();
         }
+        if (stats != null)
+            stats.setUsedMemory(usedSize);
     }
     
     /**
      * Invalidates any sequence whose Expression uses
      * - a Collection containing an updated path
      * - any Library member matching an updated path.
+     * <p>
+     * Does not lock the cache: the sequences found through the path index
+     * are flagged, then removed and released later by
+     * {@link #release(ItemSequence)}.
      */
-    public synchronized void invalidate(String libraryName, String user,
-                                        String[] updatedPaths)
+    public void invalidate(String libraryName, String user,
+                           String[] updatedPaths)
     {
         boolean trace = false;
         if (trace) {
@@ -205,56 +359,69 @@ public class SequenceCache
                 System.err.println("  = "+path2);
         }
         
-        for(Entry e : hash.values()) {
-            for(int sp = e.size(); --sp >= 0; )
-            {
-                Expression expr = e.get(sp).getExpression();
-                if(expr == null || expr.getLibrary() == null)
-                    continue; // 
-                Library library = expr.getLibrary();
-                if (!libraryName.equals(library.getName()))
-                    continue;
-                User u = library.getUser();
-                String userName = (u == null)? null : u.getName();
+        PathTrie<Slot> trie = pathIndex.get(libraryName);
+        if (trie == null)
+            return;
+        ArrayList<Slot> found = new ArrayList<Slot>();
+        synchronized (trie) {
+            // sequences using an updated path or one of its ancestors:
+            for (String path2 : updatedPaths)
+                trie.collect(path2, found);
+            
+            for (Slot slot : found) {
+                if (slot.invalid)
+                    continue;   // already found through another path
+                String userName = slot.userName;
                 if (user != userName &&
                      !(user != null && userName != null && user.equals(userName)))
                     continue;
-                
-                if (expr.isUpdating()) { // Huh? should not happen
-                    e.remove(sp);
-                    if (trace) 
-                        System.err.println("invalidate "+expr.getSource()+" b/c updating");
-                    continue;
-                }
-                
-                // matching entry:
-                String[] usedPaths = expr.getRootPaths();
-//                System.err.println("expr "+expr.getSource()+" deps "+usedPaths.length);
-//                for(String p : usedPaths)
-//                    System.err.println("  := "+p);
-                
-               mainLoop:
-                for(String path1 : usedPaths) {
-                    for(String path2 : updatedPaths) {
-                        if (path1.equals(path2)
-                             || PathUtil.contains(path1, false, path2)) {
-                            e.remove(sp);
-                            if (trace) 
-                                System.err.println("invalidate "+expr.getSource()+" b/c of "+path2);
-                            break mainLoop;
-                        }
-                    }
-                }
+                slot.invalid = true;
+                for (String path1 : slot.rootPaths)
+                    trie.remove(path1, slot);
+                invalidated.add(slot);
+                if (trace) 
+                    System.err.println("invalidate " + slot.key);
             }
         }
     }
 
+    private Slot dropSlot(Entry e, int index)
+    {
+        Slot slot = e.remove(index);
+        -- entryCount;
+        usedSize -= slot.size;
+        return slot;
+    }
+
     private String hashKey(String libraryName, String user, String query)
     {
         return libraryName + "\u0001" + user + "\u0001" + query;
     }
 
-    public class Entry extends ArrayList<ItemSequence>
+    public class Entry extends ArrayList<Slot>
+    {
+    }
+
+    static class Slot
     {
+        ItemSequence sequence;
+        String key;
+        String libName;
+        String userName;
+        String[] rootPaths; // null if not indexed
+        long size;      // estimated
+        double credit;  // eviction priority: lowest first
+        volatile boolean invalid;
+        
+        Slot(ItemSequence sequence, String key, String libName,
+             String userName, String[] rootPaths, long size)
+        {
+            this.sequence = sequence;
+            this.key = key;
+            this.libName = libName;
+            this.userName = userName;
+            this.rootPaths = rootPaths;
+            this.size = size;
+        }
     }
 }
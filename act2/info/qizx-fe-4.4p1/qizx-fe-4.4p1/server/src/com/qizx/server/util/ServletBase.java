@@ -14,6 +14,8 @@ import com.xmlmind.multipartreq.MultipartRequest;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -28,7 +30,7 @@ public class ServletBase extends HttpServlet
     private static final String ANON_PREFIX = "anonymous_";
     
     protected String operationParameter = "op";
-    protected HashMap<String, Request> handlerMap = new HashMap<String, Request>();
+    protected HashMap<String, HandlerPool> handlerMap = new HashMap<String, HandlerPool>();
 
     protected int multipartMaxSize = -1; //21 * 1024*1024;
     protected String multipartTmpDir = "/tmp";
@@ -53,8 +55,11 @@ public class ServletBase extends HttpServlet
     protected void doHead(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException
     {
-        Request handler = findHandler(req, resp);
-        if (handler != null) {
+        Request handler = null;
+        try {
+            handler = findHandler(req, resp);
+            if (handler == null)
+                return;
             handler.setup();
             try {
                 handler.handleHead();
@@ -67,13 +72,19 @@ public class ServletBase extends HttpServlet
                 handler.multipartCleanup();
             }
         }
+        finally {
+            releaseHandler(handler);
+        }
     }
 
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException
     {
-        Request h = findHandler(req, resp);
-        if (h != null) {
+        Request h = null;
+        try {
+            h = findHandler(req, resp);
+            if (h == null)
+                return;
             h.setup();
             try {
                 h.handleGet();
@@ -87,13 +98,19 @@ public class ServletBase extends HttpServlet
                 h.multipartCleanup();
             }
         }
+        finally {
+            releaseHandler(h);
+        }
     }
 
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException
     {
-        Request h = findHandler(req, resp);
-        if (h != null) {
+        Request h = null;
+        try {
+            h = findHandler(req, resp);
+            if (h == null)
+                return;
             h.setup();
             try {
                 h.handlePost();
@@ -106,13 +123,19 @@ public class ServletBase extends HttpServlet
                 h.multipartCleanup();
             }
         }
+        finally {
+            releaseHandler(h);
+        }
     }
 
     protected void doPut(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException
     {
-        Request h = findHandler(req, resp);
-        if (h != null) {
+        Request h = null;
+        try {
+            h = findHandler(req, resp);
+            if (h == null)
+                return;
             h.setup();
             try {
                 h.handlePut();
@@ -125,18 +148,27 @@ public class ServletBase extends HttpServlet
                 h.multipartCleanup();
             }
         }
+        finally {
+            releaseHandler(h);
+        }
     }
 
     // -----------------------------------------------------------------------
     
     protected void addHandler(Request handler)
     {
-        handlerMap.put(handler.getName(), handler);
+        handlerMap.put(handler.getName(), new HandlerPool(handler));
     }
     
     protected void defaultHandler(String method, Request h)
     {
-        handlerMap.put(ANON_PREFIX + method, h);
+        handlerMap.put(ANON_PREFIX + method, new HandlerPool(h));
+    }
+
+    private void releaseHandler(Request h)
+    {
+        if (h != null && h.pool != null)
+            h.pool.release(h);
     }
     
     private Request findHandler(HttpServletRequest req, HttpServletResponse resp)
@@ -160,46 +192,106 @@ public class ServletBase extends HttpServlet
 
         // Multipart implem dependency:
         MultipartRequest multipart = null;
+        HandlerPool pool;
         if (MultipartRequest.isMultipartRequest(req)) {
             ServletContext context = getServletContext();
             multipart = new MultipartRequest(req, getMultipartConfig(), context);
          
             try {
-                multipart.getParts();
+                // reads the fields before the first file part, normally
+                // including the operation:
+                multipart.startStreaming();
+                op = multipart.getParameter(operationParameter);
+                if (op == null) {
+                    multipart.finishParts();
+                    op = multipart.getParameter(operationParameter);
+                }
+                pool = findPool(op, req);
+                // file parts are stored, unless the handler reads them in
+                // streaming mode
+                if (pool != null && !pool.prototype.isStreamingParts())
+                    multipart.finishParts();
             }
             catch (IllegalStateException e) {
                 sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
                                e.getMessage());
                 return null;
             }
-            op = multipart.getParameter(operationParameter);
         }
-        
-        if(op == null)
-            op = ANON_PREFIX + req.getMethod();
-        Request h = handlerMap.get(op);
-        if(h == null) {
+        else
+            pool = findPool(op, req);
+
+        if(pool == null) {
             sendError(resp, HttpServletResponse.SC_BAD_REQUEST,
                       "unknown request '" + op + "'");
             return null;
         }
+        // taken from the pool last: nothing can fail before it is returned
+        Request h = pool.acquire();
+        boolean prepared = false;
         try {
-            h = h.getClass().newInstance();
-        }
-        catch (InstantiationException e) {
-            throw new ServletException(e);
+            h.prepare(req, resp, this, multipart);
+            prepared = true;
         }
-        catch (IllegalAccessException e) {
-            throw new ServletException(e);
+        finally {
+            if (!prepared)
+                releaseHandler(h);
         }
-        h.prepare(req, resp, this, multipart);
         return h;
     }
     
+    private HandlerPool findPool(String op, HttpServletRequest req)
+    {
+        return handlerMap.get(op != null ? op : ANON_PREFIX + req.getMethod());
+    }
+
     protected void sendError(HttpServletResponse resp, int code, String message)
         throws IOException
     {
         resp.sendError(code, message);
     }
+
+    /**
+     * Reusable handlers of a given kind. A handler is taken from the pool for
+     * each HTTP request and given back after cleanup, so that handlers are
+     * normally not instantiated per request.
+     */
+    static class HandlerPool
+    {
+        private static final int MAX_IDLE = 32;
+
+        private Request prototype;
+        private ConcurrentLinkedQueue<Request> idle;
+        private AtomicInteger idleCount;
+
+        HandlerPool(Request prototype)
+        {
+            this.prototype = prototype;
+            idle = new ConcurrentLinkedQueue<Request>();
+            idleCount = new AtomicInteger();
+        }
+
+        Request acquire()
+            throws ServletException
+        {
+            Request h = idle.poll();
+            if (h != null) {
+                idleCount.decrementAndGet();
+                return h;
+            }
+            h = prototype.newInstance();
+            h.pool = this;
+            return h;
+        }
+
+        void release(Request h)
+        {
+            h.reset();
+            if (idleCount.incrementAndGet() <= MAX_IDLE)
+                idle.offer(h);
+            else
+                idleCount.decrementAndGet();
+        }
+    }
 }
 
@@ -13,59 +13,179 @@ import com.qizx.api.Library;
 import com.qizx.api.User;
 import com.qizx.api.util.logging.Statistics.Cache;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Pool of idle Library sessions.
+ * <p>
+ * Idle sessions are kept in lock-free queues, one per (library, user):
+ * the most recently released session is reused first. The pool is bounded
+ * by a global and a per-library number of sessions. When the global limit is
+ * exceeded, the least recently used session is closed, preferably taken from
+ * another library than the one just released. Sessions idle for longer than
+ * a given time can be closed by {@link #reap(long)}.
+ */
 public class SessionPool
 {
-    private ArrayList<Entry> pool;
+    private ConcurrentHashMap<Key, ConcurrentLinkedDeque<Entry>> pool;
+    private ConcurrentHashMap<String, AtomicInteger> libraryCounts;
+    private AtomicInteger entryCount;
     private int maxEntryCount;
+    private int maxLibraryCount;
     private Cache stats;
 
     public SessionPool(int maxEntryCount)
     {
-        pool = new ArrayList<Entry>();
+        this(maxEntryCount, maxEntryCount);
+    }
+
+    /**
+     * @param maxEntryCount maximum number of idle sessions
+     * @param maxLibraryCount maximum number of idle sessions on the same
+     * library; no specific limit if <= 0
+     */
+    public SessionPool(int maxEntryCount, int maxLibraryCount)
+    {
+        pool = new ConcurrentHashMap<Key, ConcurrentLinkedDeque<Entry>>();
+        libraryCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        entryCount = new AtomicInteger();
         this.maxEntryCount = maxEntryCount;
+        this.maxLibraryCount = (maxLibraryCount <= 0 || maxLibraryCount > maxEntryCount)
+                                  ? maxEntryCount : maxLibraryCount;
     }
 
-    public synchronized Library acquireSession(String libraryName,
-                                               String userName)
+    public Library acquireSession(String libraryName, String userName)
     {
-        int h = hashKey(libraryName, userName);
-        for(int i = 0, size = pool.size(); i < size; i++) {
-            Entry e = pool.get(i);
-            if (e.hash == h && e.matches(libraryName, userName)) {
-                pool.remove(i);
-                if (stats != null)
-                    stats.addAccess(true);
-                return e.session;
-            }
+        ConcurrentLinkedDeque<Entry> idle = pool.get(new Key(libraryName, userName));
+        Entry e = (idle == null) ? null : idle.pollFirst();
+        if (e != null) {
+            removed(e);
+            if (stats != null)
+                stats.addAccess(true);
+            return e.session;
         }
         if (stats != null)
             stats.addAccess(false);
         return null;
     }
 
-    public synchronized void releaseSession(Library session)
+    public void releaseSession(Library session)
     {
-        pool.add(new Entry(session));
-        if( pool.size() > maxEntryCount) {
-            Entry e = pool.remove(0);
-            close(e.session);
+        Entry e = new Entry(session);
+        ConcurrentLinkedDeque<Entry> idle = pool.get(e.key);
+        if (idle == null) {
+            ConcurrentLinkedDeque<Entry> newIdle = new ConcurrentLinkedDeque<Entry>();
+            idle = pool.putIfAbsent(e.key, newIdle);
+            if (idle == null)
+                idle = newIdle;
+        }
+        idle.offerFirst(e);
+        entryCount.incrementAndGet();
+        AtomicInteger libCount = libraryCount(e.key.libraryName);
+        libCount.incrementAndGet();
+
+        // per-library limit: drop the oldest session of this library
+        while (libCount.get() > maxLibraryCount) {
+            if (!evictOldest(e.key.libraryName, true))
+                break;
+        }
+        // global limit: drop the oldest session, preferably of another library
+        while (entryCount.get() > maxEntryCount) {
+            if (!evictOldest(e.key.libraryName, false)
+                 && !evictOldest(e.key.libraryName, true))
+                break;
         }
     }
-    
-    public synchronized Library eraseLibrary(String libraryName)
+
+    public Library eraseLibrary(String libraryName)
     {
-        for(int i = pool.size(); --i >= 0; ) {
-            Entry e = pool.get(i);
-            if (e.session.getName().equals(libraryName)) {
-                pool.remove(i);
+        for(Iterator<Map.Entry<Key, ConcurrentLinkedDeque<Entry>>> iter =
+                pool.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Key, ConcurrentLinkedDeque<Entry>> me = iter.next();
+            if (me.getKey().libraryName.equals(libraryName)) {
+                iter.remove();
+                for (Entry e; (e = me.getValue().pollFirst()) != null; )
+                    removed(e);
             }
         }
         return null;
     }
 
+    /**
+     * Closes the sessions that have been idle for longer than maxIdleTime.
+     * @param maxIdleTime in milliseconds
+     * @return number of sessions closed
+     */
+    public int reap(long maxIdleTime)
+    {
+        long limit = System.currentTimeMillis() - maxIdleTime;
+        int closed = 0;
+        for (ConcurrentLinkedDeque<Entry> idle : pool.values()) {
+            // oldest sessions at the tail:
+            for (Entry e; (e = idle.peekLast()) != null && e.releaseTime < limit; )
+            {
+                if (!idle.removeLastOccurrence(e))
+                    continue;   // acquired meanwhile
+                removed(e);
+                close(e.session);
+                ++ closed;
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Returns the number of idle sessions.
+     */
+    public int size()
+    {
+        return entryCount.get();
+    }
+
+    // in library or out of library
+    private boolean evictOldest(String libraryName, boolean inLibrary)
+    {
+        ConcurrentLinkedDeque<Entry> victimQueue = null;
+        Entry victim = null;
+        for (Map.Entry<Key, ConcurrentLinkedDeque<Entry>> me : pool.entrySet()) {
+            if (me.getKey().libraryName.equals(libraryName) != inLibrary)
+                continue;
+            Entry e = me.getValue().peekLast();
+            if (e != null && (victim == null || e.releaseTime < victim.releaseTime)) {
+                victim = e;
+                victimQueue = me.getValue();
+            }
+        }
+        if (victim == null)
+            return false;
+        if (victimQueue.removeLastOccurrence(victim)) {
+            removed(victim);
+            close(victim.session);
+        }
+        return true;    // possibly removed by another thread
+    }
+
+    private void removed(Entry e)
+    {
+        entryCount.decrementAndGet();
+        libraryCount(e.key.libraryName).decrementAndGet();
+    }
+
+    private AtomicInteger libraryCount(String libraryName)
+    {
+        AtomicInteger count = libraryCounts.get(libraryName);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = libraryCounts.putIfAbsent(libraryName, newCount);
+            if (count == null)
+                count = newCount;
+        }
+        return count;
+    }
 
     private void close(Library library)
     {
@@ -88,28 +208,55 @@ public class SessionPool
     {
         return libraryName.hashCode() * 31 + (userName == null? 0 : userName.hashCode());
     }
-    
-    static class Entry
+
+    static class Key
     {
-        Library session;
-        int     hash; // speedup
+        String libraryName;
         String userName;
-        
-        public Entry(Library session)
+        int    hash; // speedup
+
+        Key(String libraryName, String userName)
         {
-            this.session = session;
-            User user = session.getUser();
-            userName = user == null? null : user.getName();
-            hash = hashKey(session.getName(), userName);
+            this.libraryName = libraryName;
+            this.userName = userName;
+            hash = hashKey(libraryName, userName);
+        }
+
+        public int hashCode()
+        {
+            return hash;
         }
-        
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key) obj;
+            return hash == k.hash && matches(k.libraryName, k.userName);
+        }
+
         public boolean matches(String libraryName, String userName)
         {
-            if ( !session.getName().equals(libraryName))
+            if ( !this.libraryName.equals(libraryName))
                 return false;
             if (this.userName == userName)
                 return true;
-            return (userName != null && userName.equals(this.userName));                
+            return (userName != null && userName.equals(this.userName));
+        }
+    }
+
+    static class Entry
+    {
+        Library session;
+        Key     key;
+        long    releaseTime;
+
+        public Entry(Library session)
+        {
+            this.session = session;
+            User user = session.getUser();
+            key = new Key(session.getName(), user == null? null : user.getName());
+            releaseTime = System.currentTimeMillis();
         }
     }
 
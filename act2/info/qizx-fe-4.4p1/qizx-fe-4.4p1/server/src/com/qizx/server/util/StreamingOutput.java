@@ -0,0 +1,92 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream with a bounded buffer, used for streaming large responses.
+ * <p>
+ * Each time the buffer is full, its contents are written to the underlying
+ * servlet stream and flushed, so that the container sends them as a HTTP
+ * chunk instead of accumulating the whole response. The memory used by a
+ * response is thus bounded by the buffer size, and a slow client slows down
+ * the serialization (backpressure) instead of growing buffers.
+ */
+public class StreamingOutput extends OutputStream
+{
+    private OutputStream out;
+    private byte[] buffer;
+    private int count;
+    private long written;
+
+    public StreamingOutput(OutputStream out, int bufferSize)
+    {
+        this.out = out;
+        buffer = new byte[Math.max(bufferSize, 512)];
+    }
+
+    public void write(int b)
+        throws IOException
+    {
+        if (count == buffer.length)
+            flushChunk();
+        buffer[count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        while (len > 0) {
+            if (count == buffer.length)
+                flushChunk();
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void flush()
+        throws IOException
+    {
+        flushChunk();
+    }
+
+    /**
+     * Flushes the buffer but does not close the servlet stream, which
+     * belongs to the container.
+     */
+    public void close()
+        throws IOException
+    {
+        flushChunk();
+    }
+
+    /**
+     * Returns the number of bytes sent so far.
+     */
+    public long getWrittenSize()
+    {
+        return written + count;
+    }
+
+    private void flushChunk()
+        throws IOException
+    {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            written += count;
+            count = 0;
+        }
+        out.flush();    // blocks while the client is not reading
+    }
+}
@@ -18,6 +18,7 @@ package com.xmlmind.multipartreq;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -42,6 +43,10 @@ import javax.servlet.http.HttpServletRequest;
     private final byte[] byteBuffer;
     private final PushbackInputStream in;
 
+    // Streaming mode:
+    private PartInputStream streamedPart;
+    private boolean ended;
+
     // The spec says 70 chars. We use 256 bytes.
     private static final int LINE_MAX_BYTES = 256;
 
@@ -93,6 +98,28 @@ import javax.servlet.http.HttpServletRequest;
 
     public void parse() 
         throws IllegalStateException, IOException {
+        // Note that contentLength may be negative or null.
+        checkRequestSize();
+
+        skipPreamble();
+
+        // Read parts ---
+
+        try {
+            readParts();
+        } catch (IllegalStateException e) {
+            abortParts();
+
+            throw e;
+        } catch (IOException e) {
+            abortParts();
+
+            throw e;
+        }
+    }
+
+    private void checkRequestSize() 
+        throws IllegalStateException {
         if (conf.maxRequestSize > 0) {
             int contentLength = req.getContentLength();
             if (contentLength > conf.maxRequestSize) {
@@ -100,11 +127,11 @@ import javax.servlet.http.HttpServletRequest;
                     "request size " + contentLength + " exceeds limit of " + 
                     conf.maxRequestSize + " bytes");
             }
-            // Note that contentLength may be negative or null.
         }
+    }
 
-        // Skip preamble if any ---
-
+    private void skipPreamble() 
+        throws IOException {
         for (;;) {
             String line = readLine();
             if (line == null) {
@@ -116,22 +143,204 @@ import javax.servlet.http.HttpServletRequest;
                 break;
             }
         }
+    }
 
-        // Read parts ---
+    // ------------------------------------------------------------------------
+    // Streaming mode: file parts are not stored, their contents are read 
+    // directly from the request body.
+    // ------------------------------------------------------------------------
 
+    /**
+     * Starts parsing in streaming mode. Returns the first part, or 
+     * <code>null</code> if there is none.
+     */
+    public PartImpl startStreaming() 
+        throws IllegalStateException, IOException {
+        checkRequestSize();
+        skipPreamble();
+        ended = false;
+        return readStreamedPart();
+    }
+
+    /**
+     * Returns the next part in streaming mode, or <code>null</code> at the 
+     * end of the request body. The contents of the previous part, if not 
+     * consumed, are skipped.
+     * <p>A field (not a file) is read into memory and added to the 
+     * parameters. The contents of a file part must be read through its 
+     * input stream before calling this method again.
+     */
+    public PartImpl nextStreamedPart() 
+        throws IllegalStateException, IOException {
+        if (ended) {
+            return null;
+        }
+        if (streamedPart != null) {
+            streamedPart.skipAll();
+            streamedPart = null;
+        }
+
+        String line = readLine();
+        if (line == null) {
+            throw new IOException("Unexpected end of stream");
+        } 
+        if ("--".equals(line)) {
+            ended = true;
+            return null;
+        } 
+        if (line.length() > 0) {
+            throw new IOException("\"" + (delimiter + line)
+                                  + "\", malformed delimiter");
+        }
+        return readStreamedPart();
+    }
+
+    /**
+     * Leaves streaming mode: the remaining parts are parsed and stored as 
+     * in {@link #parse}. The contents of the current file part, if any, must
+     * not have been read.
+     */
+    public void parseRemaining() 
+        throws IllegalStateException, IOException {
         try {
-            readParts();
+            storeStreamedPart();
+            while (!ended) {
+                String line = readLine();
+                if (line == null) {
+                    throw new IOException("Unexpected end of stream");
+                } 
+                if ("--".equals(line)) {
+                    ended = true;
+                } else if (line.length() > 0) {
+                    throw new IOException("\"" + (delimiter + line)
+                                          + "\", malformed delimiter");
+                } else {
+                    readPart();
+                }
+            }
         } catch (IllegalStateException e) {
             abortParts();
-
             throw e;
         } catch (IOException e) {
             abortParts();
-
             throw e;
         }
     }
 
+    /**
+     * Streaming mode: reads and stores the contents of the current file part
+     * as in {@link #parse}, in memory or in a temporary file. Its contents 
+     * must not have been read through its input stream.
+     */
+    private void storeStreamedPart() 
+        throws IllegalStateException, IOException {
+        if (streamedPart == null) {
+            return;
+        }
+        PartImpl part = streamedPart.part;
+        streamedPart = null;
+        part.setStream(null);
+        readPartBody(part);
+        part.finish();
+    }
+
+    private PartImpl readStreamedPart() 
+        throws IllegalStateException, IOException {
+        PartImpl part = readPartHeaders();
+        parts.add(part);
+        if (!part.isFile()) {
+            readPartBody(part);
+            part.finish();
+            addPart(params, part);
+        } else {
+            addPart(params, part);
+            streamedPart = new PartInputStream(part);
+            part.setStream(streamedPart);
+        }
+        return part;
+    }
+
+    /**
+     * Reads the contents of a part from the request body, until the 
+     * delimiter.
+     */
+    private final class PartInputStream extends InputStream {
+        private final PartImpl part;
+        private final byte[] one = new byte[1];
+        private boolean atEnd;
+
+        PartInputStream(PartImpl part) {
+            this.part = part;
+        }
+
+        public int read() 
+            throws IOException {
+            int count;
+            while ((count = read(one, 0, 1)) == 0)
+                ;
+            return (count < 0)? -1 : (one[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) 
+            throws IOException {
+            if (atEnd) {
+                return -1;
+            }
+            if (len <= 0) {
+                return 0;
+            }
+            int endOfPartLength = endOfPart.length;
+            for (;;) {
+                int want = Math.min(byteBuffer.length, len + endOfPartLength);
+                int byteCount = in.read(byteBuffer, 0, want);
+                if (byteCount < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+
+                int endOfPartIndex = 
+                    findEndOfPart(endOfPart, byteBuffer, byteCount);
+                int available = (endOfPartIndex < 0)? byteCount : endOfPartIndex;
+                boolean complete = endOfPartIndex >= 0 && 
+                    endOfPartIndex + endOfPartLength <= byteCount;
+
+                int count = Math.min(available, len);
+                System.arraycopy(byteBuffer, 0, b, off, count);
+                if (complete && count == available) {
+                    // Done with this part: keep what follows the delimiter.
+                    int unreadFirst = endOfPartIndex + endOfPartLength;
+                    in.unread(byteBuffer, unreadFirst, byteCount - unreadFirst);
+                    atEnd = true;
+                } else {
+                    in.unread(byteBuffer, count, byteCount - count);
+                }
+                part.count(count);
+
+                if (count > 0 || atEnd) {
+                    return (count > 0)? count : -1;
+                }
+                // Partial end of part at the beginning of the buffer: 
+                // read more to decide.
+            }
+        }
+
+        /**
+         * Does not close the request body, skips the rest of the part.
+         */
+        public void close() 
+            throws IOException {
+            skipAll();
+        }
+
+        void skipAll() 
+            throws IOException {
+            byte[] skipped = new byte[8192];
+            while (read(skipped, 0, skipped.length) >= 0)
+                ;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
     private String readLine() 
         throws IOException {
         int prevB = -1;
@@ -197,6 +406,19 @@ import javax.servlet.http.HttpServletRequest;
 
     private final void readPart()
         throws IllegalStateException, IOException {
+        PartImpl part = readPartHeaders();
+        parts.add(part);
+
+        readPartBody(part);
+
+        // Add part to the results ---
+
+        part.finish();
+        addPart(params, part);
+    }
+
+    private PartImpl readPartHeaders()
+        throws IOException {
         // Collect headers ---
 
         headers.clear();
@@ -234,10 +456,12 @@ import javax.servlet.http.HttpServletRequest;
 
         // Create part ---
 
-        PartImpl part = new PartImpl(headers, defaultCharset, conf.maxFileSize, 
-                                     conf.fileSizeThreshold, uploadDir);
-        parts.add(part);
+        return new PartImpl(headers, defaultCharset, conf.maxFileSize, 
+                            conf.fileSizeThreshold, uploadDir);
+    }
 
+    private void readPartBody(PartImpl part)
+        throws IllegalStateException, IOException {
         // Collect bytes ---
 
         int byteBufferSize = byteBuffer.length;
@@ -280,11 +504,6 @@ import javax.servlet.http.HttpServletRequest;
                 }
             }
         }
-
-        // Add part to the results ---
-
-        part.finish();
-        addPart(params, part);
     }
 
     private static int findEndOfPart(final byte[] endOfPart, 
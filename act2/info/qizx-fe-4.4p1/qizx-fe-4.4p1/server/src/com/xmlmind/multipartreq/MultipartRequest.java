@@ -70,6 +70,13 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
      */
     private PartImpl[] parts;
 
+    /**
+     * Streaming mode: parser, parts seen so far, rank of next part.
+     */
+    private MultipartParser streamParser;
+    private ArrayList<PartImpl> streamedParts;
+    private int nextPart;
+
     // ------------------------------------------------------------------------
 
     /**
@@ -193,6 +200,79 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
         return parameterMap;
     }
 
+    /**
+     * Starts reading the parts in streaming mode: only the fields (parts 
+     * which are not files) preceding the first file part are read. 
+     * The following parts are obtained in order through {@link #nextPart}.
+     * The contents of a file part are read directly from the request body
+     * by its input stream: they are not stored in memory or in a temporary 
+     * file.
+     * <p>Parameters are available as soon as the corresponding field has 
+     * been read.
+     *
+     * @exception IOException if an I/O error occurred
+     * @exception ServletException if this request is not of type 
+     * <tt>multipart/form-data</tt> 
+     * @exception IllegalStateException if the request body is larger 
+     * than <tt>maxRequestSize</tt>
+     */
+    public void startStreaming()
+        throws IOException, ServletException {
+        if (!isMultipartRequest) {
+            throw new ServletException("Not a \"multipart/form-data\" request");
+        }
+
+        Hashtable<String, String[]> paramMap = 
+            new Hashtable<String, String[]>();
+        streamedParts = new ArrayList<PartImpl>();
+        streamParser = 
+            new MultipartParser((HttpServletRequest) getRequest(),
+                                multipartConfig, paramMap, streamedParts);
+        parameterMap = paramMap;
+        nextPart = 0;
+
+        PartImpl part = streamParser.startStreaming();
+        while (part != null && !part.isFile()) {
+            part = streamParser.nextStreamedPart();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the parts are read in streaming mode.
+     */
+    public boolean isStreaming() {
+        return streamParser != null && parts == null;
+    }
+
+    /**
+     * Streaming mode: returns the next part, or <code>null</code> if there 
+     * are no more parts. The contents of the previous file part, if not 
+     * consumed, are skipped.
+     */
+    public Part nextPart()
+        throws IOException {
+        if (nextPart < streamedParts.size()) {
+            return streamedParts.get(nextPart++);
+        }
+        PartImpl part = streamParser.nextStreamedPart();
+        nextPart = streamedParts.size();
+        return part;
+    }
+
+    /**
+     * Leaves streaming mode: the remaining parts are read and stored as in 
+     * normal mode. Must be called before reading any file part.
+     */
+    public void finishParts()
+        throws IOException {
+        if (!isStreaming()) {
+            return;
+        }
+        streamParser.parseRemaining();
+        parts = new PartImpl[streamedParts.size()];
+        streamedParts.toArray(parts);
+    }
+
     private void parseParts() {
         try {
             doParseParts();
@@ -235,6 +315,14 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
      */
     public Part getPart(String name)
         throws IOException, ServletException {
+        if (isStreaming()) {
+            for (PartImpl part : streamedParts) {
+                if (part.getName().equals(name)) {
+                    return part;
+                }
+            }
+            return null;
+        }
         if (parts == null) {
             doParseParts();
         }
@@ -267,6 +355,9 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
     public Part[] getParts()
         throws IOException, ServletException
     {
+        if (isStreaming()) {
+            return streamedParts.toArray(new PartImpl[streamedParts.size()]);
+        }
         if (parts == null) {
             doParseParts();
         }
@@ -41,6 +41,7 @@ import java.util.Map;
     private String filename;
 
     private long size;
+    private InputStream source; // streaming mode
     private OutputStream stream;
     private byte[] bytes;
     private File file;
@@ -202,6 +203,34 @@ import java.util.Map;
         }
     }
 
+    /**
+     * Returns <code>true</code> if this part is a file field.
+     */
+    public boolean isFile() {
+        return filename != null;
+    }
+
+    /**
+     * Streaming mode: the contents are read from the request body through 
+     * specified stream, instead of being stored.
+     */
+    public void setStream(InputStream source) {
+        this.source = source;
+        bytes = (source == null)? NO_BYTES : null;
+    }
+
+    /**
+     * Streaming mode: accounts for bytes read.
+     */
+    public void count(int inByteCount) 
+        throws IOException {
+        size += inByteCount;
+        if (maxFileSize > 0 && size > maxFileSize) {
+            throw new IOException("the size of part \"" + name + 
+                                  "\" exceeds limit " + maxFileSize);
+        }
+    }
+
     public String asParameterValue() 
         throws UnsupportedEncodingException {
         if (filename != null) {
@@ -346,7 +375,9 @@ import java.util.Map;
 
     public InputStream getInputStream()
         throws IOException {
-        if (bytes != null) {
+        if (source != null) {
+            return source;
+        } else if (bytes != null) {
             return new ByteArrayInputStream(bytes);
         } else {
             if (file.isFile()) {
@@ -435,5 +466,8 @@ import java.util.Map;
                                       "\" stored in file \"" + file + "\"");
             }
         }
+        if (file == null && bytes != null) {
+            bytes = NO_BYTES; // Release contents stored in memory.
+        }
     }
 }
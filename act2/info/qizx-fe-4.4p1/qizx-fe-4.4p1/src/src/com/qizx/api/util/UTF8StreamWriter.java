@@ -0,0 +1,191 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.api.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.IdentityHashMap;
+
+/**
+ * Buffered output in UTF-8 to a byte stream: characters are encoded directly
+ * into a byte buffer written to the stream when full, instead of passing
+ * through the buffer of a BufferedWriter, then an OutputStreamWriter and its
+ * CharsetEncoder.
+ * <p>
+ * Extends BufferedWriter so that it can be returned by
+ * {@link XMLSerializer#getOutput()}; the inherited buffer is not used.
+ */
+class UTF8StreamWriter extends BufferedWriter
+{
+    private static final String LINE_SEPARATOR =
+        System.getProperty("line.separator");
+    private static final int MAX_NAMES = 2048;
+
+    private OutputStream output;
+    private byte[] buffer = new byte[8192];
+    private int ptr;
+    private char highSurrogate; // pending, or 0
+    // encoded names, by identity of interned QName or prefix:
+    private IdentityHashMap<Object, byte[]> names =
+        new IdentityHashMap<Object, byte[]>();
+
+    UTF8StreamWriter(OutputStream output)
+    {
+        super(new StringWriter(0), 1);
+        this.output = output;
+    }
+
+    public void write(int c)
+        throws IOException
+    {
+        if (ptr > buffer.length - 4)
+            flushBuffer();
+        if (c < 0x80 && highSurrogate == 0)
+            buffer[ptr++] = (byte) c;
+        else
+            encode((char) c);
+    }
+
+    public void write(char[] chars, int offset, int length)
+        throws IOException
+    {
+        for (int end = offset + length; offset < end;) {
+            if (ptr > buffer.length - 4)
+                flushBuffer();
+            // ASCII run: no test but the buffer limit
+            byte[] buf = buffer;
+            int p = ptr, limit = Math.min(end, offset + buf.length - 4 - p);
+            if (highSurrogate == 0)
+                for (char c; offset < limit && (c = chars[offset]) < 0x80; ++offset)
+                    buf[p++] = (byte) c;
+            ptr = p;
+            if (offset < end && ptr <= buffer.length - 4)
+                encode(chars[offset++]);
+        }
+    }
+
+    public void write(String s, int offset, int length)
+        throws IOException
+    {
+        for (int end = offset + length; offset < end;) {
+            if (ptr > buffer.length - 4)
+                flushBuffer();
+            byte[] buf = buffer;
+            int p = ptr, limit = Math.min(end, offset + buf.length - 4 - p);
+            if (highSurrogate == 0)
+                for (char c; offset < limit && (c = s.charAt(offset)) < 0x80; ++offset)
+                    buf[p++] = (byte) c;
+            ptr = p;
+            if (offset < end && ptr <= buffer.length - 4)
+                encode(s.charAt(offset++));
+        }
+    }
+
+    /**
+     * Writes a name (local part of an element or attribute name, or prefix),
+     * encoded once and cached with an interned key.
+     */
+    void writeName(Object key, String name)
+        throws IOException
+    {
+        if (highSurrogate != 0) {    // unpaired: like the text paths
+            if (ptr > buffer.length - 4)
+                flushBuffer();
+            highSurrogate = 0;
+            buffer[ptr++] = '?';
+        }
+        byte[] bytes = names.get(key);
+        if (bytes == null) {
+            bytes = name.getBytes("UTF-8");
+            if (names.size() >= MAX_NAMES)
+                names.clear();
+            names.put(key, bytes);
+        }
+        if (ptr + bytes.length > buffer.length) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                output.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, ptr, bytes.length);
+        ptr += bytes.length;
+    }
+
+    public void newLine()
+        throws IOException
+    {
+        write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length());
+    }
+
+    public void flush()
+        throws IOException
+    {
+        flushBuffer();
+        output.flush();
+    }
+
+    public void close()
+        throws IOException
+    {
+        if (output == null)
+            return;
+        if (highSurrogate != 0) {    // unpaired
+            highSurrogate = 0;
+            write('?');
+        }
+        flush();
+        output.close();
+        output = null;
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if (ptr > 0)
+            output.write(buffer, 0, ptr);
+        ptr = 0;
+    }
+
+    // assumes room for 4 bytes
+    private void encode(char c)
+    {
+        byte[] buf = buffer;
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int code = Character.toCodePoint(high, c);
+                buf[ptr++] = (byte) (0xf0 | (code >> 18));
+                buf[ptr++] = (byte) (0x80 | ((code >> 12) & 0x3f));
+                buf[ptr++] = (byte) (0x80 | ((code >> 6) & 0x3f));
+                buf[ptr++] = (byte) (0x80 | (code & 0x3f));
+                return;
+            }
+            buf[ptr++] = '?';   // unpaired: like the JDK encoder
+        }
+        if (c < 0x80)
+            buf[ptr++] = (byte) c;
+        else if (c < 0x800) {
+            buf[ptr++] = (byte) (0xc0 | (c >> 6));
+            buf[ptr++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else if (Character.isHighSurrogate(c))
+            highSurrogate = c;
+        else if (Character.isLowSurrogate(c))
+            buf[ptr++] = '?';
+        else {
+            buf[ptr++] = (byte) (0xe0 | (c >> 12));
+            buf[ptr++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[ptr++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+}
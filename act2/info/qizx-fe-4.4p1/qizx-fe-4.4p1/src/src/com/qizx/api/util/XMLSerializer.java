@@ -31,6 +31,7 @@ import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An implementation of XMLPushStream that serializes into XML, XHTML, HTML or
@@ -164,7 +165,9 @@ public class XMLSerializer extends XMLPushStreamBase
     private int depth;
     private boolean atBol = true;
 
-    private CharsetEncoder encoder;
+    private EncodableChars encodable;   // null if all chars can be encoded
+    private char[] runBuffer;   // for runs of CharSequence other than String
+    private char[] charRef = new char[10];  // "&#1114111;"
 
 
     /**
@@ -227,9 +230,13 @@ public class XMLSerializer extends XMLPushStreamBase
     public void setOutput(OutputStream output, String encoding)
         throws DataModelException
     {
-        Writer w = (encoding == null)? new OutputStreamWriter(output)
-                   : new OutputStreamWriter(output, Charset.forName(encoding));
-        out = new BufferedWriter(w);
+        if (encoding != null && Charset.forName(encoding).name().equals(UTF8))
+            out = new UTF8StreamWriter(output); // no CharsetEncoder
+        else {
+            Writer w = (encoding == null)? new OutputStreamWriter(output)
+                    : new OutputStreamWriter(output, Charset.forName(encoding));
+            out = new BufferedWriter(w);
+        }
         // there can be some discrepancies in encoding names:
         setEncoding(encoding);
     }
@@ -288,7 +295,7 @@ public class XMLSerializer extends XMLPushStreamBase
     {
         if(encoding == null) {
             this.encoding = UTF8;
-            encoder = null;
+            encodable = null;
             return;
         }
         // canonicalize encoding name:
@@ -298,8 +305,7 @@ public class XMLSerializer extends XMLPushStreamBase
             canon = encoding;
         this.encoding = canon;
         try {
-            Charset charset = Charset.forName(canon);
-            encoder = charset.newEncoder();
+            encodable = EncodableChars.forCharset(Charset.forName(canon));
         }
         catch (IllegalArgumentException e) {
             throw new DataModelException(e.getMessage());
@@ -715,16 +721,35 @@ public class XMLSerializer extends XMLPushStreamBase
         String ns = name.getNamespaceURI(); // interned
         if (ns == NamespaceContext.XML) { // needs not be declared
             print("xml:");
-            print(name.getLocalPart());
+            printName(name, name.getLocalPart());
         }
         else {
             String prefix = nsContext.getPrefix(ns);
 
             if (prefix != null && prefix.length() > 0) {
-                print(prefix);
+                printName(prefix, prefix);
                 print(':');
             }
-            print(name.getLocalPart());
+            printName(name, name.getLocalPart());
+        }
+    }
+
+    // names are pre-encoded by the UTF-8 output (key is interned)
+    private void printName(Object key, String name)
+    {
+        if (!(out instanceof UTF8StreamWriter)) {
+            print(name);
+            return;
+        }
+        if (maxVolume > 0 && volume > maxVolume)
+            return;
+        try {
+            if (!dummy)
+                ((UTF8StreamWriter) out).writeName(key, name);
+            volume += name.length();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
@@ -760,8 +785,7 @@ public class XMLSerializer extends XMLPushStreamBase
         try {
             int length = s.length();
             if (!dummy)
-                for (int i = 0; i < length; i++)
-                    out.write(s.charAt(i));
+                writeRun(s, 0, length);
             volume += length;
         }
         catch (Exception e) {
@@ -786,9 +810,10 @@ public class XMLSerializer extends XMLPushStreamBase
         throws IOException
     {
         if(XMLUtil.isSurrogateChar(c)) {
-            // TODO
+            // isolated surrogate: not allowed in XML, dropped
+            // (pairs are detected by the callers, see printPair)
         }
-        else if(encoder != null && !encoder.canEncode(c)) {
+        else if(c >= 128 && !isEncodable(c)) {
             print("&#"); 
             print(Integer.toString(c));
             print(";");
@@ -797,6 +822,92 @@ public class XMLSerializer extends XMLPushStreamBase
             out.write(c);
     }
     
+    // print(char) for a surrogate pair
+    private void print(char high, char low)
+    {
+        if (maxVolume > 0 && volume > maxVolume || dummy)
+            return;
+        try {
+            printPair(high, low);
+            volume += 2;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Outputs a supplementary char as is if the encoding is Unicode,
+    // otherwise as a character reference.
+    private void printPair(char high, char low)
+        throws IOException
+    {
+        if (encodable == null) {
+            out.write(high);
+            out.write(low);
+        }
+        else
+            printCharRef(Character.toCodePoint(high, low));
+    }
+
+    // writes &#code; without allocation
+    private void printCharRef(int code)
+        throws IOException
+    {
+        char[] ref = charRef;
+        int p = ref.length;
+        ref[--p] = ';';
+        do {
+            ref[--p] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+        while (code > 0);
+        ref[--p] = '#';
+        ref[--p] = '&';
+        out.write(ref, p, ref.length - p);
+    }
+
+    // true if s[i] and s[i + 1] are a valid surrogate pair
+    private static boolean isPairAt(CharSequence s, int i)
+    {
+        return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+               && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+
+    private boolean isEncodable(char c)
+    {
+        return encodable == null || encodable.canEncode(c);
+    }
+
+    // true if c can be output as is, escaping being done for ASCII chars
+    private boolean isPlain(char c, boolean[] escaped)
+    {
+        if (c < 128)
+            return !escaped[c];
+        return !XMLUtil.isSurrogateChar(c)
+               && (encodable == null || encodable.canEncode(c));
+    }
+
+    // writes s[start .. end[ without escaping
+    private void writeRun(CharSequence s, int start, int end)
+        throws IOException
+    {
+        if (start >= end)
+            return;
+        if (s instanceof String) {
+            out.write((String) s, start, end - start);
+            return;
+        }
+        if (runBuffer == null)
+            runBuffer = new char[1024];
+        while (start < end) {
+            int length = Math.min(end - start, runBuffer.length);
+            for (int i = 0; i < length; i++)
+                runBuffer[i] = s.charAt(start + i);
+            out.write(runBuffer, 0, length);
+            start += length;
+        }
+    }
+
     /**
      * Outputs an end-of-line.
      */
@@ -859,13 +970,18 @@ public class XMLSerializer extends XMLPushStreamBase
 
         public void outputText(CharSequence s)
         {
-            // optimize:
             if (maxVolume > 0 && volume > maxVolume || dummy)
                 return;
             volume += s.length();
             try {
+                // write runs of chars that need no escaping at once
+                int run = 0;
                 for (int i = 0, L = s.length(); i < L; i++) {
                     char c = s.charAt(i);
+                    if (isPlain(c, TEXT_ESCAPED))
+                        continue;
+                    writeRun(s, run, i);
+                    run = i + 1;
                     switch (c) {
                     case '\n':
                         println();
@@ -883,13 +999,16 @@ public class XMLSerializer extends XMLPushStreamBase
                         out.write("&gt;");
                         break;
                     default:
-                        if(c <= 127)
-                            out.write(c);   // never encoded
+                        if (isPairAt(s, i)) {
+                            printPair(c, s.charAt(++i));
+                            run = i + 1;
+                        }
                         else
                             printChar(c);
                         break;
                     }
                 }
+                writeRun(s, run, s.length());
             }
             catch (Exception e) {
                 e.printStackTrace();
@@ -897,6 +1016,61 @@ public class XMLSerializer extends XMLPushStreamBase
         }
 
         public void outputAttr(String s, QName attrName)
+        {
+            if (maxVolume > 0) {
+                outputLimitedAttr(s);
+                return;
+            }
+            if (dummy)
+                return;
+            volume += s.length();
+            try {
+                int run = 0;
+                for (int i = 0, L = s.length(); i < L; i++) {
+                    char c = s.charAt(i);
+                    if (isPlain(c, ATTR_ESCAPED))
+                        continue;
+                    writeRun(s, run, i);
+                    run = i + 1;
+                    switch (c) {
+                    case '\t':
+                        out.write("&#9;");
+                        break;
+                    case '\n':
+                        out.write("&#10;");
+                        break;
+                    case '\r':
+                        out.write("&#13;");
+                        break;
+                    case '&':
+                        out.write("&amp;");
+                        break;
+                    case '<':
+                        out.write("&lt;");
+                        break;
+                    case '"':
+                        out.write("&quot;");
+                        break;
+                    default:
+                        if (isPairAt(s, i)) {
+                            printPair(c, s.charAt(++i));
+                            run = i + 1;
+                        }
+                        else
+                            printChar(c);
+                        break;
+                    }
+                }
+                writeRun(s, run, s.length());
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // with a volume limit: checked for each char, so that the output is
+        // truncated at the same point as with a char-by-char loop
+        private void outputLimitedAttr(String s)
         {
             for (int i = 0, L = s.length(); i < L; i++) {
                 char c = s.charAt(i);
@@ -920,7 +1094,10 @@ public class XMLSerializer extends XMLPushStreamBase
                     print("&quot;");
                     break;
                 default:
-                    print(c);
+                    if (isPairAt(s, i))
+                        print(c, s.charAt(++i));
+                    else
+                        print(c);
                     break;
                 }
             }
@@ -1051,7 +1228,10 @@ public class XMLSerializer extends XMLPushStreamBase
                     print("&gt;");
                     break;
                 default:
-                    outputHTMLChar(c);
+                    if (isPairAt(s, i))
+                        print(c, s.charAt(++i));
+                    else
+                        outputHTMLChar(c);
                     break;
                 }
             }
@@ -1085,7 +1265,10 @@ public class XMLSerializer extends XMLPushStreamBase
                     print("&#34;");
                     break;
                 default:
-                    outputHTMLChar(c);
+                    if (isPairAt(s, i))
+                        print(c, s.charAt(++i));
+                    else
+                        outputHTMLChar(c);
                     prevBlank = false;
                     break;
                 }
@@ -1130,7 +1313,7 @@ public class XMLSerializer extends XMLPushStreamBase
         private void outputHTMLChar(char c)
         {
             // done only if necessary:
-            if(!xhtml && encoder != null && !encoder.canEncode(c)) {
+            if(!xhtml && c >= 128 && !isEncodable(c)) {
                 String eq = (String) HTML4Entities.get(c);
                 if(eq != null) {
                     print("&"); print(eq); print(";");
@@ -1147,6 +1330,75 @@ public class XMLSerializer extends XMLPushStreamBase
         }
     }
 
+    // ASCII chars escaped in text and attribute values (XML method):
+    private static final boolean[] TEXT_ESCAPED = new boolean[128];
+    private static final boolean[] ATTR_ESCAPED = new boolean[128];
+    static {
+        TEXT_ESCAPED['\n'] = TEXT_ESCAPED['\r'] = true;
+        TEXT_ESCAPED['&'] = TEXT_ESCAPED['<'] = TEXT_ESCAPED['>'] = true;
+        ATTR_ESCAPED['\t'] = ATTR_ESCAPED['\n'] = ATTR_ESCAPED['\r'] = true;
+        ATTR_ESCAPED['&'] = ATTR_ESCAPED['<'] = ATTR_ESCAPED['"'] = true;
+    }
+
+    /**
+     * Set of the chars that a charset can encode, replacing calls to
+     * CharsetEncoder.canEncode. Computed lazily by pages of 256 chars and
+     * shared by all serializers.
+     */
+    static final class EncodableChars
+    {
+        private static final ConcurrentHashMap<String, EncodableChars> tables =
+            new ConcurrentHashMap<String, EncodableChars>();
+
+        private final Charset charset;
+        // immutable pages: can be published without synchronization
+        private final Page[] pages = new Page[256];
+
+        private EncodableChars(Charset charset)
+        {
+            this.charset = charset;
+        }
+
+        /**
+         * Returns the table of a charset, or null if the charset can
+         * encode any char (Unicode encodings).
+         */
+        static EncodableChars forCharset(Charset charset)
+        {
+            String name = charset.name();
+            if (name.startsWith("UTF-") || name.equals("GB18030"))
+                return null;
+            EncodableChars table = tables.get(name);
+            if (table == null) {
+                tables.putIfAbsent(name, new EncodableChars(charset));
+                table = tables.get(name);
+            }
+            return table;
+        }
+
+        boolean canEncode(char c)
+        {
+            Page page = pages[c >> 8];
+            if (page == null)
+                pages[c >> 8] = page = new Page(charset.newEncoder(), c & 0xff00);
+            return (page.bits[(c & 0xff) >> 6] & (1L << c)) != 0;
+        }
+
+        private static final class Page
+        {
+            final long[] bits = new long[4];
+
+            Page(CharsetEncoder encoder, int base)
+            {
+                for (int c = 0; c < 256; c++) {
+                    char ch = (char) (base + c);
+                    if (!XMLUtil.isSurrogateChar(ch) && encoder.canEncode(ch))
+                        bits[c >> 6] |= 1L << c;
+                }
+            }
+        }
+    }
+
     static CharTable HTML4Entities = new CharTable();
     static {
         HTML4Entities.put('&', "amp");
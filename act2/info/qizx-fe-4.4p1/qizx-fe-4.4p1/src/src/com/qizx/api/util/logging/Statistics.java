@@ -10,18 +10,24 @@ package com.qizx.api.util.logging;
 
 import com.qizx.util.basic.Util;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Table of all statistics related to a module (eg LibraryManager).
+ * <p>
+ * Statistics are updated concurrently without locking: counters are striped
+ * over several cells and summed when collected, so that threads updating the
+ * same statistic do not contend on a single memory location.
  */
 public class Statistics
 {    
-    private HashMap<String, Statistics.Base> sets;
+    private ConcurrentHashMap<String, Statistics.Base> sets;
     
     public Statistics()
     {
-        sets = new HashMap<String, Statistics.Base>();
+        sets = new ConcurrentHashMap<String, Statistics.Base>();
     }
 
     public boolean perLibBreakdown()
@@ -38,8 +44,10 @@ public class Statistics
     {
         Statistics.Base set = sets.get(id);
         if(set == null) {
-            sets.put(id, set = new Statistics.Counter(id, family, description));
-            
+            set = new Statistics.Counter(id, family, description);
+            Statistics.Base old = sets.putIfAbsent(id, set);
+            if (old != null)
+                set = old;
         }
         return (Statistics.Counter) set;
     }
@@ -49,8 +57,10 @@ public class Statistics
     {
         Statistics.Base set = sets.get(id);
         if(set == null) {
-            sets.put(id, set = new Statistics.Activity(id, family, description));
-            
+            set = new Statistics.Activity(id, family, description);
+            Statistics.Base old = sets.putIfAbsent(id, set);
+            if (old != null)
+                set = old;
         }
         return (Statistics.Activity) set;
     }
@@ -59,8 +69,10 @@ public class Statistics
     {
         Statistics.Base set = sets.get(id);
         if(set == null) {
-            sets.put(id, set = new Statistics.DataFlow(id, family, description));
-            
+            set = new Statistics.DataFlow(id, family, description);
+            Statistics.Base old = sets.putIfAbsent(id, set);
+            if (old != null)
+                set = old;
         }
         return (Statistics.DataFlow) set;
     }
@@ -69,8 +81,10 @@ public class Statistics
     {
         Statistics.Base set = sets.get(id);
         if(set == null) {
-            sets.put(id, set = new Statistics.Cache(id, family, description));
-            
+            set = new Statistics.Cache(id, family, description);
+            Statistics.Base old = sets.putIfAbsent(id, set);
+            if (old != null)
+                set = old;
         }
         return (Statistics.Cache) set;
     }
@@ -115,6 +129,12 @@ public class Statistics
         "storage|tables|*\thit_ratio",  "",   // cannot sum!      
     };
 
+    /**
+     * Prefix of the types of latency percentiles: latency_p50, latency_p95,
+     * latency_p99, latency_max. Values are in microseconds.
+     */
+    public static final String LATENCY = "latency_";
+
     public static String decorate(long value, String type)
     {
         if ("time".equals(type))
@@ -123,6 +143,8 @@ public class Statistics
             return (value / 10486 / 100.0) + " Mb";
         if ("hit_ratio".equals(type))
             return value + " %";
+        if (type != null && type.startsWith(LATENCY))   // microseconds
+            return (value / 1000.0) + " ms";
         return Long.toString(value);
     }
 
@@ -145,12 +167,13 @@ public class Statistics
         public abstract void expandTo(Statistic.Map stats);
     }
 
+
     /**
      * Most basic statistic: a counter.
      */
     public static class Counter extends Base
     {
-        public long count;
+        protected final StripedLong count = new StripedLong();
         
         public Counter(String id, String family, String description)
         {
@@ -159,38 +182,84 @@ public class Statistics
     
         public void count()
         {
-            ++count;
+            count.add(1);
+        }
+
+        public long getCount()
+        {
+            return count.sum();
         }
     
         public void expandTo(Statistic.Map stats)
         {
-            stats.cumulate(this, "count", count);
+            stats.cumulate(this, "count", getCount());
         }
     }
 
     /**
-     * Simple set of stats for an activity: # of occurrences, time spent
+     * Simple set of stats for an activity: # of occurrences, time spent,
+     * and distribution of the duration of occurrences (latency percentiles).
      */
     public static class Activity extends Counter
     {
-        public long time;
+        protected final StripedLong time = new StripedLong();
+        protected final LatencyHistogram latencies;
+        private volatile boolean timed;
     
         public Activity(String id, String family, String description)
+        {
+            this(id, family, description, true);
+        }
+
+        protected Activity(String id, String family, String description,
+                           boolean withLatencies)
         {
             super(id, family, description);
-            time = -1;
+            latencies = withLatencies ? new LatencyHistogram() : null;
         }
     
-        public synchronized void addTime(long nanos)
+        public void addTime(long nanos)
+        {
+            count.add(1);
+            addNanos(nanos);
+        }
+
+        /**
+         * Returns the total time spent, in nanoseconds.
+         */
+        public long getTime()
+        {
+            return time.sum();
+        }
+
+        /**
+         * Returns the distribution of durations, or null if not measured.
+         */
+        public LatencyHistogram getLatencies()
+        {
+            return latencies;
+        }
+
+        protected void addNanos(long nanos)
+        {
+            time.add(nanos);
+            if (!timed)
+                timed = true;
+            if (latencies != null)
+                latencies.record(nanos);
+        }
+
+        protected boolean isTimed()
         {
-            ++count;
-            time += nanos;
+            return timed;
         }
     
         public void expandTo(Statistic.Map stats)
         {
-            stats.cumulate(this, "count", count);
-            stats.cumulate(this, "time", Util.nanoToMillis(time));
+            stats.cumulate(this, "count", getCount());
+            stats.cumulate(this, "time", Util.nanoToMillis(getTime()));
+            if (latencies != null)
+                latencies.expandTo(this, stats);
         }
     }
 
@@ -199,33 +268,40 @@ public class Statistics
      */
     public static class DataFlow extends Activity
     {
-        public long size;
+        protected final StripedLong size = new StripedLong();
+        private volatile boolean sized;
     
         public DataFlow(String id, String family, String description)
         {
-            super(id, family, description);
-            size = -1;
+            // low-level IO: no latency distribution
+            super(id, family, description, false);
         }
     
-        public synchronized void add(long bytes, long nanos)
-        {
-            ++count;
-            if (size <= 0)
-                size = bytes;
-            else
-                size += bytes;  // data
-            if (time <= 0)
-                time = nanos;
-            else
-                time += nanos;
+        public void add(long bytes, long nanos)
+        {
+            count.add(1);
+            addBytes(bytes);
+            addNanos(nanos);
+        }
+
+        public long getSize()
+        {
+            return sized ? size.sum() : -1;
+        }
+
+        protected void addBytes(long bytes)
+        {
+            size.add(bytes);
+            if (!sized)
+                sized = true;
         }
     
         public void expandTo(Statistic.Map stats)
         {
-            stats.cumulate(this, "count", count);
-            if (size >= 0)
-                stats.cumulate(this, "size", size);
-            stats.cumulate(this, "time", Util.nanoToMillis(time));
+            stats.cumulate(this, "count", getCount());
+            if (sized)
+                stats.cumulate(this, "size", size.sum());
+            stats.cumulate(this, "time", Util.nanoToMillis(getTime()));
         }
     }
 
@@ -236,46 +312,211 @@ public class Statistics
     {
         public static String USED = "used_memory";
 
-        public long misses;
+        protected final StripedLong misses = new StripedLong();
+        private volatile long usedMemory;
         
         public Cache(String id, String family, String description)
         {
             super(id, family, description);
-            size = -1;
-            time = -1;
+            usedMemory = -1;
+        }
+    
+        // current memory footprint, if the cache measures it:
+        public void setUsedMemory(long bytes)
+        {
+            usedMemory = bytes;
+        }
+
+        public long getUsedMemory()
+        {
+            return usedMemory;
+        }
+
+        public long getMisses()
+        {
+            return misses.sum();
         }
     
         public void addAccess(boolean hit)
         {
-            ++ count;
+            count.add(1);
             if(!hit)
-                ++ misses;
+                misses.add(1);
         }
     
         // cached IO miss:
         public void addMiss(long bytes, long nanos)
         {
-            ++ misses;
-            if (size <= 0)
-                size = bytes;
-            else
-                size += bytes;  // data
-            if (time <= 0)
-                time = nanos;
-            else
-                time += nanos;
+            misses.add(1);
+            addBytes(bytes);
+            addNanos(nanos);
         }
     
         public void expandTo(Statistic.Map stats)
         {
+            long count = getCount(), misses = getMisses();
             stats.cumulate(this, "hit+miss", count);
+            long size = getSize();
             if (size >= 0)
                 stats.cumulate(this, "size", size);
-            if (time >= 0)
-                stats.cumulate(this, "time", Util.nanoToMillis(time));
+            if (isTimed())
+                stats.cumulate(this, "time", Util.nanoToMillis(getTime()));
+            if (usedMemory >= 0)
+                stats.cumulate(this, USED, usedMemory);
             long ratio = (count == 0)? 0 : ((count - misses) * 100) / count;
             //if (count > 0)
             stats.cumulate(this, "hit_ratio", ratio);
         }
     }
+
+    /**
+     * A sum updated concurrently without locking.
+     * <p>
+     * Each thread adds to one of several cells, selected by thread id; the
+     * cells are spaced so that they do not share a cache line. The value is
+     * obtained by summing the cells, so it can be slightly behind concurrent
+     * updates.
+     */
+    public static final class StripedLong
+    {
+        private static final int PAD = 8;   // longs per cache line
+        private static final int STRIPES = stripeCount();
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        public void add(long value)
+        {
+            int cell = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            cells.addAndGet(cell * PAD, value);
+        }
+
+        public long sum()
+        {
+            long sum = 0;
+            for (int c = 0; c < STRIPES; c++)
+                sum += cells.get(c * PAD);
+            return sum;
+        }
+
+        // power of 2 >= number of processors, bounded to limit footprint
+        private static int stripeCount()
+        {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int count = 1;
+            while (count < cpus && count < 16)
+                count <<= 1;
+            return count;
+        }
+    }
+
+    /**
+     * Distribution of durations, with a bounded relative error, in the
+     * manner of HDR histograms.
+     * <p>
+     * Durations in nanoseconds are counted in buckets: each power of two is
+     * split in 8 sub-buckets, so that a percentile is exact within 12.5%.
+     * Durations above 2^40 ns (about 18 minutes) fall into the last bucket;
+     * the maximum is exact. Recording is lock-free.
+     */
+    public static final class LatencyHistogram
+    {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXP = 40;
+        private static final long MAX_TRACKED = (1L << (MAX_EXP + 1)) - 1;
+
+        private final AtomicLongArray buckets =
+            new AtomicLongArray((MAX_EXP - SUB_BITS + 2) * SUB_COUNT);
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos)
+        {
+            if (nanos < 0)
+                nanos = 0;
+            buckets.incrementAndGet(bucketOf(Math.min(nanos, MAX_TRACKED)));
+            for (long m; nanos > (m = max.get()); )
+                if (max.compareAndSet(m, nanos))
+                    break;
+        }
+
+        /**
+         * Returns the maximum recorded duration in nanoseconds.
+         */
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        /**
+         * Returns the number of recorded durations.
+         */
+        public long getCount()
+        {
+            long total = 0;
+            for (int b = buckets.length(); --b >= 0; )
+                total += buckets.get(b);
+            return total;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of durations, in
+         * nanoseconds.
+         * @param percentile between 0 and 100
+         * @return 0 if nothing has been recorded
+         */
+        public long getPercentile(double percentile)
+        {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int b = 0; b < counts.length; b++)
+                total += (counts[b] = buckets.get(b));
+            return percentile(counts, total, percentile);
+        }
+
+        void expandTo(Base stat, Statistic.Map stats)
+        {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int b = 0; b < counts.length; b++)
+                total += (counts[b] = buckets.get(b));
+            if (total == 0)
+                return;
+            // in microseconds
+            stats.cumulate(stat, LATENCY + "p50", percentile(counts, total, 50) / 1000);
+            stats.cumulate(stat, LATENCY + "p95", percentile(counts, total, 95) / 1000);
+            stats.cumulate(stat, LATENCY + "p99", percentile(counts, total, 99) / 1000);
+            stats.cumulate(stat, LATENCY + "max", max.get() / 1000);
+        }
+
+        private long percentile(long[] counts, long total, double percentile)
+        {
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            if (rank < 1)
+                rank = 1;
+            int b = 0;
+            for (long seen = counts[0]; seen < rank && b < counts.length - 1; )
+                seen += counts[++b];
+            return Math.min(upperBound(b), max.get());
+        }
+
+        private static int bucketOf(long value)
+        {
+            if (value < SUB_COUNT)
+                return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        private static long upperBound(int bucket)
+        {
+            if (bucket < SUB_COUNT)
+                return bucket;
+            int shift = bucket / SUB_COUNT - 1;
+            long low = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+            return low + (1L << shift) - 1;
+        }
+    }
 }
@@ -0,0 +1,552 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.apps.restapi;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.EvaluationException;
+import com.qizx.api.Expression;
+import com.qizx.api.Item;
+import com.qizx.api.ItemSequence;
+import com.qizx.api.ItemType;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.api.XMLPullStream;
+import com.qizx.api.XMLPushStream;
+import com.qizx.api.admin.Profiling;
+import com.qizx.api.util.PushNodeBuilder;
+import com.qizx.util.io.ByteInputBase;
+import com.qizx.xdm.Conversion;
+import com.qizx.xdm.IQName;
+import com.qizx.xdm.NodePullStream;
+import com.qizx.xdm.XQName;
+import com.qizx.xquery.XQType;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequence of Items decoded from a response of the 'eval' request in binary
+ * format (see {@link BinaryItemWriter}).
+ * <p>
+ * Items are decoded one at a time while moving in the sequence, directly
+ * from the response stream: the first item is available without waiting for
+ * the whole response. Consequently the sequence can only move forward, and
+ * profiling annotations are available only after the last item.
+ */
+class BinaryItemSequence
+    implements ItemSequence
+{
+    private ByteInputBase in;
+    private String cursor;
+    private long count = -1;
+    private long position;
+    private BinaryItem current;
+    private List<Profiling> profiling;
+    // tables of the response:
+    private ArrayList<QName> names = new ArrayList<QName>();
+    private ArrayList<ItemType> types = new ArrayList<ItemType>();
+    private PushNodeBuilder builder;
+    private ArrayList<QName> elements = new ArrayList<QName>();
+
+    BinaryItemSequence(ByteInputBase input)
+        throws EvaluationException
+    {
+        in = input;
+        try {
+            if (in.getVint() != BinaryItemWriter.MAGIC
+                || in.getVint() != BinaryItemWriter.VERSION)
+                throw new EvaluationException("invalid binary item response");
+            cursor = in.getString();
+            if (cursor.length() == 0)
+                cursor = null;
+            if (in.getByte() != BinaryItemWriter.COUNT_NONE)
+                count = in.getVlong();
+        }
+        catch (IOException e) {
+            throw wrap(e);
+        }
+    }
+
+    /**
+     * Returns the identifier of the result cursor, or null.
+     */
+    String getCursor()
+    {
+        return cursor;
+    }
+
+    public boolean moveToNextItem()
+        throws EvaluationException
+    {
+        current = null;
+        if (in == null)
+            return false;
+        try {
+            switch (in.getByte()) {
+            case BinaryItemWriter.ITEM:
+                current = readItem();
+                ++position;
+                return true;
+            case BinaryItemWriter.PROFILING:
+                readProfiling();
+                break;
+            case BinaryItemWriter.END:
+                break;
+            default:
+                throw new EvaluationException("invalid binary item response");
+            }
+            close();
+            return false;
+        }
+        catch (IOException e) {
+            throw wrap(e);
+        }
+        catch (DataModelException e) {
+            throw wrap(e);
+        }
+    }
+
+    public Item getCurrentItem()
+    {
+        return current;
+    }
+
+    public long countItems()
+        throws EvaluationException
+    {
+        return count;
+    }
+
+    public long estimatedDocumentCount()
+    {
+        return count;
+    }
+
+    public long estimatedDocumentCount(int minimalPosition)
+        throws EvaluationException
+    {
+        return count;
+    }
+
+    public int skip(int count)
+        throws EvaluationException
+    {
+        long start = position;
+        for (; --count >= 0;) {
+            if (!moveToNextItem())
+                break;
+        }
+        return (int) (position - start);
+    }
+
+    /**
+     * Moves forward: the sequence cannot move backwards.
+     */
+    public void moveTo(long position)
+        throws EvaluationException
+    {
+        if (position < this.position)
+            throw new EvaluationException("cannot move backwards in a "
+                                          + "streamed sequence");
+        skip((int) Math.min(position - this.position, Integer.MAX_VALUE));
+    }
+
+    public long getPosition()
+    {
+        return position;
+    }
+
+    public Expression getExpression()
+    {
+        return null;
+    }
+
+    public double getFulltextScore()
+        throws EvaluationException
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the profiling annotations once the end of the sequence has
+     * been reached, otherwise null.
+     */
+    public List<Profiling> getProfilingAnnotations()
+    {
+        return profiling;
+    }
+
+    public void close()
+    {
+        try {
+            if (in != null)
+                in.close();
+        }
+        catch (IOException e) {
+        }
+        in = null;
+    }
+
+    // ------------- current item: ----------------------------------------
+
+    public ItemType getType()
+        throws EvaluationException
+    {
+        return current().getType();
+    }
+
+    public boolean getBoolean()
+        throws EvaluationException
+    {
+        return current().getBoolean();
+    }
+
+    public float getFloat()
+        throws EvaluationException
+    {
+        return current().getFloat();
+    }
+
+    public double getDouble()
+        throws EvaluationException
+    {
+        return current().getDouble();
+    }
+
+    public long getInteger()
+        throws EvaluationException
+    {
+        return current().getInteger();
+    }
+
+    public BigDecimal getDecimal()
+        throws EvaluationException
+    {
+        return current().getDecimal();
+    }
+
+    public String getString()
+        throws EvaluationException
+    {
+        return current().getString();
+    }
+
+    public QName getQName()
+        throws EvaluationException
+    {
+        return current().getQName();
+    }
+
+    public boolean isNode()
+    {
+        return current != null && current.isNode();
+    }
+
+    public Node getNode()
+        throws EvaluationException
+    {
+        return current().getNode();
+    }
+
+    public XMLPullStream exportNode()
+        throws EvaluationException
+    {
+        return current().exportNode();
+    }
+
+    public void export(XMLPushStream writer)
+        throws QizxException
+    {
+        current().export(writer);
+    }
+
+    public Object getObject()
+        throws QizxException
+    {
+        return current().getObject();
+    }
+
+    private BinaryItem current()
+        throws EvaluationException
+    {
+        if (current == null)
+            throw new EvaluationException("no current item");
+        return current;
+    }
+
+    // ------------- decoding: --------------------------------------------
+
+    private BinaryItem readItem()
+        throws IOException, DataModelException
+    {
+        ItemType type;
+        int ref = in.getVint();
+        if (ref == 0) {
+            type = XQType.findItemType(in.getString());
+            types.add(type);
+        }
+        else
+            type = types.get(ref - 1);
+
+        Object value;
+        switch (in.getByte()) {
+        case BinaryItemWriter.V_STRING:
+            value = in.getString();
+            break;
+        case BinaryItemWriter.V_INTEGER:
+            long code = in.getVlong();
+            value = ((code & 1) != 0) ? -(code >>> 1) : (code >>> 1);
+            break;
+        case BinaryItemWriter.V_LONG:
+            value = in.getLong();
+            break;
+        case BinaryItemWriter.V_DOUBLE:
+            value = in.getDouble();
+            break;
+        case BinaryItemWriter.V_FLOAT:
+            value = Float.intBitsToFloat(in.getInt());
+            break;
+        case BinaryItemWriter.V_BOOLEAN:
+            value = in.getByte() != 0;
+            break;
+        case BinaryItemWriter.V_QNAME:
+            String uri = in.getString(), prefix = in.getString();
+            value = XQName.get(uri, in.getString(), prefix);
+            break;
+        case BinaryItemWriter.V_NODE:
+            value = readNode();
+            break;
+        default:
+            throw new DataModelException("invalid binary item response");
+        }
+        return new BinaryItem(type, value);
+    }
+
+    private Node readNode()
+        throws IOException, DataModelException
+    {
+        if (builder == null)
+            builder = new PushNodeBuilder();
+        else
+            builder.reset();
+        for (;;) {
+            switch (in.getByte()) {
+            case BinaryItemWriter.NODE_END:
+                return builder.reap();
+            case BinaryItemWriter.DOC_START:
+                builder.putDocumentStart();
+                break;
+            case BinaryItemWriter.DOC_END:
+                builder.putDocumentEnd();
+                break;
+            case BinaryItemWriter.ELEMENT_START:
+                QName name = readName();
+                elements.add(name);
+                builder.putElementStart(name);
+                for (int n = in.getVint(); n > 0; --n)
+                    builder.putNamespace(in.getString(), in.getString());
+                for (int a = in.getVint(); a > 0; --a)
+                    builder.putAttribute(readName(), in.getString(), null);
+                break;
+            case BinaryItemWriter.ELEMENT_END:
+                builder.putElementEnd(elements.remove(elements.size() - 1));
+                break;
+            case BinaryItemWriter.TEXT:
+                builder.putText(in.getString());
+                break;
+            case BinaryItemWriter.COMMENT:
+                builder.putComment(in.getString());
+                break;
+            case BinaryItemWriter.PI:
+                builder.putProcessingInstruction(in.getString(),
+                                                 in.getString());
+                break;
+            case BinaryItemWriter.ATTRIBUTE:
+                builder.putAttribute(readName(), in.getString(), null);
+                break;
+            default:
+                throw new DataModelException("invalid binary item response");
+            }
+        }
+    }
+
+    private QName readName()
+        throws IOException
+    {
+        int ref = in.getVint();
+        if (ref > 0)
+            return names.get(ref - 1);
+        String uri = in.getString();
+        QName name = IQName.get(uri, in.getString());
+        names.add(name);
+        return name;
+    }
+
+    private void readProfiling()
+        throws IOException
+    {
+        profiling = new ArrayList<Profiling>();
+        for (int n = in.getVint(); n > 0; --n) {
+            String type = in.getString();
+            int cnt = in.getVint() - 1;
+            int start = in.getVint() - 1;
+            int end = in.getVint() - 1;
+            String message = (in.getByte() != 0) ? in.getString() : null;
+            profiling.add(new Profiling(type, cnt, start, end, message));
+        }
+    }
+
+    private static EvaluationException wrap(Exception e)
+    {
+        return new EvaluationException(e.getMessage(), e);
+    }
+
+    /**
+     * Decoded item: the value is a String, Long, Double, Float, Boolean,
+     * QName or Node.
+     */
+    static class BinaryItem
+        implements Item
+    {
+        private ItemType type;
+        private Object value;
+
+        BinaryItem(ItemType type, Object value)
+        {
+            this.type = type;
+            this.value = value;
+        }
+
+        public ItemType getType()
+        {
+            return type;
+        }
+
+        public boolean getBoolean()
+            throws EvaluationException
+        {
+            if (value instanceof Boolean)
+                return (Boolean) value;
+            return Conversion.toBoolean(getString());
+        }
+
+        public float getFloat()
+            throws EvaluationException
+        {
+            if (value instanceof Number)
+                return ((Number) value).floatValue();
+            return Conversion.toFloat(getString());
+        }
+
+        public double getDouble()
+            throws EvaluationException
+        {
+            if (value instanceof Number)
+                return ((Number) value).doubleValue();
+            return Conversion.toDouble(getString());
+        }
+
+        public long getInteger()
+            throws EvaluationException
+        {
+            if (value instanceof Long)
+                return (Long) value;
+            return Conversion.toInteger(getString());
+        }
+
+        public BigDecimal getDecimal()
+            throws EvaluationException
+        {
+            if (value instanceof Long)
+                return Conversion.toDecimal((Long) value);
+            return Conversion.toDecimal(getString(), true);
+        }
+
+        public String getString()
+            throws EvaluationException
+        {
+            if (value instanceof String)
+                return (String) value;
+            if (value instanceof Long)
+                return Conversion.toString((Long) value);
+            if (value instanceof Double)
+                return Conversion.toString((Double) value);
+            if (value instanceof Float)
+                return Conversion.toString((Float) value);
+            if (value instanceof Boolean)
+                return Conversion.toString((Boolean) value);
+            if (value instanceof QName) {
+                QName name = (QName) value;
+                String prefix = name.getPrefix();
+                return (prefix == null || prefix.length() == 0)
+                    ? name.getLocalPart() : prefix + ':' + name.getLocalPart();
+            }
+            try {
+                return ((Node) value).getStringValue();
+            }
+            catch (DataModelException e) {
+                throw wrap(e);
+            }
+        }
+
+        public QName getQName()
+            throws EvaluationException
+        {
+            if (value instanceof QName)
+                return (QName) value;
+            String pname = getString();
+            try {
+                if (IQName.extractPrefix(pname).length() > 0)
+                    throw new EvaluationException("cannot resolve QName "
+                                                  + pname);
+                return XQName.get("", IQName.extractLocalName(pname), "");
+            }
+            catch (DataModelException e) {
+                throw wrap(e);
+            }
+        }
+
+        public boolean isNode()
+        {
+            return value instanceof Node;
+        }
+
+        public Node getNode()
+            throws EvaluationException
+        {
+            if (!isNode())
+                throw new EvaluationException("item is not a node");
+            return (Node) value;
+        }
+
+        public XMLPullStream exportNode()
+            throws EvaluationException
+        {
+            return new NodePullStream(getNode());
+        }
+
+        public void export(XMLPushStream writer)
+            throws QizxException
+        {
+            if (isNode())
+                writer.putNodeCopy((Node) value, 0);
+            else
+                writer.putText(getString());
+        }
+
+        public Object getObject()
+            throws QizxException
+        {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.apps.restapi;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Item;
+import com.qizx.api.ItemSequence;
+import com.qizx.api.ItemType;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.api.admin.Profiling;
+import com.qizx.util.io.ByteOutputStream;
+import com.qizx.xdm.XMLPushStreamBase;
+import com.qizx.xquery.XQType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes a sequence of Items in the binary format of the 'eval' request
+ * (format "binary"), read by {@link BinaryItemSequence}.
+ * <p>
+ * Atomic values are written natively (integers, doubles, floats, booleans,
+ * QNames), other atomic types as strings. Nodes are written as a stream of
+ * tokens; node names and item types are written in full on first occurrence
+ * only, then referenced by their rank in a table local to the response.
+ * <p>
+ * Layout of a response:
+ * <pre>
+ * MAGIC VERSION cursor count-kind [count]
+ * ( ITEM type-ref value | ITEM type-ref node-tokens NODE_END )*
+ * [ PROFILING count (type count+1 start+1 end+1 message)* ]
+ * END
+ * </pre>
+ */
+public class BinaryItemWriter extends XMLPushStreamBase
+{
+    /** MIME type of the binary format. */
+    public static final String CONTENT_TYPE = "application/x-qizx-items";
+
+    static final int MAGIC = 0x5158; // "QX"
+    static final int VERSION = 1;
+
+    // kinds of item count in the header:
+    public static final int COUNT_NONE = 0;
+    public static final int COUNT_EXACT = 1;
+    public static final int COUNT_ESTIMATED = 2;
+
+    // top-level tokens:
+    static final int END = 0;
+    static final int ITEM = 1;
+    static final int PROFILING = 2;
+
+    // kinds of item values:
+    static final int V_STRING = 0;
+    static final int V_INTEGER = 1; // signed Vlong
+    static final int V_LONG = 2;    // large integer: 8 bytes
+    static final int V_DOUBLE = 3;
+    static final int V_FLOAT = 4;
+    static final int V_BOOLEAN = 5;
+    static final int V_QNAME = 6;   // uri, prefix, local name
+    static final int V_NODE = 7;
+
+    // node tokens:
+    static final int NODE_END = 0;
+    static final int DOC_START = 1;
+    static final int DOC_END = 2;
+    static final int ELEMENT_START = 3;
+    static final int ELEMENT_END = 4;
+    static final int TEXT = 5;
+    static final int COMMENT = 6;
+    static final int PI = 7;
+    static final int ATTRIBUTE = 8; // standalone attribute node
+
+    private ByteOutputStream out;
+    private HashMap<QName, Integer> names = new HashMap<QName, Integer>();
+    private HashMap<String, Integer> types = new HashMap<String, Integer>();
+
+    public BinaryItemWriter(OutputStream output)
+    {
+        out = new ByteOutputStream(output);
+        out.setUTF8Strings(true);   // read only by BinaryItemSequence
+    }
+
+    /**
+     * Writes the header of the response.
+     * @param cursor identifier of a result cursor, or null
+     * @param countKind COUNT_NONE, COUNT_EXACT or COUNT_ESTIMATED
+     * @param count item count (ignored with COUNT_NONE)
+     */
+    public void putHeader(String cursor, int countKind, long count)
+        throws DataModelException
+    {
+        try {
+            out.putVint(MAGIC);
+            out.putVint(VERSION);
+            out.putString(cursor == null ? "" : cursor);
+            out.putByte(countKind);
+            if (countKind != COUNT_NONE)
+                out.putVlong(count);
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    /**
+     * Writes an item (for example the current item of an ItemSequence).
+     */
+    public void putItem(Item item)
+        throws QizxException
+    {
+        ItemType type = item.getType();
+        try {
+            out.putByte(ITEM);
+            putType(type.toString());
+            if (item.isNode()) {
+                out.putByte(V_NODE);
+                reset();
+                item.export(this);
+                out.putByte(NODE_END);
+            }
+            else
+                putValue(item, type);
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    private void putValue(Item item, ItemType type)
+        throws QizxException, IOException
+    {
+        if (type.isSubTypeOf(XQType.INTEGER)) {
+            long value = item.getInteger();
+            if (value > -(1L << 62) && value < (1L << 62)) {
+                out.putByte(V_INTEGER);
+                // sign in low bit:
+                out.putVlong(value < 0 ? (-value << 1) | 1 : value << 1);
+            }
+            else {
+                out.putByte(V_LONG);
+                out.putLong(value);
+            }
+        }
+        else if (type.isSubTypeOf(XQType.DOUBLE)) {
+            out.putByte(V_DOUBLE);
+            out.putDouble(item.getDouble());
+        }
+        else if (type.isSubTypeOf(XQType.FLOAT)) {
+            out.putByte(V_FLOAT);
+            out.putInt(Float.floatToIntBits(item.getFloat()));
+        }
+        else if (type.isSubTypeOf(XQType.BOOLEAN)) {
+            out.putByte(V_BOOLEAN);
+            out.putByte(item.getBoolean() ? 1 : 0);
+        }
+        else if (type.isSubTypeOf(XQType.QNAME)) {
+            // getQName of a sequence rejects xs:QName items: use the item
+            if (item instanceof ItemSequence)
+                item = ((ItemSequence) item).getCurrentItem();
+            QName name = item.getQName();
+            out.putByte(V_QNAME);
+            out.putString(name.getNamespaceURI());
+            out.putString(name.getPrefix());
+            out.putString(name.getLocalPart());
+        }
+        else {
+            out.putByte(V_STRING);
+            out.putString(item.getString());
+        }
+    }
+
+    /**
+     * Writes profiling annotations, after the last item.
+     */
+    public void putProfiling(List<Profiling> profiling)
+        throws DataModelException
+    {
+        try {
+            out.putByte(PROFILING);
+            out.putVint(profiling.size());
+            for (Profiling p : profiling) {
+                out.putString(p.getType());
+                // all can be -1 (unknown):
+                out.putVint(p.getCount() + 1);
+                out.putVint(p.startPoint() + 1);
+                out.putVint(p.endPoint() + 1);
+                putOptString(p.getMessage());
+            }
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    /**
+     * Writes the end mark and flushes the output.
+     */
+    public void putEnd()
+        throws DataModelException
+    {
+        try {
+            out.putByte(END);
+            out.flush();
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    public boolean putDocumentStart()
+        throws DataModelException
+    {
+        boolean ok = super.putDocumentStart();
+        putToken(DOC_START);
+        return ok;
+    }
+
+    public void putDocumentEnd()
+        throws DataModelException
+    {
+        if (elementStarted)
+            flushElementStart(false);
+        putToken(DOC_END);
+        super.putDocumentEnd();
+    }
+
+    protected void flushElementStart(boolean empty)
+        throws DataModelException
+    {
+        if (!elementStarted)
+            return;
+        completeNameMappings();
+        elementStarted = false;
+        try {
+            out.putByte(ELEMENT_START);
+            putName(elementName);
+            // namespaces defined on this element:
+            int mark = nsContext.mark(), size = nsContext.size();
+            out.putVint(size - mark);
+            for (int n = mark; n < size; n++) {
+                out.putString(nsContext.getPrefix(n));
+                String ns = nsContext.getNamespaceURI(n);
+                out.putString(ns == null ? "" : ns);
+            }
+            out.putVint(attrCnt);
+            for (int a = 0; a < attrCnt; a++) {
+                putName(attrNames[a]);
+                out.putString(attrValues[a]);
+            }
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    public void putElementEnd(QName name)
+        throws DataModelException
+    {
+        if (elementStarted)
+            flushElementStart(true);
+        putToken(ELEMENT_END);
+        super.putElementEnd(name);
+    }
+
+    public void putAttribute(QName name, String value, String type)
+        throws DataModelException
+    {
+        if (elementStarted) {
+            super.putAttribute(name, value, type);
+            return;
+        }
+        // attribute node as item:
+        try {
+            out.putByte(ATTRIBUTE);
+            putName(name);
+            out.putString(value);
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    public void putText(String value)
+        throws DataModelException
+    {
+        if (value == null || value.length() == 0)
+            return;
+        if (elementStarted)
+            flushElementStart(false);
+        try {
+            out.putByte(TEXT);
+            out.putString(value);
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    public void putProcessingInstruction(String target, String contents)
+        throws DataModelException
+    {
+        if (elementStarted)
+            flushElementStart(false);
+        try {
+            out.putByte(PI);
+            out.putString(target);
+            out.putString(contents);
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    public void putComment(String contents)
+        throws DataModelException
+    {
+        if (elementStarted)
+            flushElementStart(false);
+        try {
+            out.putByte(COMMENT);
+            out.putString(contents);
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    public void flush()
+        throws DataModelException
+    {
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private void putToken(int token)
+        throws DataModelException
+    {
+        try {
+            out.putByte(token);
+        }
+        catch (IOException e) {
+            throw ioError(e);
+        }
+    }
+
+    // rank + 1 in the table, or 0 followed by the name on first occurrence
+    private void putName(QName name)
+        throws IOException
+    {
+        Integer rank = names.get(name);
+        if (rank != null) {
+            out.putVint(rank + 1);
+            return;
+        }
+        names.put(name, names.size());
+        out.putVint(0);
+        out.putString(name.getNamespaceURI());
+        out.putString(name.getLocalPart());
+    }
+
+    private void putType(String typeName)
+        throws IOException
+    {
+        Integer rank = types.get(typeName);
+        if (rank != null) {
+            out.putVint(rank + 1);
+            return;
+        }
+        types.put(typeName, types.size());
+        out.putVint(0);
+        out.putString(typeName);
+    }
+
+    private void putOptString(String s)
+        throws IOException
+    {
+        out.putByte(s == null ? 0 : 1);
+        if (s != null)
+            out.putString(s);
+    }
+
+    private static DataModelException ioError(IOException e)
+    {
+        return new DataModelException("IO error", e);
+    }
+}
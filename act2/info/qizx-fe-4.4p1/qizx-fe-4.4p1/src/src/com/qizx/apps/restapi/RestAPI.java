@@ -16,6 +16,7 @@ public interface RestAPI
     String FORMAT_ITEMS = "items"; // wrapped items
     String FORMAT_XML = "xml"; // no wrapping, XML serialisation
     String FORMAT_HTML = "html"; // no wrapping, XHTML serialisation
+    String FORMAT_BINARY = "binary"; // typed items, see BinaryItemWriter
     
     String COUNTING_EXACT = "exact";
     String COUNTING_ESTIMATE = "estimated";
@@ -23,6 +24,9 @@ public interface RestAPI
     
     String PROFILE = "profile";
     
+    String CURSOR_NEW = "new"; // opens a result cursor in 'eval'
+    String CURSOR_HEADER = "X-Qizx-Cursor";
+    
     String EXPERT_LEVEL = "expert";
     
     QName NAME = IQName.get("name");
@@ -31,6 +35,7 @@ public interface RestAPI
     QName T_COUNT = IQName.get("total-count");
     QName E_COUNT = IQName.get("estimated-count");
     QName PROFILING = IQName.get("profiling");
+    QName CURSOR = IQName.get("cursor");
 
     String[] CONFIGURATION_FIELDS = {
         "Name", "Category", "Level", "Type", "Value", "DefaultValue", "Description"
@@ -10,6 +10,7 @@ package com.qizx.apps.restapi;
 
 import com.qizx.api.*;
 import com.qizx.api.admin.Profiling;
+import com.qizx.api.util.PushNodeBuilder;
 import com.qizx.api.util.XMLSerializer;
 import com.qizx.apps.util.Property;
 import com.qizx.apps.util.TabularData;
@@ -38,6 +39,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * HTTP client for the Qizx REST API.
  * <p>Provides most of functionalities of {@link Library}, with a few
@@ -163,7 +169,7 @@ public class RestAPIConnection extends RESTClient
      * Sends an evaluates an XQuery script, returns the response as a sequence
      * of XQuery Items.
      * @param query an XQuery script.
-     * @param format a String with value "items", "XML" or "HTML".
+     * @param format a String with value "items", "XML", "HTML" or "binary".
      * @return a sequence of Items.
      * @throws RESTException
      * @throws EvaluationException
@@ -197,10 +203,16 @@ public class RestAPIConnection extends RESTClient
      * Sends an evaluates an XQuery script, returns the response as a page
      * of XQuery Items. Most general request.
      * @param query an XQuery script.
-     * @param format a String with value "items", "XML" or "HTML".
+     * @param format a String with value "items", "XML", "HTML" or "binary".
+     * With "binary", items are decoded from the response stream while moving
+     * in the sequence (profiling annotations are then available at the end).
+     * With "items" and "binary", the response stream stays open until the
+     * end of the sequence is reached: call close() on the sequence to stop
+     * reading earlier.
      * @param encoding encoding used for the response
      * @param maxTime number of milliseconds the query is allowed to run. Ignored if <= 0.
-     * @param counting counting method (applicable to format "items" only): value
+     * @param counting counting method (applicable to formats "items" and
+     * "binary" only): value
      * can be: <ul>
      * <li>"exact" (the default) for an exact count (can be costly to evaluate),
      * <li>"estimated" in which case the count value is similar to
@@ -222,13 +234,104 @@ public class RestAPIConnection extends RESTClient
         try {
             Response resp = rawEval(query, format, encoding, maxTime, counting,
                                     mode, itemCount, firstItem);
-            return new SeqImpl(resp.getNode(), RestAPI.PROFILE.equalsIgnoreCase(mode));
+            boolean profiling = RestAPI.PROFILE.equalsIgnoreCase(mode);
+            // items are streamed, other formats are parsed at once:
+            if (FORMAT_BINARY.equalsIgnoreCase(format))
+                return new BinaryItemSequence(resp.getByteInputStream());
+            if (FORMAT_ITEMS.equalsIgnoreCase(format))
+                return new StreamSeqImpl(resp.getStream(), profiling);
+            return new SeqImpl(resp.getNode(), profiling);
         }
         catch (DataModelException e) {
             throw wrap(e);
         }
     }
 
+    /**
+     * Sends an evaluates an XQuery script, returns the first page of Items and
+     * opens a result cursor on the server. Next pages are obtained through
+     * {@link #nextPage(String, int)} with the identifier returned by
+     * {@link #getCursor(ItemSequence)}.
+     * <p>Items are not counted: see
+     * {@link #evalWithCursor(String, String, String, int)}.
+     * <p>The response is read while moving in the sequence: call close() on
+     * the sequence to stop reading before its end.
+     * @param query an XQuery script.
+     * @param mode null in normal execution, or "profile"
+     * @param pageSize number of items per page.
+     * @return a sequence of Items.
+     * @throws RESTException
+     * @throws EvaluationException
+     */
+    public ItemSequence evalWithCursor(String query, String mode, int pageSize)
+        throws RESTException, EvaluationException
+    {
+        return evalWithCursor(query, mode, COUNTING_NONE, pageSize);
+    }
+
+    /**
+     * Same as {@link #evalWithCursor(String, String, int)}, with a counting
+     * method for the first page.
+     * @param query an XQuery script.
+     * @param mode null in normal execution, or "profile"
+     * @param counting "none" (no count), "estimated", or "exact": beware
+     * that an exact count evaluates the whole sequence, which a cursor is
+     * meant to avoid.
+     * @param pageSize number of items per page.
+     * @return a sequence of Items.
+     * @throws RESTException
+     * @throws EvaluationException
+     */
+    public ItemSequence evalWithCursor(String query, String mode,
+                                       String counting, int pageSize)
+        throws RESTException, EvaluationException
+    {
+        Post req = newPost("eval", null);
+        req.setParameter("format", FORMAT_ITEMS);
+        req.setParameter("query", query);
+        req.setParameter("counting", counting);
+        if (mode != null)
+            req.setParameter("mode", mode);
+        req.setParameter("count", Integer.toString(pageSize));
+        req.setParameter("cursor", CURSOR_NEW);
+        return new StreamSeqImpl(req.sendAndCheck().getStream(),
+                                 RestAPI.PROFILE.equalsIgnoreCase(mode));
+    }
+
+    /**
+     * Returns the next page of Items of a result cursor. The evaluation
+     * resumes where the previous page stopped.
+     * <p>A page shorter than pageSize is the last one: the cursor is then
+     * closed on the server.
+     * @param cursor identifier returned by {@link #getCursor(ItemSequence)}.
+     * @param pageSize number of items per page.
+     * @return a sequence of Items.
+     * @throws RESTException if the cursor is unknown or has expired
+     * @throws EvaluationException
+     */
+    public ItemSequence nextPage(String cursor, int pageSize)
+        throws RESTException, EvaluationException
+    {
+        Post req = newPost("eval", null);
+        req.setParameter("format", FORMAT_ITEMS);
+        req.setParameter("counting", COUNTING_NONE);
+        req.setParameter("count", Integer.toString(pageSize));
+        req.setParameter("cursor", cursor);
+        return new StreamSeqImpl(req.sendAndCheck().getStream(), false);
+    }
+
+    /**
+     * Returns the identifier of the result cursor of a sequence returned by
+     * {@link #evalWithCursor(String, String, int)} or
+     * {@link #nextPage(String, int)}, or null if none.
+     */
+    public static String getCursor(ItemSequence page)
+    {
+        if (page instanceof BinaryItemSequence)
+            return ((BinaryItemSequence) page).getCursor();
+        return (page instanceof SeqImpl) ? ((SeqImpl) page).cursor : null;
+    }
+
     /**
      * Evaluation without parsing of the response (internal use).
      */
@@ -1194,10 +1297,16 @@ public class RestAPIConnection extends RESTClient
     static class SeqImpl extends ItemImpl
         implements ItemSequence
     {
-        private long count;
-        private long position;
+        long count;
+        long position;
         private boolean atFirst;
-        private List<Profiling> profiling;
+        List<Profiling> profiling;
+        String cursor;
+
+        SeqImpl()
+        {
+            super(null);
+        }
     
         public SeqImpl(Node root, boolean profiling)
             throws EvaluationException
@@ -1212,6 +1321,9 @@ public class RestAPIConnection extends RESTClient
                         cntAttr = root.getAttribute(E_COUNT);
                     if (cntAttr != null)
                         count = Long.parseLong(cntAttr.getStringValue());
+                    Node cursorAttr = root.getAttribute(CURSOR);
+                    if (cursorAttr != null)
+                        cursor = cursorAttr.getStringValue();
                     
                     curItem = root.getFirstChild();
                     
@@ -1315,7 +1427,7 @@ public class RestAPIConnection extends RESTClient
             curItem = null;
         }
 
-        private void parseProfiling(Node first)
+        void parseProfiling(Node first)
             throws DataModelException
         {
             profiling = new ArrayList<Profiling>();
@@ -1351,6 +1463,204 @@ public class RestAPIConnection extends RESTClient
         }
     }
     
+    /**
+     * Sequence reading a response in "items" format incrementally with a
+     * pull parser: each item is built when it is reached and released when
+     * moving to the next one, so the first item is available before the end
+     * of the response.
+     * <p>
+     * The HTTP response stream is closed at the end of the sequence or on a
+     * parsing error; a caller that stops reading before the end must call
+     * {@link #close()} to release the connection.
+     */
+    static class StreamSeqImpl extends SeqImpl
+    {
+        private static XMLInputFactory factory;
+
+        private InputStream input;
+        private XMLStreamReader reader;
+        private boolean profilingMode;
+        private PushNodeBuilder builder = new PushNodeBuilder();
+
+        StreamSeqImpl(InputStream input, boolean profiling)
+            throws EvaluationException
+        {
+            this.input = input;
+            profilingMode = profiling;
+            boolean started = false;
+            try {
+                synchronized (StreamSeqImpl.class) {
+                    if (factory == null) {
+                        factory = XMLInputFactory.newInstance();
+                        factory.setProperty(XMLInputFactory.IS_COALESCING,
+                                            Boolean.TRUE);
+                        // no DTD nor external entity in a response:
+                        factory.setProperty(XMLInputFactory.SUPPORT_DTD,
+                                            Boolean.FALSE);
+                        factory.setProperty(
+                            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                            Boolean.FALSE);
+                    }
+                    reader = factory.createXMLStreamReader(input);
+                }
+                // root element: count and cursor
+                if (reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+                    return;
+                String cnt = reader.getAttributeValue(null,
+                                                      T_COUNT.getLocalPart());
+                if (cnt == null)
+                    cnt = reader.getAttributeValue(null,
+                                                   E_COUNT.getLocalPart());
+                if (cnt != null)
+                    count = Long.parseLong(cnt);
+                cursor = reader.getAttributeValue(null, CURSOR.getLocalPart());
+                started = true;
+            }
+            catch (XMLStreamException e) {
+                throw new EvaluationException(e.getMessage(), e);
+            }
+            finally {
+                if (!started)
+                    close();
+            }
+        }
+
+        public boolean moveToNextItem()
+            throws EvaluationException
+        {
+            curItem = null;
+            if (reader == null)
+                return false;
+            try {
+                // next child element of the root, or end of the root
+                int event = reader.next();
+                for (; event != XMLStreamConstants.START_ELEMENT;
+                       event = reader.next())
+                    if (event == XMLStreamConstants.END_ELEMENT
+                        || event == XMLStreamConstants.END_DOCUMENT) {
+                        close();
+                        return false;
+                    }
+                Node node = readElement();
+                if (node.getNodeName() == PROFILING) {
+                    if (profilingMode)
+                        parseProfiling(node);
+                    close();
+                    return false;
+                }
+                setNodeImpl(node);
+                ++position;
+                return true;
+            }
+            catch (XMLStreamException e) {
+                close();
+                throw new EvaluationException(e.getMessage(), e);
+            }
+            catch (DataModelException e) {
+                close();
+                throw wrap(e);
+            }
+        }
+
+        /**
+         * Profiling annotations come after the last item: reads the rest of
+         * the response if necessary.
+         */
+        public List<Profiling> getProfilingAnnotations()
+        {
+            try {
+                if (profilingMode)
+                    while (moveToNextItem())
+                        ;
+            }
+            catch (EvaluationException e) {
+                ; // no annotations
+            }
+            return profiling;
+        }
+
+        public void close()
+        {
+            super.close();
+            if (input == null)
+                return;
+            try {
+                if (reader != null)
+                    reader.close(); // does not close the input
+            }
+            catch (XMLStreamException e) {
+                ;
+            }
+            try {
+                input.close();
+            }
+            catch (IOException e) {
+                ;
+            }
+            reader = null;
+            input = null;
+        }
+
+        // builds the element at the current position of the reader
+        private Node readElement()
+            throws XMLStreamException, DataModelException
+        {
+            builder.reset();
+            int depth = 0;
+            for (;;) {
+                switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    builder.putElementStart(elementName());
+                    int cnt = reader.getNamespaceCount();
+                    for (int n = 0; n < cnt; n++) {
+                        String prefix = reader.getNamespacePrefix(n);
+                        builder.putNamespace(prefix == null ? "" : prefix,
+                                             uri(reader.getNamespaceURI(n)));
+                    }
+                    cnt = reader.getAttributeCount();
+                    for (int a = 0; a < cnt; a++) {
+                        QName name =
+                            IQName.get(uri(reader.getAttributeNamespace(a)),
+                                       reader.getAttributeLocalName(a));
+                        builder.putAttribute(name, reader.getAttributeValue(a),
+                                             null);
+                    }
+                    ++depth;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    builder.putElementEnd(elementName());
+                    if (--depth == 0)
+                        return builder.reap();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    builder.putText(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    builder.putComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    builder.putProcessingInstruction(reader.getPITarget(),
+                                                     reader.getPIData());
+                    break;
+                }
+                reader.next();
+            }
+        }
+
+        private QName elementName()
+        {
+            return IQName.get(uri(reader.getNamespaceURI()),
+                              reader.getLocalName());
+        }
+
+        private static String uri(String uri)
+        {
+            return uri == null ? "" : uri;
+        }
+    }
+    
     class MemberImpl implements LibraryMember
     {
         protected String path;
@@ -184,8 +184,9 @@ public class XQResultView extends XQDataView
         if(sout == null)
             return;
         
+        ItemSequence items = null;
         try {
-            ItemSequence items = connector.execute(cachedQuery, 0, -1);
+            items = connector.execute(cachedQuery, 0, -1);
             for ( ; items.moveToNextItem(); ) {
                 Item item = items.getCurrentItem();
                 if(item.isNode())
@@ -201,6 +202,11 @@ public class XQResultView extends XQDataView
             app.showError(ex);
             return;
         }
+        finally {
+            // releases the HTTP response if the export failed midway
+            if (items != null && !connector.isLocal())
+                items.close();
+        }
     }
 
     /**
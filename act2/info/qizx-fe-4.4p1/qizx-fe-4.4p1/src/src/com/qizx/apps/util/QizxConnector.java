@@ -253,12 +253,20 @@ public class QizxConnector
         throws QizxException, IOException
     {
         ItemSequence iter = execute(query, startItem, count);
-        ArrayList<Item> pageItems = new ArrayList<Item>();
-        for( ; --count >= 0 && iter.moveToNextItem(); ) {
-            pageItems.add(iter.getCurrentItem());
+        try {
+            ArrayList<Item> pageItems = new ArrayList<Item>();
+            for( ; --count >= 0 && iter.moveToNextItem(); ) {
+                pageItems.add(iter.getCurrentItem());
+            }
+            query.profiling = iter.getProfilingAnnotations();
+            return pageItems;
+        }
+        finally {
+            // a remote sequence reads the HTTP response, which stays open
+            // until its end is reached; a local one is kept for next pages
+            if (!isLocal())
+                iter.close();
         }
-        query.profiling = iter.getProfilingAnnotations();
-        return pageItems;
     }
     
     /**
@@ -11,20 +11,31 @@ package com.qizx.util;
 import com.qizx.api.QName;
 import com.qizx.xdm.IQName;
 
-import java.util.*;
+import java.util.ArrayList;
 
 /**
  * Management of a local table of qualified names (for documents or
  * collections).
  * <p>
  * Names are accessed by index or by value (namespace+localname).
+ * <p>
+ * The table is append-only and safe for concurrent use: lookups (find,
+ * getName, and enter when the name is already present) take no lock.
+ * Insertions are serialized: a new entry is stored in its slot before the
+ * size is incremented, and arrays are replaced by complete copies when
+ * they grow, so that a reader sees either the old or the new state.
+ * Lookups read the size first and ignore entries beyond it.
  */
 public class QNameTable
 {
-    // instance variables:
-    protected ArrayList<IQName> names_ = new ArrayList<IQName>(32);
-    protected HashMap<Key, Key> nameMap_ = new HashMap<Key, Key>();
-    protected Key probe = new Key(null, null);
+    private static final int INITIAL_CAPACITY = 64;
+
+    // by rank; copied when full. Valid up to count:
+    private volatile IQName[] names = new IQName[INITIAL_CAPACITY];
+    // open addressing, linear probing; copied when half full:
+    private volatile Entry[] slots = new Entry[2 * INITIAL_CAPACITY];
+    // written last by insertions, read first by lookups:
+    private volatile int count;
 
     /**
      * Searches a name and returns its index in the table. If the name is not
@@ -33,14 +44,15 @@ public class QNameTable
      * @param uri Namespace URI.
      * @param localName
      */
-    public synchronized int enter(String uri, String localName) // BUG FIX
+    public int enter(String uri, String localName)
     {
-        probe.uri = uri;
-        probe.localName = localName;
-        Key key = nameMap_.get(probe);
-        if (key != null)
-            return key.code;
-        return addName(uri, localName);
+        int code = find(uri, localName);
+        if (code >= 0)
+            return code;
+        synchronized (this) {
+            code = find(uri, localName);
+            return (code >= 0) ? code : insert(uri, localName, false);
+        }
     }
 
     public int enter(QName name)
@@ -53,12 +65,21 @@ public class QNameTable
      * 
      * @return the index of the name in the table, or -1 if not found.
      */
-    public synchronized int find(String uri, String localName) // BUG FIX
+    public int find(String uri, String localName)
     {
-        probe.uri = uri;
-        probe.localName = localName;
-        Key key = nameMap_.get(probe);
-        return key != null ? key.code : -1;
+        int size = count;   // volatile read: entries stored before are visible
+        if (size == 0)
+            return -1;
+        Entry[] slots = this.slots;
+        int hash = hash(uri, localName), mask = slots.length - 1;
+        for (int pos = hash & mask; ; pos = (pos + 1) & mask) {
+            Entry e = slots[pos];
+            if (e == null)
+                return -1;
+            // ignore an entry stored by an insertion not yet published
+            if (e.code < size && e.hash == hash && e.matches(uri, localName))
+                return e.code;
+        }
     }
 
     /**
@@ -74,14 +95,9 @@ public class QNameTable
     /**
      * Inserts a name without check (for loading).
      */
-    public int addName(String uri, String localName)
+    public synchronized int addName(String uri, String localName)
     {
-        Key key = new Key(uri, localName);
-        key.code = names_.size();
-        names_.add(IQName.get(uri, localName));
-        nameMap_.put(key, key);
-        // System.out.println("addName "+uri+" "+localName+" "+key.code);
-        return key.code;
+        return insert(uri, localName, true);
     }
 
     /**
@@ -89,9 +105,10 @@ public class QNameTable
      */
     public IQName getName(int rank)
     {
-        if (rank < 0 || rank >= names_.size())
+        if (rank < 0 || rank >= count)
             return null;
-        return names_.get(rank);
+        IQName[] names = this.names;
+        return (rank < names.length) ? names[rank] : null;    // if cleared
     }
 
     /**
@@ -99,7 +116,7 @@ public class QNameTable
      */
     public int size()
     {
-        return names_.size();
+        return count;
     }
 
     /**
@@ -107,50 +124,100 @@ public class QNameTable
      */
     public synchronized void clear()
     {
-        names_.clear();
-        nameMap_ = new HashMap<Key, Key>();
+        names = new IQName[INITIAL_CAPACITY];
+        slots = new Entry[2 * INITIAL_CAPACITY];
+        count = 0;
     }
 
-    public synchronized String[] getNamespaces()
+    public String[] getNamespaces()
     {
-        Vector<String> nst = new Vector<String>();
-        for (int n = names_.size(), ns; --n >= 0;) {
-            String ens = getName(n).getNamespaceURI();
+        int size = count;
+        IQName[] names = this.names;
+        ArrayList<String> nst = new ArrayList<String>();
+        for (int n = Math.min(size, names.length), ns; --n >= 0;) {
+            String ens = names[n].getNamespaceURI();
             for (ns = nst.size(); --ns >= 0;)
-                if (ens == nst.elementAt(ns))
+                if (ens == nst.get(ns))
                     break;
             if (ns < 0)
-                nst.addElement(ens);
+                nst.add(ens);
         }
         return nst.toArray(new String[nst.size()]);
     }
 
-    static class Key
+    // called with lock held. A duplicate replaces the previous entry
+    private int insert(String uri, String localName, boolean replace)
     {
-        String uri;
-        String localName;
+        int code = count;
+        IQName[] names = this.names;
+        if (code == names.length) {
+            IQName[] old = names;
+            names = new IQName[2 * code];
+            System.arraycopy(old, 0, names, 0, code);
+            this.names = names;
+        }
+        names[code] = IQName.get(uri, localName);
 
-        int code;
+        Entry[] slots = this.slots;
+        if (2 * (code + 1) > slots.length) {
+            slots = resize(slots);
+            this.slots = slots;
+        }
+        Entry entry = new Entry(uri, localName, hash(uri, localName), code);
+        int mask = slots.length - 1, pos = entry.hash & mask;
+        for (; slots[pos] != null; pos = (pos + 1) & mask) {
+            Entry e = slots[pos];
+            if (replace && e.hash == entry.hash && e.matches(uri, localName))
+                break;
+        }
+        slots[pos] = entry;
 
-        Key(String uri, String localName)
-        {
-            this.uri = uri;
-            this.localName = localName;
+        count = code + 1;   // publishes the new entry
+        return code;
+    }
+
+    private static Entry[] resize(Entry[] slots)
+    {
+        Entry[] bigger = new Entry[2 * slots.length];
+        int mask = bigger.length - 1;
+        for (int s = 0; s < slots.length; s++) {
+            Entry e = slots[s];
+            if (e == null)
+                continue;
+            int pos = e.hash & mask;
+            while (bigger[pos] != null)
+                pos = (pos + 1) & mask;
+            bigger[pos] = e;
         }
+        return bigger;
+    }
+
+    // mixed so that the low bits used for indexing depend on all bits
+    private static int hash(String uri, String localName)
+    {
+        int hash = (31 * uri.hashCode() + localName.hashCode()) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // immutable: final fields make it safe to read through a data race
+    static final class Entry
+    {
+        final String uri;
+        final String localName;
+        final int hash;
+        final int code;
 
-        public int hashCode()
+        Entry(String uri, String localName, int hash, int code)
         {
-            return uri.hashCode() ^ localName.hashCode();
+            this.uri = uri;
+            this.localName = localName;
+            this.hash = hash;
+            this.code = code;
         }
 
-        public boolean equals(Object other)
+        boolean matches(String uri, String localName)
         {
-            if (other == null || !(other instanceof Key))
-                return false;
-            Key n = (Key) other;
-            // System.out.println("equals {"+uri+"}"+localName+"
-            // to{"+n.uri+"}"+n.localName);
-            return uri.equals(n.uri) && localName.equals(n.localName);
+            return localName.equals(this.localName) && uri.equals(this.uri);
         }
     }
 }
@@ -12,29 +12,47 @@ import com.qizx.util.io.ByteInput;
 import com.qizx.util.io.ByteOutput;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.zip.CRC32;
 
 /**
  * A set of integer values. Implemented as an array of bits.
+ * <p>
+ * Bits are stored in 64-bit words. A rank directory (number of elements
+ * before each block of words) is built on the first call to rank() and
+ * dropped by modifications, so that repeated rank() calls on a stable set
+ * take constant time.
  */
 public class ArrayIntSet extends IntSet
     implements java.io.Serializable
 {
     public static final int HEADER = 0xa1;
-    // use bytes as cell:
-    private static final int SHIFT = 5;
+    // use longs as cell:
+    private static final int SHIFT = 6;
     private static final int USIZE = 1 << SHIFT;  // unit size in bits
     private static final int MASK = USIZE - 1;    // on lower bits of element
-    private static final int ALLSETU = -1;
-    // number of set bits in a hex digit
-    private static final int[] HEXCOUNT = {
-        0, 1, 1, 2, 1, 2, 2, 3, 1, 2, 2, 3, 2, 3, 3, 4
-    };
+    private static final long ALLSETU = -1L;
+    // serialized form: 32-bit units
+    private static final int SAVED_USIZE = 32;
+    // words per block of the rank directory
+    private static final int RANK_SHIFT = 3;
 
     // loBound is the smallest value represented by bits
     private int/*LId*/   loBound; // multiple of USIZE (aligned)
     private int/*LId*/   hiBound; // multiple of USIZE (aligned)
-    private int[] bits;
+    private long[] bits;
+    // number of elements before each block of 2^RANK_SHIFT words, if built
+    private transient int[] rankDirectory;
+
+    // Java serialization: same form as the version with 32-bit words
+    private static final long serialVersionUID = -2801329700117078302L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("loBound", Integer.TYPE),
+        new ObjectStreamField("hiBound", Integer.TYPE),
+        new ObjectStreamField("bits", int[].class)
+    };
 
     //TODO manage several bit groups for very sparse sets
 
@@ -64,7 +82,7 @@ public class ArrayIntSet extends IntSet
             return 0;
         int sz = 0;
         for (int c = bits.length; --c >= 0;) {
-            sz += countBits(bits[c]);
+            sz += Long.bitCount(bits[c]);
         }
         return sz;
     }
@@ -75,23 +93,29 @@ public class ArrayIntSet extends IntSet
         if (bits == null || element < loBound || element >= hiBound)
             return -1;
         int elem = element - loBound;
-        int last = elem / USIZE;
-        int rank = 0;
-        for (int c = 0; c < last; c++) {
-            rank += countBits(bits[c]);
+        int last = elem >> SHIFT;
+        int[] directory = rankDirectory;
+        if (directory == null)
+            rankDirectory = directory = buildRankDirectory();
+        int block = last >> RANK_SHIFT;
+        int rank = directory[block];
+        for (int c = block << RANK_SHIFT; c < last; c++) {
+            rank += Long.bitCount(bits[c]);
         }
-        int mask = (1 << (elem % USIZE)) - 1;
-        return rank + Util.countBitsInMask(bits[last] & mask);
+        long mask = (1L << elem) - 1;   // shift is modulo 64
+        return rank + Long.bitCount(bits[last] & mask);
     }
 
-    private int countBits(int b)
+    private int[] buildRankDirectory()
     {
-        if (b == 0)
-            return 0;
-        return HEXCOUNT[b & 0xf]         + HEXCOUNT[(b >> 4) & 0xf]
-	         + HEXCOUNT[(b >> 8) & 0xf]  + HEXCOUNT[(b >> 12) & 0xf]
-	         + HEXCOUNT[(b >> 16) & 0xf] + HEXCOUNT[(b >> 20) & 0xf]
-	         + HEXCOUNT[(b >> 24) & 0xf] + HEXCOUNT[(b >> 28) & 0xf];
+        int[] directory = new int[((bits.length - 1) >> RANK_SHIFT) + 1];
+        int rank = 0;
+        for (int c = 0; c < bits.length; c++) {
+            if ((c & ((1 << RANK_SHIFT) - 1)) == 0)
+                directory[c >> RANK_SHIFT] = rank;
+            rank += Long.bitCount(bits[c]);
+        }
+        return directory;
     }
 
     public boolean test(int/*LId*/ element)
@@ -99,7 +123,7 @@ public class ArrayIntSet extends IntSet
         if (element < loBound || element >= hiBound)
             return false;
         int/*LId*/ bit = element - loBound;
-        return (bits[(int) (bit >> SHIFT)] & (1 << (bit & MASK))) != 0;
+        return (bits[(int) (bit >> SHIFT)] & (1L << (bit & MASK))) != 0;
     }
 
     /**
@@ -114,23 +138,73 @@ public class ArrayIntSet extends IntSet
         int cell = (int) (bit >> SHIFT);
         bit &= MASK;
         int unitCount = (bits == null)? 0 : bits.length;
-        for (; cell < unitCount; bit = 0, cell++) {
-            int unit = bits[cell] >>> bit;
-        if (unit == 0)
-            continue;
-        for (; bit < USIZE; )
-            if ((unit & 1) != 0)
-                return loBound + cell * USIZE + bit;
-            else if((unit & 0xff) == 0) {
-                bit += 8; 
-                unit >>>= 8;
-            }
-            else {
-                ++ bit;
-                unit >>>= 1;
-            }
+        if (cell >= unitCount)
+            return -1;
+        long unit = bits[cell] & (ALLSETU << bit);
+        while (unit == 0) {
+            if (++cell == unitCount)
+                return -1;
+            unit = bits[cell];
+        }
+        return loBound + cell * USIZE + Long.numberOfTrailingZeros(unit);
+    }
+
+    @Override
+    public int nextBatch(int from, int[] out, int offset, int length)
+    {
+        if (bits == null || length <= 0)
+            return 0;
+        int bit = from - loBound;
+        if (bit < 0)
+            bit = 0;
+        int cell = bit >> SHIFT;
+        if (cell >= bits.length)
+            return 0;
+        int pos = offset, end = offset + length;
+        long unit = bits[cell] & (ALLSETU << bit);
+        for (int base = loBound + cell * USIZE;; base += USIZE) {
+            for (; unit != 0 && pos < end; unit &= unit - 1)
+                out[pos++] = base + Long.numberOfTrailingZeros(unit);
+            if (pos == end || ++cell == bits.length)
+                break;
+            unit = bits[cell];
         }
-        return -1;
+        return pos - offset;
+    }
+
+    /**
+     * Batch iteration on the intersection of two sets, computed word by
+     * word.
+     * @see IntSet#nextBatch(int, int[], int, int)
+     */
+    public static int intersectionBatch(ArrayIntSet set1, ArrayIntSet set2,
+                                        int from, int[] out, int offset, int length)
+    {
+        if (set1.bits == null || set2.bits == null)
+            return 0;
+        int/*LId*/ lo = Math.max(Math.max(set1.loBound, set2.loBound), from);
+        int/*LId*/ hi = Math.min(set1.hiBound, set2.hiBound);
+        int pos = offset, end = offset + length;
+        // bounds are aligned on USIZE in both sets:
+        long mask = ALLSETU << lo;
+        for (int base = lo & ~MASK; base < hi && pos < end; base += USIZE) {
+            long unit = set1.bits[(base - set1.loBound) >> SHIFT]
+                      & set2.bits[(base - set2.loBound) >> SHIFT] & mask;
+            for (; unit != 0 && pos < end; unit &= unit - 1)
+                out[pos++] = base + Long.numberOfTrailingZeros(unit);
+            mask = ALLSETU;
+        }
+        return pos - offset;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer)
+    {
+        if (bits == null)
+            return;
+        for (int cell = 0, base = loBound; cell < bits.length; cell++, base += USIZE)
+            for (long unit = bits[cell]; unit != 0; unit &= unit - 1)
+                consumer.accept(base + Long.numberOfTrailingZeros(unit));
     }
 
     /**
@@ -144,23 +218,15 @@ public class ArrayIntSet extends IntSet
         int cell = (int) (bit >> SHIFT);
         bit &= MASK;
         int unitCount = (bits == null)? 0 : bits.length;
-        for (; cell < unitCount; bit = 0, cell++) {
-            int unit = bits[cell] >>> bit;
-            if (unit == ALLSETU)
-                continue;
-            for (; bit < USIZE; )
-                if ((unit & 1) == 0)
-                    return loBound + cell * USIZE + bit;
-                else if((unit & 0xff) == 0xff) {
-                    bit += 8; 
-                    unit >>>= 8;
-                }
-                else {
-                    ++ bit;
-                    unit >>>= 1;
-                }
+        if (cell >= unitCount)
+            return Math.max(id, hiBound);
+        long unit = ~bits[cell] & (ALLSETU << bit);
+        while (unit == 0) {
+            if (++cell == unitCount)
+                return hiBound;
+            unit = ~bits[cell];
         }
-        return hiBound;
+        return loBound + cell * USIZE + Long.numberOfTrailingZeros(unit);
     }
 
     @Override
@@ -171,7 +237,7 @@ public class ArrayIntSet extends IntSet
 
     public int getMemoryUsed()
     {
-        return (bits == null? 0 : bits.length) * 4 + 40;
+        return (bits == null? 0 : bits.length) * 8 + 40;
     }
     
     public String details()
@@ -193,16 +259,29 @@ public class ArrayIntSet extends IntSet
         extend(unit, unit + USIZE);
         // lowBound may have changed:
         int/*LId*/ bit = element - loBound;
-        bits[(int) (bit >> SHIFT)] |= (1 << (bit & MASK));        
+        bits[(int) (bit >> SHIFT)] |= (1L << (bit & MASK));        
+        rankDirectory = null;
     }
 
     public void add(int/*LId*/ first, int/*LId*/ last)
     {
         if(first < 0)
             throw new IllegalArgumentException("negative element " + first);
-        extend(first & ~MASK, (last + MASK) & ~MASK); // optim
-        for (int/*LId*/ i = first; i <= last; i++)
-            add(i);
+        if (last < first)
+            return;
+        extend(first & ~MASK, (last + USIZE) & ~MASK);
+        int/*LId*/ from = first - loBound, to = last - loBound;
+        int c1 = from >> SHIFT, c2 = to >> SHIFT;
+        long m1 = ALLSETU << from, m2 = ALLSETU >>> (MASK - (to & MASK));
+        if (c1 == c2)
+            bits[c1] |= m1 & m2;
+        else {
+            bits[c1] |= m1;
+            for (int c = c1 + 1; c < c2; c++)
+                bits[c] = ALLSETU;
+            bits[c2] |= m2;
+        }
+        rankDirectory = null;
     }
 
     @Override
@@ -220,10 +299,11 @@ public class ArrayIntSet extends IntSet
     {
         extend(set.loBound, set.hiBound);
         int pos = (int) ((set.loBound - loBound) / USIZE);
-        int[] sbits = set.bits;
+        long[] sbits = set.bits;
         if(sbits != null)
             for (int i = sbits.length; --i >= 0;)
                 bits[i + pos] |= sbits[i];
+        rankDirectory = null;
     }
 
     public void expectedbounds(int lowBound, int highBound)
@@ -236,7 +316,8 @@ public class ArrayIntSet extends IntSet
         if (element < loBound || element >= hiBound)
             return;
         int bit = (int) (element - loBound);
-        bits[bit >> SHIFT] &= ~(1 << (bit & MASK));
+        bits[bit >> SHIFT] &= ~(1L << (bit & MASK));
+        rankDirectory = null;
     }
 
     public void remove(int/*LId*/ first, int/*LId*/ last)
@@ -267,6 +348,7 @@ public class ArrayIntSet extends IntSet
         int diff = (int) ((loBound - set.loBound) / USIZE);
         for(int i = (int) ((lo - loBound) / USIZE); i < up; i++ )
             bits[i] &= ~ set.bits[i + diff];
+        rankDirectory = null;
     }
 
     public void invert(int/*LId*/ element)
@@ -274,12 +356,14 @@ public class ArrayIntSet extends IntSet
         if (element < loBound || element >= hiBound)
             return;
         int/*LId*/ bit = element - loBound;
-        bits[(int) (bit >> SHIFT)] ^= ~(1 << (bit & MASK));
+        bits[(int) (bit >> SHIFT)] ^= (1L << (bit & MASK));
+        rankDirectory = null;
     }
 
     public void clear()
     {
         bits = null;
+        rankDirectory = null;
         hiBound = loBound = 0;
     }
 
@@ -300,7 +384,7 @@ public class ArrayIntSet extends IntSet
         if (reduc < 8 || reduc < 0.15 * len)   // size reduction < 15%
             return;     // not worth the trip
         int newLen = len - reduc;
-        int[] newbits = new int[newLen];
+        long[] newbits = new long[newLen];
         System.arraycopy(bits, rstart, newbits, 0, newLen);
         loBound += rstart * USIZE;
         hiBound = loBound + newLen * USIZE;
@@ -308,6 +392,7 @@ public class ArrayIntSet extends IntSet
         if (hiBound - loBound > bits.length * USIZE)
             Check.bug("badly sized bit array: "+bits.length+" "+loBound+"-"+hiBound);
         bits = newbits;
+        rankDirectory = null;
     }
 
     public IntSet copy()
@@ -316,7 +401,7 @@ public class ArrayIntSet extends IntSet
         clone.loBound = loBound;
         clone.hiBound = hiBound;
         if (bits != null)
-            clone.bits = (int[]) bits.clone();
+            clone.bits = (long[]) bits.clone();
         return clone;
     }
 
@@ -432,14 +517,17 @@ public class ArrayIntSet extends IntSet
         }
     }
 
+    // the serialized form is unchanged: 32-bit units, low bits first
     public void save(ByteOutput output)
         throws IOException
     {
         output.putVint/*LId*/(loBound);
         output.putVint/*LId*/(hiBound - loBound);
         if (bits != null)
-            for (int i = 0, asize = bits.length; i < asize; i++)
-                output.putInt(bits[i]);
+            for (int i = 0, asize = bits.length; i < asize; i++) {
+                output.putInt((int) bits[i]);
+                output.putInt((int) (bits[i] >>> 32));
+            }
     }
 
     @Override
@@ -453,19 +541,68 @@ public class ArrayIntSet extends IntSet
     public void load(ByteInput input)
         throws IOException
     {
-        loBound = input.getVint();
-        int span = input.getVint();
-        hiBound = loBound + span;
-        bits = new int[span / USIZE];
-        for (int i = 0, asize = bits.length; i < asize; i++)
-            bits[i] = input.getInt();
+        int savedLow = input.getVint();
+        int units = input.getVint() / SAVED_USIZE;
+        for (int u = initUnits(savedLow, units), end = u + units; u < end; u++)
+            setUnit(u, input.getInt());
+    }
+
+    private void writeObject(ObjectOutputStream out)
+        throws IOException
+    {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("loBound", loBound);
+        fields.put("hiBound", hiBound);
+        int[] units = null;
+        if (bits != null) {
+            units = new int[2 * bits.length];
+            for (int i = 0; i < bits.length; i++) {
+                units[2 * i] = (int) bits[i];
+                units[2 * i + 1] = (int) (bits[i] >>> 32);
+            }
+        }
+        fields.put("bits", units);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        int[] units = (int[]) fields.get("bits", null);
+        if (units == null) {
+            initUnits(0, 0);
+            return;
+        }
+        int u = initUnits(fields.get("loBound", 0), units.length);
+        for (int i = 0; i < units.length; i++, u++)
+            setUnit(u, units[i]);
+    }
+
+    // Allocates words for 32-bit units starting at savedLow, which older
+    // versions can align on 32 only: returns the rank of the first unit.
+    private int initUnits(int savedLow, int units)
+    {
+        rankDirectory = null;
+        int offset = (savedLow & MASK) / SAVED_USIZE;
+        loBound = savedLow & ~MASK;
+        int cells = (offset + units + 1) / 2;
+        hiBound = loBound + cells * USIZE;
+        bits = (cells == 0)? null : new long[cells];
+        return offset;
+    }
+
+    private void setUnit(int u, int unit)
+    {
+        long value = unit & 0xffffffffL;
+        bits[u >> 1] |= ((u & 1) == 0) ? value : (value << 32);
     }
 
     public static void skip(ByteInput input)
         throws IOException
     {
         input.getVint();
-        int ispan = input.getVint() / USIZE;
+        int ispan = input.getVint() / SAVED_USIZE;
         for (int i = 0; i < ispan; i++)
             input.getInt();
     }
@@ -480,8 +617,9 @@ public class ArrayIntSet extends IntSet
         this.loBound = low;
         this.hiBound = hi;
         int/*LId*/ span = hi - low;
+        rankDirectory = null;
         if(span > 0)
-            bits = new int[(int) (span / USIZE)];
+            bits = new long[(int) (span / USIZE)];
     }
 
     // Extends the storage to given bounds, keeping the elements
@@ -496,7 +634,7 @@ public class ArrayIntSet extends IntSet
             return;
         }
 
-        int oldUnits[] = bits;
+        long oldUnits[] = bits;
         int/*LId*/ oldLow = loBound;
 
         int/*LId*/ newLow = Math.min(loBound, low);
@@ -0,0 +1,1385 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.io.ByteInput;
+import com.qizx.util.io.ByteOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of integer values for sparse sets with dense runs.
+ * <p>
+ * The range of values is split into chunks of 64K values. Only non-empty
+ * chunks are stored, each in the most compact of three containers:
+ * <ul>
+ * <li>a sorted array of 16-bit values, for sparse chunks (up to 4096
+ * elements),
+ * <li>a bitmap of 64K bits, for dense chunks,
+ * <li>a list of intervals, for chunks made of long runs (created by
+ * {@link #optimize()} and by range additions).
+ * </ul>
+ * Set operations proceed chunk by chunk and skip chunks absent from an
+ * operand, so their cost depends on the number of elements rather than on
+ * the range of values, unlike ArrayIntSet.
+ */
+public class ContainerIntSet extends IntSet
+{
+    public static final int HEADER = 0xa3;
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int LOW_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    // maximum size of an array container (more would be larger than a bitmap)
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = CHUNK_SIZE / 64;
+
+    private static final int ARRAY = 1;
+    private static final int BITMAP = 2;
+    private static final int RUNS = 3;
+
+    private int[] keys;     // chunk numbers (high bits), increasing
+    private Container[] containers;     // never empty
+    private int count;      // number of chunks
+
+    /**
+     * Builds an empty set.
+     */
+    public ContainerIntSet()
+    {
+        keys = new int[4];
+        containers = new Container[4];
+    }
+
+    /**
+     * Builds a set containing a single element.
+     */
+    public ContainerIntSet(int firstElement)
+    {
+        this();
+        add(firstElement);
+    }
+
+    public ContainerIntSet(int firstElement, int lastElement)
+    {
+        this();
+        add(firstElement, lastElement);
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (int c = 0; c < count; c++)
+            size += containers[c].cardinality();
+        return size;
+    }
+
+    public boolean test(int element)
+    {
+        if (element < 0)
+            return false;
+        int c = find(element >>> CHUNK_SHIFT);
+        return c >= 0 && containers[c].contains(element & LOW_MASK);
+    }
+
+    public int getNext(int id)
+    {
+        if (id < 0)
+            id = 0;
+        int c = find(id >>> CHUNK_SHIFT);
+        if (c >= 0) {
+            int low = containers[c].next(id & LOW_MASK);
+            if (low >= 0)
+                return (keys[c] << CHUNK_SHIFT) | low;
+            ++c;
+        }
+        else
+            c = -c - 1;
+        // following chunks are not empty:
+        return (c < count) ? (keys[c] << CHUNK_SHIFT) | containers[c].next(0)
+                           : -1;
+    }
+
+    @Override
+    public int nextBatch(int from, int[] out, int offset, int length)
+    {
+        if (from < 0)
+            from = 0;
+        int c = find(from >>> CHUNK_SHIFT);
+        int low = from & LOW_MASK;
+        if (c < 0) {
+            c = -c - 1;
+            low = 0;
+        }
+        int pos = offset, end = offset + length;
+        for (; c < count && pos < end; c++, low = 0)
+            pos = containers[c].fill(keys[c] << CHUNK_SHIFT, low, out, pos, end);
+        return pos - offset;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer)
+    {
+        for (int c = 0; c < count; c++)
+            containers[c].forEach(keys[c] << CHUNK_SHIFT, consumer);
+    }
+
+    public int getNextNotIn(int id)
+    {
+        if (id < 0)
+            id = 0;
+        for (;;) {
+            int key = id >>> CHUNK_SHIFT;
+            int c = find(key);
+            if (c < 0)
+                return id;
+            int low = containers[c].nextAbsent(id & LOW_MASK);
+            if (low < CHUNK_SIZE)
+                return (key << CHUNK_SHIFT) | low;
+            if (key == (Integer.MAX_VALUE >>> CHUNK_SHIFT))
+                return -1;
+            id = (key + 1) << CHUNK_SHIFT;
+        }
+    }
+
+    public int getUpperBound()
+    {
+        if (count == 0)
+            return 0;
+        return ((keys[count - 1] << CHUNK_SHIFT) | containers[count - 1].last()) + 1;
+    }
+
+    /**
+     * Returns the number of elements smaller than the argument.
+     */
+    public long rank(int element)
+    {
+        if (element < 0)
+            return -1;
+        int key = element >>> CHUNK_SHIFT;
+        long rank = 0;
+        int c = 0;
+        for (; c < count && keys[c] < key; c++)
+            rank += containers[c].cardinality();
+        if (c < count && keys[c] == key)
+            rank += containers[c].rank(element & LOW_MASK);
+        return rank;
+    }
+
+    public void add(int element)
+    {
+        if (element < 0)
+            throw new IllegalArgumentException("negative element " + element);
+        int c = chunk(element >>> CHUNK_SHIFT);
+        containers[c] = containers[c].add(element & LOW_MASK);
+    }
+
+    public void add(int first, int last)
+    {
+        if (first < 0)
+            throw new IllegalArgumentException("negative element " + first);
+        for (int key = first >>> CHUNK_SHIFT; key <= (last >>> CHUNK_SHIFT); key++)
+        {
+            int lo = (key == first >>> CHUNK_SHIFT) ? first & LOW_MASK : 0;
+            int hi = (key == last >>> CHUNK_SHIFT) ? last & LOW_MASK : LOW_MASK;
+            int c = find(key);
+            if (c < 0 && hi - lo >= ARRAY_MAX) {
+                insert(-c - 1, key,
+                       new RunContainer(new char[] { (char) lo, (char) (hi - lo) }, 1));
+                continue;
+            }
+            if (c < 0)
+                c = insert(-c - 1, key, new ArrayContainer());
+            containers[c] = containers[c].addRange(lo, hi + 1);
+        }
+    }
+
+    public void add(IntSet set)
+    {
+        if (set instanceof ContainerIntSet) {
+            ContainerIntSet u = or((ContainerIntSet) set);
+            keys = u.keys;
+            containers = u.containers;
+            count = u.count;
+        }
+        else for (int i = -1; (i = set.getNext(i + 1)) >= 0; ) {
+            add(i);
+        }
+    }
+
+    public void remove(int element)
+    {
+        if (element < 0)
+            return;
+        int c = find(element >>> CHUNK_SHIFT);
+        if (c < 0)
+            return;
+        Container cont = containers[c].remove(element & LOW_MASK);
+        if (cont.cardinality() == 0)
+            delete(c);
+        else
+            containers[c] = cont;
+    }
+
+    public void remove(IntSet set)
+    {
+        if (set instanceof ContainerIntSet) {
+            ContainerIntSet d = andNot((ContainerIntSet) set);
+            keys = d.keys;
+            containers = d.containers;
+            count = d.count;
+        }
+        else for (int i = -1; (i = set.getNext(i + 1)) >= 0; ) {
+            remove(i);
+        }
+    }
+
+    public void clear()
+    {
+        Arrays.fill(containers, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * Returns a new set which is the intersection of this set and another.
+     */
+    public ContainerIntSet and(ContainerIntSet that)
+    {
+        ContainerIntSet res = new ContainerIntSet();
+        for (int i = 0, j = 0; i < count && j < that.count; ) {
+            if (keys[i] < that.keys[j])
+                i = advance(keys, i, count, that.keys[j]);
+            else if (keys[i] > that.keys[j])
+                j = advance(that.keys, j, that.count, keys[i]);
+            else {
+                Container c = containers[i].and(that.containers[j]);
+                if (c.cardinality() > 0)
+                    res.append(keys[i], c);
+                ++i;
+                ++j;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns a new set which is the union of this set and another.
+     */
+    public ContainerIntSet or(ContainerIntSet that)
+    {
+        ContainerIntSet res = new ContainerIntSet();
+        int i = 0, j = 0;
+        for (; i < count && j < that.count; ) {
+            if (keys[i] < that.keys[j]) {
+                res.append(keys[i], containers[i].copy());
+                ++i;
+            }
+            else if (keys[i] > that.keys[j]) {
+                res.append(that.keys[j], that.containers[j].copy());
+                ++j;
+            }
+            else {
+                res.append(keys[i], containers[i].or(that.containers[j]));
+                ++i;
+                ++j;
+            }
+        }
+        for (; i < count; i++)
+            res.append(keys[i], containers[i].copy());
+        for (; j < that.count; j++)
+            res.append(that.keys[j], that.containers[j].copy());
+        return res;
+    }
+
+    /**
+     * Returns a new set which contains the elements of this set that are
+     * not in another set.
+     */
+    public ContainerIntSet andNot(ContainerIntSet that)
+    {
+        ContainerIntSet res = new ContainerIntSet();
+        for (int i = 0, j = 0; i < count; i++) {
+            if (j < that.count && that.keys[j] < keys[i])
+                j = advance(that.keys, j, that.count, keys[i]);
+            if (j < that.count && that.keys[j] == keys[i]) {
+                Container c = containers[i].andNot(that.containers[j]);
+                if (c.cardinality() > 0)
+                    res.append(keys[i], c);
+            }
+            else
+                res.append(keys[i], containers[i].copy());
+        }
+        return res;
+    }
+
+    @Override
+    public IntSet unionWith(IntSet set)
+    {
+        if (set instanceof ContainerIntSet)
+            return or((ContainerIntSet) set);
+        return super.unionWith(set);
+    }
+
+    @Override
+    public IntSet intersectionWith(IntSet set)
+    {
+        if (set instanceof ContainerIntSet)
+            return and((ContainerIntSet) set);
+        return super.intersectionWith(set);
+    }
+
+    /**
+     * Converts each chunk to its most compact representation, in particular
+     * to a list of intervals when it is made of long runs.
+     */
+    public void optimize()
+    {
+        for (int c = 0; c < count; c++)
+            containers[c] = containers[c].optimize();
+    }
+
+    public int getMemoryUsed()
+    {
+        int mem = 40 + 8 * keys.length;
+        for (int c = 0; c < count; c++)
+            mem += containers[c].getMemoryUsed();
+        return mem;
+    }
+
+    public IntSet copy()
+    {
+        ContainerIntSet clone = new ContainerIntSet();
+        clone.keys = keys.clone();
+        clone.containers = new Container[containers.length];
+        for (int c = 0; c < count; c++)
+            clone.containers[c] = containers[c].copy();
+        clone.count = count;
+        return clone;
+    }
+
+    @Override
+    public IntSet shallowCopy()
+    {
+        return copy();
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof IntSet))
+            return false;
+        IntSet oset = (IntSet) obj;
+        for (int e1 = -1, e2 = -1;;) {
+            e1 = getNext(e1 + 1);
+            e2 = oset.getNext(e2 + 1);
+            if (e1 < 0)
+                return e2 < 0;
+            if (e1 != e2)
+                return false;
+        }
+    }
+
+    // depends only on elements, like equals
+    public int hashCode()
+    {
+        int h = 0;
+        for (int e = getNext(0); e >= 0; e = getNext(e + 1))
+            h = 31 * h + e;
+        return h;
+    }
+
+    public void save(ByteOutput output)
+        throws IOException
+    {
+        output.putVint(count);
+        for (int c = 0; c < count; c++) {
+            output.putVint(keys[c]);
+            containers[c].save(output);
+        }
+    }
+
+    @Override
+    public void serialize(ByteOutput output)
+        throws IOException
+    {
+        output.putByte(HEADER);
+        save(output);
+    }
+
+    public void load(ByteInput input)
+        throws IOException
+    {
+        clear();
+        int chunks = input.getVint();
+        for (int c = 0; c < chunks; c++) {
+            int key = input.getVint();
+            int type = input.getByte();
+            Container cont;
+            switch (type) {
+            case ARRAY:
+                cont = ArrayContainer.load(input);
+                break;
+            case BITMAP:
+                cont = BitmapContainer.load(input);
+                break;
+            case RUNS:
+                cont = RunContainer.load(input);
+                break;
+            default:
+                throw new IOException("invalid container type " + type);
+            }
+            if (count > 0 && key <= keys[count - 1])
+                throw new IOException("invalid chunk order in ContainerIntSet");
+            append(key, cont);
+        }
+    }
+
+    public String toString()
+    {
+        return show(200);
+    }
+
+    @Override
+    public void dump(String message)
+        throws IOException
+    {
+        System.err.println(message + " ContainerIntSet size=" + size()
+                           + " chunks=" + count);
+        for (int c = 0; c < count; c++)
+            System.err.println("   " + keys[c] + " "
+                               + containers[c].getClass().getSimpleName()
+                               + " size=" + containers[c].cardinality());
+    }
+
+    // ------------------------------------------------------------------------
+
+    // index of the chunk, or -(insertion point) - 1
+    private int find(int key)
+    {
+        // frequent case: sequential access at end
+        if (count > 0 && keys[count - 1] == key)
+            return count - 1;
+        return Arrays.binarySearch(keys, 0, count, key);
+    }
+
+    // index of the chunk, created if needed
+    private int chunk(int key)
+    {
+        int c = find(key);
+        return (c >= 0) ? c : insert(-c - 1, key, new ArrayContainer());
+    }
+
+    private int insert(int pos, int key, Container cont)
+    {
+        if (count == keys.length) {
+            int[] oldKeys = keys;
+            keys = new int[count * 2];
+            System.arraycopy(oldKeys, 0, keys, 0, count);
+            Container[] old = containers;
+            containers = new Container[count * 2];
+            System.arraycopy(old, 0, containers, 0, count);
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, count - pos);
+        System.arraycopy(containers, pos, containers, pos + 1, count - pos);
+        keys[pos] = key;
+        containers[pos] = cont;
+        ++count;
+        return pos;
+    }
+
+    private void append(int key, Container cont)
+    {
+        insert(count, key, cont);
+    }
+
+    private void delete(int pos)
+    {
+        --count;
+        System.arraycopy(keys, pos + 1, keys, pos, count - pos);
+        System.arraycopy(containers, pos + 1, containers, pos, count - pos);
+        containers[count] = null;
+    }
+
+    /**
+     * Galloping search: returns the first position >= pos in the sorted
+     * array whose value is >= min, or size if none.
+     */
+    static int advance(int[] array, int pos, int size, int min)
+    {
+        int step = 1, hi = pos;
+        while (hi < size && array[hi] < min) {
+            pos = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        if (hi > size)
+            hi = size;
+        // binary search in [pos, hi]
+        while (pos < hi) {
+            int mid = (pos + hi) >>> 1;
+            if (array[mid] < min)
+                pos = mid + 1;
+            else
+                hi = mid;
+        }
+        return pos;
+    }
+
+    // same on 16-bit values
+    static int advance(char[] array, int pos, int size, int min)
+    {
+        int step = 1, hi = pos;
+        while (hi < size && array[hi] < min) {
+            pos = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        if (hi > size)
+            hi = size;
+        while (pos < hi) {
+            int mid = (pos + hi) >>> 1;
+            if (array[mid] < min)
+                pos = mid + 1;
+            else
+                hi = mid;
+        }
+        return pos;
+    }
+
+    // sets bits [from, to[
+    static void setRange(long[] words, int from, int to)
+    {
+        if (from >= to)
+            return;
+        int w1 = from >>> 6, w2 = (to - 1) >>> 6;
+        long m1 = -1L << from, m2 = -1L >>> -to;
+        if (w1 == w2) {
+            words[w1] |= m1 & m2;
+            return;
+        }
+        words[w1] |= m1;
+        for (int w = w1 + 1; w < w2; w++)
+            words[w] = -1L;
+        words[w2] |= m2;
+    }
+
+    // clears bits [from, to[
+    static void clearRange(long[] words, int from, int to)
+    {
+        if (from >= to)
+            return;
+        int w1 = from >>> 6, w2 = (to - 1) >>> 6;
+        long m1 = -1L << from, m2 = -1L >>> -to;
+        if (w1 == w2) {
+            words[w1] &= ~(m1 & m2);
+            return;
+        }
+        words[w1] &= ~m1;
+        for (int w = w1 + 1; w < w2; w++)
+            words[w] = 0;
+        words[w2] &= ~m2;
+    }
+
+    static int bitCount(long[] words)
+    {
+        int card = 0;
+        for (int w = 0; w < words.length; w++)
+            card += Long.bitCount(words[w]);
+        return card;
+    }
+
+    // array container if small enough, otherwise bitmap
+    static Container fromWords(long[] words)
+    {
+        int card = bitCount(words);
+        if (card > ARRAY_MAX)
+            return new BitmapContainer(words, card);
+        ArrayContainer ac = new ArrayContainer(card);
+        for (int w = 0; w < words.length; w++)
+            for (long word = words[w]; word != 0; word &= word - 1)
+                ac.values[ac.card++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+        return ac;
+    }
+
+    /**
+     * Storage of the low 16 bits of the elements of a chunk.
+     * Mutators return the container to use afterwards, which can be of
+     * another kind.
+     */
+    abstract static class Container
+    {
+        abstract int cardinality();
+
+        abstract boolean contains(int low);
+
+        abstract Container add(int low);
+
+        // adds [from, to[
+        abstract Container addRange(int from, int to);
+
+        abstract Container remove(int low);
+
+        // first element >= low, or -1
+        abstract int next(int low);
+
+        // first value >= low not in container, or CHUNK_SIZE
+        abstract int nextAbsent(int low);
+
+        // number of elements < low
+        abstract int rank(int low);
+
+        abstract int last();
+
+        abstract void forEach(int base, IntConsumer consumer);
+
+        // stores elements >= low into out[pos..end[, returns new pos
+        abstract int fill(int base, int low, int[] out, int pos, int end);
+
+        abstract Container and(Container that);
+
+        abstract Container or(Container that);
+
+        abstract Container andNot(Container that);
+
+        abstract void orInto(long[] words);
+
+        abstract void andNotInto(long[] words);
+
+        abstract Container copy();
+
+        abstract int getMemoryUsed();
+
+        abstract void save(ByteOutput output)
+            throws IOException;
+
+        long[] toWords()
+        {
+            long[] words = new long[WORDS];
+            orInto(words);
+            return words;
+        }
+
+        int runCount()
+        {
+            int runs = 0;
+            for (int s = next(0); s >= 0; ) {
+                ++runs;
+                int e = nextAbsent(s);
+                s = (e < CHUNK_SIZE) ? next(e) : -1;
+            }
+            return runs;
+        }
+
+        /**
+         * Returns the most compact equivalent container.
+         */
+        Container optimize()
+        {
+            int card = cardinality();
+            int runs = runCount();
+            int runSize = 4 * runs, otherSize = Math.min(2 * card, 8192);
+            if (runSize >= otherSize)
+                return this;
+            char[] pairs = new char[2 * runs];
+            int r = 0;
+            for (int s = next(0); s >= 0; r += 2) {
+                int e = nextAbsent(s);
+                pairs[r] = (char) s;
+                pairs[r + 1] = (char) (e - 1 - s);
+                s = (e < CHUNK_SIZE) ? next(e) : -1;
+            }
+            return new RunContainer(pairs, runs);
+        }
+    }
+
+    static final class ArrayContainer extends Container
+    {
+        char[] values;
+        int card;
+
+        ArrayContainer()
+        {
+            values = new char[4];
+        }
+
+        ArrayContainer(int capacity)
+        {
+            values = new char[Math.max(capacity, 4)];
+        }
+
+        int cardinality()
+        {
+            return card;
+        }
+
+        boolean contains(int low)
+        {
+            return Arrays.binarySearch(values, 0, card, (char) low) >= 0;
+        }
+
+        Container add(int low)
+        {
+            int pos = Arrays.binarySearch(values, 0, card, (char) low);
+            if (pos >= 0)
+                return this;
+            if (card == ARRAY_MAX) {
+                BitmapContainer bc = toBitmap();
+                return bc.add(low);
+            }
+            pos = -pos - 1;
+            if (card == values.length) {
+                char[] old = values;
+                values = new char[Math.min(card * 2, ARRAY_MAX)];
+                System.arraycopy(old, 0, values, 0, card);
+            }
+            System.arraycopy(values, pos, values, pos + 1, card - pos);
+            values[pos] = (char) low;
+            ++card;
+            return this;
+        }
+
+        Container addRange(int from, int to)
+        {
+            if (card + (to - from) > ARRAY_MAX)
+                return toBitmap().addRange(from, to);
+            Container res = this;
+            for (int v = from; v < to; v++)
+                res = res.add(v);
+            return res;
+        }
+
+        Container remove(int low)
+        {
+            int pos = Arrays.binarySearch(values, 0, card, (char) low);
+            if (pos >= 0) {
+                --card;
+                System.arraycopy(values, pos + 1, values, pos, card - pos);
+            }
+            return this;
+        }
+
+        int next(int low)
+        {
+            int pos = Arrays.binarySearch(values, 0, card, (char) low);
+            if (pos < 0)
+                pos = -pos - 1;
+            return (pos < card) ? values[pos] : -1;
+        }
+
+        int nextAbsent(int low)
+        {
+            int pos = Arrays.binarySearch(values, 0, card, (char) low);
+            if (pos < 0)
+                return low;
+            for (; pos + 1 < card && values[pos + 1] == values[pos] + 1; pos++)
+                ;
+            return values[pos] + 1;
+        }
+
+        int rank(int low)
+        {
+            int pos = Arrays.binarySearch(values, 0, card, (char) low);
+            return (pos >= 0) ? pos : -pos - 1;
+        }
+
+        int last()
+        {
+            return values[card - 1];
+        }
+
+        void forEach(int base, IntConsumer consumer)
+        {
+            for (int i = 0; i < card; i++)
+                consumer.accept(base | values[i]);
+        }
+
+        int fill(int base, int low, int[] out, int pos, int end)
+        {
+            int i = (low == 0) ? 0 : rank(low);
+            for (; i < card && pos < end; i++)
+                out[pos++] = base | values[i];
+            return pos;
+        }
+
+        Container and(Container that)
+        {
+            ArrayContainer res = new ArrayContainer(card);
+            if (that instanceof ArrayContainer) {
+                ArrayContainer a = (ArrayContainer) that;
+                char[] v1 = values, v2 = a.values;
+                for (int i = 0, j = 0; i < card && j < a.card; ) {
+                    if (v1[i] < v2[j])
+                        i = advance(v1, i, card, v2[j]);
+                    else if (v1[i] > v2[j])
+                        j = advance(v2, j, a.card, v1[i]);
+                    else {
+                        res.values[res.card++] = v1[i];
+                        ++i;
+                        ++j;
+                    }
+                }
+            }
+            else {
+                for (int i = 0; i < card; i++)
+                    if (that.contains(values[i]))
+                        res.values[res.card++] = values[i];
+            }
+            return res;
+        }
+
+        Container or(Container that)
+        {
+            if (!(that instanceof ArrayContainer))
+                return that.or(this);
+            ArrayContainer a = (ArrayContainer) that;
+            if (card + a.card > ARRAY_MAX) {
+                long[] words = toWords();
+                a.orInto(words);
+                return fromWords(words);
+            }
+            ArrayContainer res = new ArrayContainer(card + a.card);
+            int i = 0, j = 0;
+            for (; i < card && j < a.card; ) {
+                char v1 = values[i], v2 = a.values[j];
+                if (v1 <= v2) {
+                    res.values[res.card++] = v1;
+                    ++i;
+                    if (v1 == v2)
+                        ++j;
+                }
+                else {
+                    res.values[res.card++] = v2;
+                    ++j;
+                }
+            }
+            for (; i < card; i++)
+                res.values[res.card++] = values[i];
+            for (; j < a.card; j++)
+                res.values[res.card++] = a.values[j];
+            return res;
+        }
+
+        Container andNot(Container that)
+        {
+            ArrayContainer res = new ArrayContainer(card);
+            for (int i = 0; i < card; i++)
+                if (!that.contains(values[i]))
+                    res.values[res.card++] = values[i];
+            return res;
+        }
+
+        void orInto(long[] words)
+        {
+            for (int i = 0; i < card; i++)
+                words[values[i] >>> 6] |= 1L << values[i];
+        }
+
+        void andNotInto(long[] words)
+        {
+            for (int i = 0; i < card; i++)
+                words[values[i] >>> 6] &= ~(1L << values[i]);
+        }
+
+        BitmapContainer toBitmap()
+        {
+            long[] words = new long[WORDS];
+            orInto(words);
+            return new BitmapContainer(words, card);
+        }
+
+        Container copy()
+        {
+            ArrayContainer clone = new ArrayContainer(card);
+            System.arraycopy(values, 0, clone.values, 0, card);
+            clone.card = card;
+            return clone;
+        }
+
+        int getMemoryUsed()
+        {
+            return 32 + 2 * values.length;
+        }
+
+        void save(ByteOutput output)
+            throws IOException
+        {
+            output.putByte(ARRAY);
+            output.putVint(card);
+            for (int i = 0, prev = 0; i < card; prev = values[i++])
+                output.putVint(values[i] - prev);
+        }
+
+        static ArrayContainer load(ByteInput input)
+            throws IOException
+        {
+            int card = input.getVint();
+            if (card > ARRAY_MAX)
+                throw new IOException("invalid array container size " + card);
+            ArrayContainer ac = new ArrayContainer(card);
+            for (int prev = 0; ac.card < card; )
+                ac.values[ac.card++] = (char) (prev += input.getVint());
+            return ac;
+        }
+    }
+
+    static final class BitmapContainer extends Container
+    {
+        long[] words;
+        int card;
+
+        BitmapContainer(long[] words, int card)
+        {
+            this.words = words;
+            this.card = card;
+        }
+
+        int cardinality()
+        {
+            return card;
+        }
+
+        boolean contains(int low)
+        {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        Container add(int low)
+        {
+            long word = words[low >>> 6];
+            if ((word & (1L << low)) == 0) {
+                words[low >>> 6] = word | (1L << low);
+                ++card;
+            }
+            return this;
+        }
+
+        Container addRange(int from, int to)
+        {
+            setRange(words, from, to);
+            card = bitCount(words);
+            return this;
+        }
+
+        Container remove(int low)
+        {
+            long word = words[low >>> 6];
+            if ((word & (1L << low)) != 0) {
+                words[low >>> 6] = word & ~(1L << low);
+                if (--card <= ARRAY_MAX)
+                    return fromWords(words);
+            }
+            return this;
+        }
+
+        int next(int low)
+        {
+            int w = low >>> 6;
+            long word = words[w] & (-1L << low);
+            while (word == 0) {
+                if (++w == WORDS)
+                    return -1;
+                word = words[w];
+            }
+            return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        int nextAbsent(int low)
+        {
+            int w = low >>> 6;
+            long word = ~words[w] & (-1L << low);
+            while (word == 0) {
+                if (++w == WORDS)
+                    return CHUNK_SIZE;
+                word = ~words[w];
+            }
+            return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        int rank(int low)
+        {
+            int w = low >>> 6, rank = 0;
+            for (int i = 0; i < w; i++)
+                rank += Long.bitCount(words[i]);
+            return rank + Long.bitCount(words[w] & ((1L << low) - 1));
+        }
+
+        int last()
+        {
+            int w = WORDS - 1;
+            while (words[w] == 0)
+                --w;
+            return w * 64 + 63 - Long.numberOfLeadingZeros(words[w]);
+        }
+
+        void forEach(int base, IntConsumer consumer)
+        {
+            for (int w = 0; w < WORDS; w++, base += 64)
+                for (long word = words[w]; word != 0; word &= word - 1)
+                    consumer.accept(base + Long.numberOfTrailingZeros(word));
+        }
+
+        int fill(int base, int low, int[] out, int pos, int end)
+        {
+            int w = low >>> 6;
+            long word = words[w] & (-1L << low);
+            for (;;) {
+                for (; word != 0 && pos < end; word &= word - 1)
+                    out[pos++] = base + w * 64 + Long.numberOfTrailingZeros(word);
+                if (pos == end || ++w == WORDS)
+                    return pos;
+                word = words[w];
+            }
+        }
+
+        Container and(Container that)
+        {
+            if (that instanceof ArrayContainer)
+                return that.and(this);
+            long[] other = (that instanceof BitmapContainer)
+                               ? ((BitmapContainer) that).words : that.toWords();
+            long[] res = new long[WORDS];
+            for (int w = 0; w < WORDS; w++)
+                res[w] = words[w] & other[w];
+            return fromWords(res);
+        }
+
+        Container or(Container that)
+        {
+            long[] res = words.clone();
+            that.orInto(res);
+            return new BitmapContainer(res, bitCount(res));
+        }
+
+        Container andNot(Container that)
+        {
+            long[] res = words.clone();
+            that.andNotInto(res);
+            return fromWords(res);
+        }
+
+        void orInto(long[] dest)
+        {
+            for (int w = 0; w < WORDS; w++)
+                dest[w] |= words[w];
+        }
+
+        void andNotInto(long[] dest)
+        {
+            for (int w = 0; w < WORDS; w++)
+                dest[w] &= ~words[w];
+        }
+
+        Container copy()
+        {
+            return new BitmapContainer(words.clone(), card);
+        }
+
+        int getMemoryUsed()
+        {
+            return 32 + 8 * WORDS;
+        }
+
+        void save(ByteOutput output)
+            throws IOException
+        {
+            output.putByte(BITMAP);
+            for (int w = 0; w < WORDS; w++)
+                output.putLong(words[w]);
+        }
+
+        static Container load(ByteInput input)
+            throws IOException
+        {
+            long[] words = new long[WORDS];
+            for (int w = 0; w < WORDS; w++)
+                words[w] = input.getLong();
+            return new BitmapContainer(words, bitCount(words));
+        }
+    }
+
+    /**
+     * Sorted, disjoint and non-adjacent intervals, stored as pairs
+     * (start, length - 1).
+     */
+    static final class RunContainer extends Container
+    {
+        char[] runs;
+        int runCount;
+        int card;
+
+        RunContainer(char[] runs, int runCount)
+        {
+            this.runs = runs;
+            this.runCount = runCount;
+            for (int r = 0; r < runCount; r++)
+                card += runs[2 * r + 1] + 1;
+        }
+
+        int start(int r)
+        {
+            return runs[2 * r];
+        }
+
+        int end(int r) // inclusive
+        {
+            return runs[2 * r] + runs[2 * r + 1];
+        }
+
+        // index of the last run starting at or before low, or -1
+        int findRun(int low)
+        {
+            int lo = 0, hi = runCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (runs[2 * mid] <= low)
+                    lo = mid + 1;
+                else
+                    hi = mid - 1;
+            }
+            return hi;
+        }
+
+        int cardinality()
+        {
+            return card;
+        }
+
+        boolean contains(int low)
+        {
+            int r = findRun(low);
+            return r >= 0 && low <= end(r);
+        }
+
+        // intervals are kept compact only through optimize(): other
+        // modifications use a mutable container
+        private Container toMutable()
+        {
+            if (card <= ARRAY_MAX) {
+                ArrayContainer ac = new ArrayContainer(card);
+                for (int r = 0; r < runCount; r++)
+                    for (int v = start(r), e = end(r); v <= e; v++)
+                        ac.values[ac.card++] = (char) v;
+                return ac;
+            }
+            return new BitmapContainer(toWords(), card);
+        }
+
+        Container add(int low)
+        {
+            return contains(low) ? this : toMutable().add(low);
+        }
+
+        Container addRange(int from, int to)
+        {
+            RunContainer range =
+                new RunContainer(new char[] { (char) from, (char) (to - 1 - from) }, 1);
+            return or(range);
+        }
+
+        Container remove(int low)
+        {
+            return contains(low) ? toMutable().remove(low) : this;
+        }
+
+        int next(int low)
+        {
+            int r = findRun(low);
+            if (r >= 0 && low <= end(r))
+                return low;
+            ++r;
+            return (r < runCount) ? start(r) : -1;
+        }
+
+        int nextAbsent(int low)
+        {
+            int r = findRun(low);
+            return (r >= 0 && low <= end(r)) ? end(r) + 1 : low;
+        }
+
+        int rank(int low)
+        {
+            int rank = 0;
+            for (int r = 0; r < runCount && start(r) < low; r++)
+                rank += Math.min(end(r) + 1, low) - start(r);
+            return rank;
+        }
+
+        int last()
+        {
+            return end(runCount - 1);
+        }
+
+        void forEach(int base, IntConsumer consumer)
+        {
+            for (int r = 0; r < runCount; r++)
+                for (int v = start(r), e = end(r); v <= e; v++)
+                    consumer.accept(base | v);
+        }
+
+        int fill(int base, int low, int[] out, int pos, int end)
+        {
+            int r = findRun(low);
+            if (r < 0 || low > end(r)) {
+                if (++r == runCount)
+                    return pos;
+                low = start(r);
+            }
+            for (; r < runCount && pos < end; ) {
+                int last = end(r);
+                for (int v = low; v <= last && pos < end; v++)
+                    out[pos++] = base | v;
+                if (++r < runCount)
+                    low = start(r);
+            }
+            return pos;
+        }
+
+        Container and(Container that)
+        {
+            if (that instanceof ArrayContainer)
+                return that.and(this);
+            if (that instanceof BitmapContainer)
+                return that.and(this);
+            RunContainer rc = (RunContainer) that;
+            RunBuilder res = new RunBuilder(runCount + rc.runCount);
+            for (int i = 0, j = 0; i < runCount && j < rc.runCount; ) {
+                int s = Math.max(start(i), rc.start(j));
+                int e = Math.min(end(i), rc.end(j));
+                if (s <= e)
+                    res.add(s, e);
+                if (end(i) < rc.end(j))
+                    ++i;
+                else
+                    ++j;
+            }
+            return res.build();
+        }
+
+        Container or(Container that)
+        {
+            if (!(that instanceof RunContainer)) {
+                long[] words = toWords();
+                that.orInto(words);
+                return fromWords(words);
+            }
+            RunContainer rc = (RunContainer) that;
+            RunBuilder res = new RunBuilder(runCount + rc.runCount);
+            for (int i = 0, j = 0; i < runCount || j < rc.runCount; ) {
+                if (j == rc.runCount || (i < runCount && start(i) <= rc.start(j))) {
+                    res.add(start(i), end(i));
+                    ++i;
+                }
+                else {
+                    res.add(rc.start(j), rc.end(j));
+                    ++j;
+                }
+            }
+            return res.build();
+        }
+
+        Container andNot(Container that)
+        {
+            long[] words = toWords();
+            that.andNotInto(words);
+            return fromWords(words);
+        }
+
+        void orInto(long[] words)
+        {
+            for (int r = 0; r < runCount; r++)
+                setRange(words, start(r), end(r) + 1);
+        }
+
+        void andNotInto(long[] words)
+        {
+            for (int r = 0; r < runCount; r++)
+                clearRange(words, start(r), end(r) + 1);
+        }
+
+        Container copy()
+        {
+            char[] pairs = new char[2 * runCount];
+            System.arraycopy(runs, 0, pairs, 0, pairs.length);
+            return new RunContainer(pairs, runCount);
+        }
+
+        int getMemoryUsed()
+        {
+            return 32 + 2 * runs.length;
+        }
+
+        void save(ByteOutput output)
+            throws IOException
+        {
+            output.putByte(RUNS);
+            output.putVint(runCount);
+            for (int r = 0, prev = 0; r < runCount; r++) {
+                output.putVint(start(r) - prev);
+                output.putVint(runs[2 * r + 1]);
+                prev = end(r);
+            }
+        }
+
+        static Container load(ByteInput input)
+            throws IOException
+        {
+            int runCount = input.getVint();
+            if (runCount > CHUNK_SIZE / 2)
+                throw new IOException("invalid run container size " + runCount);
+            char[] pairs = new char[2 * runCount];
+            for (int r = 0, prev = 0; r < runCount; r++) {
+                int start = prev + input.getVint();
+                int length = input.getVint();
+                pairs[2 * r] = (char) start;
+                pairs[2 * r + 1] = (char) length;
+                prev = start + length;
+            }
+            return new RunContainer(pairs, runCount);
+        }
+    }
+
+    // accumulates intervals in increasing start order, merging them
+    static final class RunBuilder
+    {
+        private char[] pairs;
+        private int runCount;
+        private int lastEnd = -2;
+
+        RunBuilder(int capacity)
+        {
+            pairs = new char[2 * Math.max(capacity, 1)];
+        }
+
+        void add(int start, int end)
+        {
+            if (start <= lastEnd + 1) {
+                if (end > lastEnd) {    // extend last run
+                    int r = 2 * (runCount - 1);
+                    pairs[r + 1] = (char) (end - pairs[r]);
+                    lastEnd = end;
+                }
+                return;
+            }
+            if (2 * runCount == pairs.length) {
+                char[] old = pairs;
+                pairs = new char[old.length * 2];
+                System.arraycopy(old, 0, pairs, 0, old.length);
+            }
+            pairs[2 * runCount] = (char) start;
+            pairs[2 * runCount + 1] = (char) (end - start);
+            ++runCount;
+            lastEnd = end;
+        }
+
+        Container build()
+        {
+            return new RunContainer(pairs, runCount);
+        }
+    }
+}
@@ -31,6 +31,15 @@ public abstract class IntSet
         return s;
     }
     
+    /**
+     * Returns an estimate of the number of elements, used for ordering the
+     * operands of set operations. By default the exact size.
+     */
+    public int estimatedSize()
+    {
+        return size();
+    }
+    
     public abstract boolean test(int ch);
 
     public abstract int/*LId*/ getNext(int item);
@@ -45,6 +54,43 @@ public abstract class IntSet
 
     public abstract long rank(int item);
 
+    /**
+     * Calls the consumer on each element of the set, in increasing order.
+     * Implementations avoid a call of getNext per element where possible.
+     */
+    public void forEach(IntConsumer consumer)
+    {
+        for (int i = -1; (i = getNext(i + 1)) >= 0;) {
+            consumer.accept(i);
+        }
+    }
+
+    /**
+     * Batch iteration: stores into <code>out</code> the first elements of
+     * the set that are >= <code>from</code>, in increasing order.
+     * Continue with <code>from = out[count - 1] + 1</code>.
+     * @return the number of elements stored, 0 if no more elements
+     */
+    public int nextBatch(int from, int[] out)
+    {
+        return nextBatch(from, out, 0, out.length);
+    }
+
+    /**
+     * Batch iteration: stores at most <code>length</code> elements >=
+     * <code>from</code> into <code>out</code>, from position
+     * <code>offset</code>.
+     * @return the number of elements stored, 0 if no more elements
+     */
+    public int nextBatch(int from, int[] out, int offset, int length)
+    {
+        int count = 0;
+        for (int i = from - 1; count < length && (i = getNext(i + 1)) >= 0;) {
+            out[offset + count++] = i;
+        }
+        return count;
+    }
+
     public abstract void add(int item);
     
     public void add(int/*LId*/ first, int/*LId*/ last)
@@ -152,6 +198,11 @@ public abstract class IntSet
             set.load(in);
             return set;
         }
+        if(header == ContainerIntSet.HEADER) {
+            ContainerIntSet set = new ContainerIntSet();
+            set.load(in);
+            return set;
+        }
         return null;
     }
 
@@ -246,4 +297,12 @@ public abstract class IntSet
             add(first, last - 1);
         }
     }
+
+    /**
+     * Receives the elements of a set in {@link IntSet#forEach(IntConsumer)}.
+     */
+    public interface IntConsumer
+    {
+        void accept(int element);
+    }
 }
@@ -31,9 +31,19 @@ public class IntersectionIntSet extends IntSet
             return set2;
         if (set2 == null)
             return set1;
+        // avoid deep trees of binary intersections:
+        if (set1 instanceof IntersectionIntSet || set1 instanceof MultiIntersectionIntSet
+            || set2 instanceof IntersectionIntSet || set2 instanceof MultiIntersectionIntSet)
+            return MultiIntersectionIntSet.make(new IntSet[] { set1, set2 });
         return new IntersectionIntSet(set1, set2);
     }
 
+    @Override
+    public int estimatedSize()
+    {
+        return Math.min(set1.estimatedSize(), set2.estimatedSize());
+    }
+
     @Override
     public boolean test(int item)
     {
@@ -53,6 +63,40 @@ public class IntersectionIntSet extends IntSet
         }
     }
 
+    @Override
+    public int nextBatch(int from, int[] out, int offset, int length)
+    {
+        if (set1 instanceof ArrayIntSet && set2 instanceof ArrayIntSet)
+            return ArrayIntSet.intersectionBatch((ArrayIntSet) set1,
+                                                 (ArrayIntSet) set2,
+                                                 from, out, offset, length);
+        // batches of set1 filtered by set2, in place: no shared buffer,
+        // concurrent iterations are possible
+        int count = 0;
+        while (count < length) {
+            int n = set1.nextBatch(from, out, offset + count, length - count);
+            if (n == 0)
+                break;
+            int end = offset + count + n;
+            from = out[end - 1] + 1;
+            for (int i = offset + count; i < end; i++)
+                if (set2.test(out[i]))
+                    out[offset + count++] = out[i];
+        }
+        return count;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer)
+    {
+        int[] batch = new int[256];
+        for (int from = 0, n; (n = nextBatch(from, batch)) > 0; ) {
+            for (int i = 0; i < n; i++)
+                consumer.accept(batch[i]);
+            from = batch[n - 1] + 1;
+        }
+    }
+
     @Override
     public int getNextNotIn(int item)
     {
@@ -0,0 +1,336 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.io.ByteInput;
+import com.qizx.util.io.ByteOutput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Lazy intersection of any number of sets.
+ * <p>
+ * Operands are sorted by increasing estimated size. Iteration leapfrogs
+ * over the operands: the current candidate is submitted to each operand in
+ * turn, and an operand that does not contain it skips directly to its next
+ * element, which becomes the new candidate. The smallest operand thus drives
+ * the iteration, and large operands are only probed.
+ * <p>
+ * getNext skips with getNext on each operand. The bulk methods forEach and
+ * nextBatch read the operands by blocks (nextBatch) and skip inside a block
+ * by galloping search, so that most steps involve no call on an operand.
+ * Bitmaps (ArrayIntSet) are not read by blocks: their getNext skips whole
+ * words, which is cheaper than decoding elements.
+ */
+public class MultiIntersectionIntSet extends IntSet
+{
+    IntSet[] sets;  // by increasing estimated size
+
+    public MultiIntersectionIntSet(IntSet[] sets)
+    {
+        this.sets = sortBySize(sets);
+    }
+
+    /**
+     * Returns the intersection of the sets. Null sets are ignored (no
+     * constraint), and nested intersections are flattened.
+     * @return null if all sets are null
+     */
+    public static IntSet make(IntSet[] sets)
+    {
+        ArrayList<IntSet> operands = new ArrayList<IntSet>(sets.length);
+        for (int s = 0; s < sets.length; s++)
+            flatten(sets[s], operands);
+        if (operands.size() == 0)
+            return null;
+        if (operands.size() == 1)
+            return operands.get(0);
+        return new MultiIntersectionIntSet(operands.toArray(new IntSet[operands.size()]));
+    }
+
+    private static void flatten(IntSet set, ArrayList<IntSet> operands)
+    {
+        if (set instanceof MultiIntersectionIntSet) {
+            IntSet[] sets = ((MultiIntersectionIntSet) set).sets;
+            for (int s = 0; s < sets.length; s++)
+                operands.add(sets[s]);
+        }
+        else if (set instanceof IntersectionIntSet) {
+            flatten(((IntersectionIntSet) set).set1, operands);
+            flatten(((IntersectionIntSet) set).set2, operands);
+        }
+        else if (set != null)
+            operands.add(set);
+    }
+
+    // insertion sort: few operands
+    static IntSet[] sortBySize(IntSet[] sets)
+    {
+        IntSet[] sorted = new IntSet[sets.length];
+        int[] sizes = new int[sets.length];
+        for (int s = 0; s < sets.length; s++) {
+            int size = sets[s].estimatedSize();
+            int pos = s;
+            for (; pos > 0 && sizes[pos - 1] > size; --pos) {
+                sorted[pos] = sorted[pos - 1];
+                sizes[pos] = sizes[pos - 1];
+            }
+            sorted[pos] = sets[s];
+            sizes[pos] = size;
+        }
+        return sorted;
+    }
+
+    @Override
+    public int estimatedSize()
+    {
+        return sets[0].estimatedSize();
+    }
+
+    @Override
+    public int size()
+    {
+        int size = 0;
+        for (int i = -1; (i = getNext(i + 1)) >= 0;)
+            ++size;
+        return size;
+    }
+
+    @Override
+    public boolean test(int item)
+    {
+        for (int s = 0; s < sets.length; s++)
+            if (!sets[s].test(item))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int getNext(int item)
+    {
+        int candidate = sets[0].getNext(item);
+        int agreed = 1;
+        for (int s = 1; candidate >= 0 && agreed < sets.length; ) {
+            int next = sets[s].getNext(candidate);
+            if (next == candidate)
+                ++agreed;
+            else {
+                candidate = next;
+                agreed = 1;
+            }
+            if (++s == sets.length)
+                s = 0;
+        }
+        return candidate;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer)
+    {
+        intersect(0, null, 0, Integer.MAX_VALUE, consumer);
+    }
+
+    @Override
+    public int nextBatch(int from, int[] out, int offset, int length)
+    {
+        return intersect(from, out, offset, length, null);
+    }
+
+    // leapfrog on blocks: stores the elements >= from into out, or passes
+    // them to the consumer if out is null
+    private int intersect(int from, int[] out, int offset, int length,
+                          IntConsumer consumer)
+    {
+        int count = sets.length;
+        Block[] blocks = new Block[count];  // local: iterations can overlap
+        for (int s = 0; s < count; s++)
+            blocks[s] = new Block(sets[s]);
+        int found = 0;
+        int candidate = blocks[0].seek(Math.max(from, 0));
+        for (int s = 1, agreed = 1; candidate >= 0 && found < length; ) {
+            if (agreed == count) {
+                if (out != null)
+                    out[offset + found] = candidate;
+                else
+                    consumer.accept(candidate);
+                ++found;
+                // restart from the driving set:
+                candidate = blocks[0].seek(candidate + 1);
+                agreed = 1;
+                s = 1;
+                continue;
+            }
+            int next = blocks[s].seek(candidate);
+            if (next == candidate)
+                ++agreed;
+            else {
+                candidate = next;
+                agreed = 1;
+            }
+            if (++s == count)
+                s = 0;
+        }
+        return found;
+    }
+
+    /**
+     * Block of consecutive elements of an operand. Targets of seek never
+     * decrease, so a block is searched from the last position found.
+     * Blocks grow while they are used up to the end, and shrink when the
+     * candidates jump beyond them: an operand probed at sparse candidates
+     * is then read one element at a time, like getNext.
+     */
+    private static class Block
+    {
+        private static final int MAX_SIZE = 256;
+
+        private IntSet set;
+        private boolean bitmap;
+        private int[] items = new int[MAX_SIZE];
+        private int size = 1;   // of the next read
+        private int count;
+        private int position;
+
+        Block(IntSet set)
+        {
+            this.set = set;
+            bitmap = set instanceof ArrayIntSet;
+        }
+
+        // returns the first element >= target, or -1
+        int seek(int target)
+        {
+            if (bitmap)
+                return set.getNext(target);
+            if (count == 0 || items[count - 1] < target) {
+                if (count > 0 && position == count - 1)
+                    size = Math.min(2 * size, MAX_SIZE);
+                else
+                    size = 1;
+                // beyond the block: skip directly to target
+                if (size == 1) {    // nextBatch has a higher setup cost
+                    items[0] = set.getNext(target);
+                    count = (items[0] < 0)? 0 : 1;
+                }
+                else
+                    count = set.nextBatch(target, items, 0, size);
+                position = 0;
+                if (count == 0)
+                    return -1;
+            }
+            // galloping: steps of 1, 2, 4... then binary search
+            int low = position, high = position;
+            for (int step = 1; items[high] < target; step <<= 1) {
+                low = high + 1;
+                high = Math.min(high + step, count - 1);
+            }
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (items[mid] < target)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            position = low;
+            return items[low];
+        }
+    }
+
+    @Override
+    public int getNextNotIn(int item)
+    {
+        if (item < 0)
+            item = 0;
+        while (test(item))
+            ++item;
+        return item;
+    }
+
+    @Override
+    public int getUpperBound()
+    {
+        int bound = sets[0].getUpperBound();
+        for (int s = 1; s < sets.length; s++)
+            bound = Math.min(bound, sets[s].getUpperBound());
+        return bound;
+    }
+
+    @Override
+    public long rank(int item)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public IntSet copy()
+    {
+        IntSet[] copies = new IntSet[sets.length];
+        for (int s = 0; s < sets.length; s++)
+            copies[s] = sets[s].copy();
+        return new MultiIntersectionIntSet(copies);
+    }
+
+    @Override
+    public IntSet shallowCopy()
+    {
+        return new MultiIntersectionIntSet(sets);
+    }
+
+    @Override
+    public void clear()
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void add(int item)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void add(IntSet docs)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void remove(int docId)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void remove(IntSet docs)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void load(ByteInput input)
+        throws IOException
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void save(ByteOutput output)
+        throws IOException
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void dump(String message)
+        throws IOException
+    {
+        throw new RuntimeException("not implemented");
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.io.ByteInput;
+import com.qizx.util.io.ByteOutput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Lazy union of any number of sets.
+ * <p>
+ * The next element of each operand is kept between calls of getNext, so
+ * that iterating in increasing order calls getNext on an operand only when
+ * its current element has been passed. Member tests try the largest
+ * operands first. Not thread-safe.
+ */
+public class MultiUnionIntSet extends IntSet
+{
+    private static final int UNKNOWN = -2;
+
+    IntSet[] sets;  // by decreasing estimated size
+    private int[] heads;    // next element of each set >= position, or -1
+    private int position;
+
+    public MultiUnionIntSet(IntSet[] sets)
+    {
+        IntSet[] sorted = MultiIntersectionIntSet.sortBySize(sets);
+        this.sets = new IntSet[sorted.length];
+        for (int s = 0; s < sorted.length; s++)
+            this.sets[s] = sorted[sorted.length - 1 - s];
+        heads = new int[sets.length];
+        Arrays.fill(heads, UNKNOWN);
+    }
+
+    /**
+     * Returns the union of the sets. Null sets are ignored (empty), and
+     * nested unions are flattened.
+     * @return null if all sets are null
+     */
+    public static IntSet make(IntSet[] sets)
+    {
+        ArrayList<IntSet> operands = new ArrayList<IntSet>(sets.length);
+        for (int s = 0; s < sets.length; s++) {
+            if (sets[s] instanceof MultiUnionIntSet)
+                operands.addAll(Arrays.asList(((MultiUnionIntSet) sets[s]).sets));
+            else if (sets[s] != null)
+                operands.add(sets[s]);
+        }
+        if (operands.size() == 0)
+            return null;
+        if (operands.size() == 1)
+            return operands.get(0);
+        return new MultiUnionIntSet(operands.toArray(new IntSet[operands.size()]));
+    }
+
+    @Override
+    public int estimatedSize()
+    {
+        long size = 0;
+        for (int s = 0; s < sets.length; s++)
+            size += sets[s].estimatedSize();
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int size()
+    {
+        int size = 0;
+        for (int i = -1; (i = getNext(i + 1)) >= 0;)
+            ++size;
+        return size;
+    }
+
+    @Override
+    public boolean test(int item)
+    {
+        for (int s = 0; s < sets.length; s++)
+            if (sets[s].test(item))
+                return true;
+        return false;
+    }
+
+    @Override
+    public int getNext(int item)
+    {
+        if (item < 0)
+            item = 0;
+        if (item < position)    // backwards: cached heads can be too far
+            Arrays.fill(heads, UNKNOWN);
+        position = item;
+        int min = -1;
+        for (int s = 0; s < sets.length; s++) {
+            int head = heads[s];
+            if (head == -1)
+                continue;   // exhausted
+            if (head < item)
+                heads[s] = head = sets[s].getNext(item);
+            if (head >= 0 && (min < 0 || head < min))
+                min = head;
+        }
+        return min;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer)
+    {
+        boolean bitmaps = true;
+        for (int s = 0; s < sets.length && bitmaps; s++)
+            bitmaps = sets[s] instanceof ArrayIntSet;
+        if (bitmaps) {
+            // word-wise OR is cheaper than merging:
+            ArrayIntSet union = new ArrayIntSet();
+            for (int s = 0; s < sets.length; s++)
+                union.add((ArrayIntSet) sets[s]);
+            union.forEach(consumer);
+            return;
+        }
+        for (int i = getNext(0); i >= 0; i = getNext(i + 1))
+            consumer.accept(i);
+    }
+
+    @Override
+    public int getNextNotIn(int item)
+    {
+        if (item < 0)
+            item = 0;
+        while (test(item))
+            ++item;
+        return item;
+    }
+
+    @Override
+    public int getUpperBound()
+    {
+        int bound = 0;
+        for (int s = 0; s < sets.length; s++)
+            bound = Math.max(bound, sets[s].getUpperBound());
+        return bound;
+    }
+
+    @Override
+    public long rank(int item)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public IntSet copy()
+    {
+        IntSet[] copies = new IntSet[sets.length];
+        for (int s = 0; s < sets.length; s++)
+            copies[s] = sets[s].copy();
+        return new MultiUnionIntSet(copies);
+    }
+
+    @Override
+    public IntSet shallowCopy()
+    {
+        return new MultiUnionIntSet(sets);
+    }
+
+    @Override
+    public void clear()
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void add(int item)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void add(IntSet docs)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void remove(int docId)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void remove(IntSet docs)
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void load(ByteInput input)
+        throws IOException
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void save(ByteOutput output)
+        throws IOException
+    {
+        throw new RuntimeException("not implemented");
+    }
+
+    @Override
+    public void dump(String message)
+        throws IOException
+    {
+        throw new RuntimeException("not implemented");
+    }
+}
@@ -153,6 +153,30 @@ public class PagedIntSet extends IntSet
         return -1;
     }
 
+    @Override
+    public int nextBatch(int/*SId*/ from, int[] out, int offset, int length)
+    {
+        int count = 0;
+        for (int page = (from < 0)? 0 : (from >> pageShift);
+             page < pageSet.length && count < length; page++) {
+            acquirePage(page);
+            if (pageSet[page] != null)
+                count += pageSet[page].nextBatch(from, out, offset + count,
+                                                 length - count);
+        }
+        return count;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer)
+    {
+        for (int page = 0; page < pageSet.length; page++) {
+            acquirePage(page);
+            if (pageSet[page] != null)
+                pageSet[page].forEach(consumer);
+        }
+    }
+
     @Override
     public int getNextNotIn(int/*SId*/ id)
     {
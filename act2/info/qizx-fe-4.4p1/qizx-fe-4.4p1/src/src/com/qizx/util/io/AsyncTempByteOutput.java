@@ -0,0 +1,257 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.io;
+
+import com.qizx.util.basic.QueueWorker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Temporary output kept in memory up to a threshold, then spilled to a temp
+ * file written in the background.
+ * <p>
+ * When full, the buffer is copied into a direct buffer taken from a pool
+ * shared by all instances, and writing continues while a background thread
+ * writes the direct buffer to the file channel. The pool is bounded: when
+ * writes are slower than production, output blocks until a buffer is
+ * released. Can be read back with TempByteInput, after flush() or close().
+ * <p>
+ * Data kept in memory below the threshold is stored in heap arrays, not in
+ * pooled buffers: such blocks live until cleanup(), and would otherwise
+ * hold the bounded pool needed by the background writes.
+ */
+public class AsyncTempByteOutput extends TempByteOutput
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int POOL_BUFFER_SIZE = 64 * 1024;
+    private static final int POOL_MAX_BUFFERS = 16;
+
+    private static final BlockingQueue<ByteBuffer> pool =
+        new LinkedBlockingQueue<ByteBuffer>();
+    private static final AtomicInteger allocatedBuffers = new AtomicInteger();
+    private static QueueWorker writer;
+
+    private long spillThreshold;
+    private ArrayList<byte[]> blocks = new ArrayList<byte[]>(); // before spill
+    private FileChannel channel;
+    private int pendingWrites;
+    private volatile IOException writeError;
+    private volatile boolean discarded; // by cleanup: skip queued writes
+
+    /**
+     * @param bufferSize size of the write buffer
+     * @param tempDir directory of the temp file, or null for the default
+     * @param spillThreshold size in bytes kept in memory: a temp file is
+     *        created only beyond that size
+     */
+    public AsyncTempByteOutput(int bufferSize, File tempDir, long spillThreshold)
+    {
+        super(bufferSize, tempDir);
+        this.spillThreshold = spillThreshold;
+    }
+
+    protected void writeBuffer(byte[] buffer, int size) throws IOException
+    {
+        if (size == 0)
+            return;
+        if (tempFile == null && savedSize + size <= spillThreshold) {
+            byte[] block = new byte[size];
+            System.arraycopy(buffer, 0, block, 0, size);
+            blocks.add(block);
+        }
+        else {
+            if (tempFile == null)
+                spill();
+            submit(buffer, size);
+        }
+        savedSize += size;
+    }
+
+    private void spill() throws IOException
+    {
+        tempFile = File.createTempFile("bio", null, tempDir);
+        out = new FileOutputStream(tempFile);
+        channel = out.getChannel();
+        for (byte[] block : blocks)
+            submit(block, block.length);
+        blocks = null;
+    }
+
+    // copies the data into pooled buffers queued for writing
+    private void submit(byte[] buffer, int size) throws IOException
+    {
+        checkError();
+        for (int start = 0; start < size;) {
+            ByteBuffer block = acquireBuffer();
+            int length = Math.min(size - start, block.capacity());
+            block.clear();
+            block.put(buffer, start, length);
+            block.flip();
+            start += length;
+            synchronized (this) {
+                ++pendingWrites;
+            }
+            getWriter().queueTask(new WriteTask(block));
+        }
+    }
+
+    /**
+     * Writes the buffer and waits for the completion of background writes.
+     */
+    public void flush() throws IOException
+    {
+        super.flush();
+        waitForWrites();
+    }
+
+    public void close() throws IOException
+    {
+        if (bufPtr > 0) {
+            flushBuffer();
+            bufPtr = 0;
+        }
+        try {
+            waitForWrites();
+        }
+        finally {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * Discards the data. Queued writes are skipped, and writes in progress
+     * are waited for before the file is closed and deleted.
+     */
+    public void cleanup() throws IOException
+    {
+        discarded = true;
+        try {
+            awaitWrites();
+        }
+        finally {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            super.cleanup();
+            blocks = null;
+        }
+    }
+
+    /**
+     * Returns the blocks of data if not spilled to a file, otherwise null.
+     */
+    byte[][] getMemoryBlocks()
+    {
+        return (tempFile != null || blocks == null) ? null
+                : blocks.toArray(new byte[blocks.size()][]);
+    }
+
+    private void waitForWrites() throws IOException
+    {
+        awaitWrites();
+        checkError();
+    }
+
+    private synchronized void awaitWrites() throws IOException
+    {
+        try {
+            while (pendingWrites > 0)
+                wait();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for writes");
+        }
+    }
+
+    private synchronized void checkError() throws IOException
+    {
+        if (writeError != null) {
+            IOException error = new IOException("write error on temp file "
+                                                + tempFile);
+            error.initCause(writeError);
+            throw error;
+        }
+    }
+
+    private synchronized void writeDone(IOException error)
+    {
+        if (error != null && writeError == null)
+            writeError = error;
+        --pendingWrites;
+        notifyAll();
+    }
+
+    private class WriteTask implements Runnable
+    {
+        private ByteBuffer block;
+
+        WriteTask(ByteBuffer block)
+        {
+            this.block = block;
+        }
+
+        public void run()
+        {
+            IOException error = null;
+            try {
+                // no use writing after an error or cleanup
+                if (writeError == null && !discarded)
+                    while (block.hasRemaining())
+                        channel.write(block);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            finally {
+                pool.offer(block);
+                writeDone(error);
+            }
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() throws IOException
+    {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null)
+            return buffer;
+        if (allocatedBuffers.incrementAndGet() <= POOL_MAX_BUFFERS)
+            return ByteBuffer.allocateDirect(POOL_BUFFER_SIZE);
+        allocatedBuffers.decrementAndGet();
+        try {
+            return pool.take();     // wait for a write to complete
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for buffer");
+        }
+    }
+
+    private static synchronized QueueWorker getWriter()
+    {
+        if (writer == null) {
+            writer = new QueueWorker("TempByteOutput writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        return writer;
+    }
+}
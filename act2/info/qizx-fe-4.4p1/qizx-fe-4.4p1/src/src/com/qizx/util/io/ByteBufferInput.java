@@ -0,0 +1,318 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+
+/**
+ * ByteInput reading from a NIO ByteBuffer (heap, direct or memory-mapped),
+ * with the same encoding as ByteInputBase.
+ * <p>
+ * Data is not copied into an intermediate byte array: fixed-size values are
+ * read with ByteBuffer.getInt/getLong (big-endian), and strings are decoded
+ * directly from the buffer. Subclasses can read a sequence of buffers by
+ * redefining {@link #nextBuffer()}; values spanning two buffers are then
+ * read byte by byte.
+ */
+public class ByteBufferInput
+    implements ByteInput
+{
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    protected ByteBuffer buffer;
+
+    /**
+     * Reads the remaining bytes of a buffer. The position of the buffer
+     * argument itself is not modified.
+     */
+    public ByteBufferInput(ByteBuffer buffer)
+    {
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    protected ByteBufferInput()
+    {
+        buffer = EMPTY;
+    }
+
+    /**
+     * Returns the next buffer to read when the current one is exhausted, or
+     * null at end of input.
+     */
+    protected ByteBuffer nextBuffer()
+        throws IOException
+    {
+        return null;
+    }
+
+    private boolean refill()
+        throws IOException
+    {
+        while (!buffer.hasRemaining()) {
+            ByteBuffer next = nextBuffer();
+            if (next == null)
+                return false;
+            buffer = next.order(ByteOrder.BIG_ENDIAN);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position in the current buffer.
+     */
+    public int getPosition()
+    {
+        return buffer.position();
+    }
+
+    /**
+     * Moves to a position in the current buffer.
+     */
+    public void setPosition(int position)
+    {
+        buffer.position(position);
+    }
+
+    public int getByte()
+        throws IOException
+    {
+        if (!buffer.hasRemaining() && !refill())
+            return -1;
+        return buffer.get() & 0xff;
+    }
+
+    public int getBytes(byte[] buf)
+        throws IOException
+    {
+        return getBytes(buf, 0, buf.length);
+    }
+
+    public int getBytes(byte[] buf, int start, int length)
+        throws IOException
+    {
+        int readSize = 0;
+        while (readSize < length && refill()) {
+            int L = Math.min(buffer.remaining(), length - readSize);
+            buffer.get(buf, start + readSize, L);
+            readSize += L;
+        }
+        return readSize;
+    }
+
+    public int getInt()
+        throws IOException
+    {
+        if (buffer.remaining() >= 4)
+            return buffer.getInt();
+        int b3 = getByte() & 0xff;
+        int b2 = getByte() & 0xff;
+        int b1 = getByte() & 0xff;
+        int b0 = getByte() & 0xff;
+        return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+    }
+
+    public long getLong()
+        throws IOException
+    {
+        if (buffer.remaining() >= 8)
+            return buffer.getLong();
+        long r = getByte() & 0xff;
+        for (int i = 0; i < 7; i++)
+            r = (r << 8) | (getByte() & 0xff);
+        return r;
+    }
+
+    public double getDouble()
+        throws IOException
+    {
+        return Double.longBitsToDouble(getLong());
+    }
+
+    public int getVint()
+        throws IOException
+    {
+        return (int) getVlong();
+    }
+
+    public long getVlong()
+        throws IOException
+    {
+        ByteBuffer buf = buffer;
+        int pos = buf.position();
+        if (pos > buf.limit() - 9)
+            return slowGetVlong();
+        int b = buf.get(pos) & 0xff;
+        if (b < 0x80) {
+            buf.position(pos + 1);
+            return b;
+        }
+        // the count of leading 1 bits is the count of following bytes,
+        // except for the 3 last codes (48, 56, 64 bits)
+        int more = Integer.numberOfLeadingZeros(~(b << 24));
+        long prefix = b & (0x7f >> more);
+        if (b >= 0xfc) {
+            if (b == 0xff)
+                throw new ByteIOException("bad first byte for Vlong at "
+                                          + pos);
+            more = b - 0xf6;
+            prefix = 0;
+        }
+        // following bytes are the high bytes of a big-endian long:
+        long low = buf.getLong(pos + 1) >>> (64 - 8 * more);
+        buf.position(pos + 1 + more);
+        return (prefix << (8 * more)) | low;
+    }
+
+    /**
+     * Reads n Vints into <code>out[0 .. n[</code> (same as n calls of
+     * getVint).
+     */
+    public void decodeVints(int[] out, int n)
+        throws IOException
+    {
+        for (int i = 0; i < n; i++)
+            out[i] = (int) getVlong();
+    }
+
+    private long slowGetVlong()
+        throws IOException
+    {
+        int b = getByte();
+        if (b < 0)
+            throw new ByteIOException("end of input");
+        if (b < 0x80)
+            return b;
+        int more = Integer.numberOfLeadingZeros(~(b << 24));
+        long value = b & (0x7f >> more);
+        if (b >= 0xfc) {
+            if (b == 0xff)
+                throw new ByteIOException("bad first byte for Vlong");
+            more = b - 0xf6;
+            value = 0;
+        }
+        for (; more > 0; --more)
+            value = (value << 8) | (getByte() & 0xff);
+        return value;
+    }
+
+    public void getChars(char[] chars, int pos, int length, boolean wide)
+        throws IOException
+    {
+        if (length < 0 || pos + length > chars.length)
+            length = chars.length - pos;
+        if (wide) {
+            if (buffer.remaining() >= 2 * length) {
+                // big-endian view: same as MSB first
+                buffer.asCharBuffer().get(chars, pos, length);
+                buffer.position(buffer.position() + 2 * length);
+            }
+            else
+                for (int i = 0; i < length; i++) {
+                    int hi = getByte();
+                    chars[pos + i] = (char) ((hi << 8) + (getByte() & 0xff));
+                }
+        }
+        else {
+            if (buffer.remaining() >= length) {
+                ByteBuffer buf = buffer;
+                int ptr = buf.position();
+                for (int i = 0; i < length; i++)
+                    chars[pos + i] = (char) (buf.get(ptr + i) & 0xff);
+                buf.position(ptr + length);
+            }
+            else
+                for (int i = 0; i < length; i++)
+                    chars[pos + i] = (char) (getByte() & 0xff);
+        }
+    }
+
+    public char[] getChars()
+        throws IOException
+    {
+        int L = getVint();
+        if (L == ByteOutputBase.STRING_UTF8) {
+            int size = getVint();
+            char[] chars = new char[size];
+            L = getUTF8(size, chars);
+            if (L == size)
+                return chars;
+            char[] result = new char[L];
+            System.arraycopy(chars, 0, result, 0, L);
+            return result;
+        }
+        boolean wide = (L & 1) != 0;
+        L >>= 1;
+        char[] chars = new char[L];
+        getChars(chars, 0, L, wide);
+        return chars;
+    }
+
+    @SuppressWarnings("deprecation")
+    public String getString()
+        throws IOException
+    {
+        int L = getVint();
+        if (L == ByteOutputBase.STRING_UTF8) {
+            int size = getVint();
+            char[] chars = new char[size];
+            return new String(chars, 0, getUTF8(size, chars));
+        }
+        boolean wide = (L & 1) != 0;
+        L >>= 1;
+        ByteBuffer buf = buffer;
+        int ptr = buf.position();
+        if (wide && buf.remaining() >= 2 * L) {
+            CharBuffer chars = buf.asCharBuffer();
+            chars.limit(L);
+            buf.position(ptr + 2 * L);
+            return chars.toString();
+        }
+        if (!wide && buf.remaining() >= L && buf.hasArray()) {
+            // Latin-1 bytes straight to the String
+            buf.position(ptr + L);
+            return new String(buf.array(), 0, buf.arrayOffset() + ptr, L);
+        }
+        char[] chars = new char[L];
+        getChars(chars, 0, L, wide);
+        return new String(chars);
+    }
+
+    // decodes 'size' bytes of UTF-8, returns the length
+    private int getUTF8(int size, char[] chars)
+        throws IOException
+    {
+        ByteBuffer buf = buffer;
+        if (buf.hasArray() && buf.remaining() >= size) {
+            int start = buf.arrayOffset() + buf.position();
+            buf.position(buf.position() + size);
+            return ByteInputBase.decodeUTF8(buf.array(), start, start + size,
+                                            chars, 0);
+        }
+        byte[] bytes = new byte[size];
+        if (getBytes(bytes, 0, size) < size)
+            throw new EOFException();
+        return ByteInputBase.decodeUTF8(bytes, 0, size, chars, 0);
+    }
+
+    public void close()
+        throws IOException
+    {
+        buffer = EMPTY;
+    }
+
+    public void inspect()
+    {
+        System.err.println(getClass() + " position=" + buffer.position()
+                           + " limit=" + buffer.limit());
+    }
+}
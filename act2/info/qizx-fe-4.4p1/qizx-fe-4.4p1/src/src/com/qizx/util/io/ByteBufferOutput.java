@@ -0,0 +1,327 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * ByteOutput writing into a NIO ByteBuffer (heap or direct), with the same
+ * encoding as ByteOutputBase (including the choice of string format).
+ * <p>
+ * Fixed-size values are written with ByteBuffer.putInt/putLong. If a
+ * channel is specified, the buffer is written to it when full (a direct
+ * buffer avoids a copy in the channel); otherwise the buffer grows, and its
+ * contents can be read back with {@link #getBuffer()}.
+ */
+public class ByteBufferOutput
+    implements ByteOutput
+{
+    // first byte of Vlong according to the number of following bytes:
+    private static final int[] VLONG_MARKS = {
+        0, 0x80, 0xc0, 0xe0, 0xf0, 0xf8, 0xfc, 0xfd, 0xfe
+    };
+
+    protected ByteBuffer buffer;
+    protected WritableByteChannel channel;
+    protected int curFlushMark = -1;
+    protected boolean utf8Strings;
+
+    /**
+     * In-memory output in a growable direct buffer.
+     */
+    public ByteBufferOutput(int capacity)
+    {
+        this(ByteBuffer.allocateDirect(Math.max(capacity, 16)));
+    }
+
+    /**
+     * In-memory output starting at the position of the buffer. The buffer
+     * is replaced by a larger one of the same kind when full.
+     */
+    public ByteBufferOutput(ByteBuffer buffer)
+    {
+        this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Output to a channel through a direct buffer.
+     */
+    public ByteBufferOutput(WritableByteChannel channel, int bufferSize)
+    {
+        this(bufferSize);
+        this.channel = channel;
+    }
+
+    /**
+     * Allows strings in modified UTF-8, not readable by older versions: see
+     * {@link ByteOutputBase#setUTF8Strings}.
+     */
+    public void setUTF8Strings(boolean enabled)
+    {
+        utf8Strings = enabled;
+    }
+
+    /**
+     * Returns the bytes written so far (for in-memory output), as a buffer
+     * ready for reading, sharing the contents of the output buffer.
+     */
+    public ByteBuffer getBuffer()
+    {
+        ByteBuffer result = buffer.duplicate();
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Discards any buffered data.
+     */
+    public void reset()
+    {
+        buffer.clear();
+        curFlushMark = -1;
+    }
+
+    public void flushMark()
+        throws IOException
+    {
+        curFlushMark = buffer.position();
+    }
+
+    public void flush()
+        throws IOException
+    {
+        if (channel != null && buffer.position() > 0)
+            flushBuffer();
+    }
+
+    public void close()
+        throws IOException
+    {
+        flush();
+        if (channel != null)
+            channel.close();
+    }
+
+    // makes room for at least 'size' bytes
+    private void ensure(int size)
+        throws IOException
+    {
+        while (buffer.remaining() < size)
+            flushBuffer();
+    }
+
+    protected void flushBuffer()
+        throws IOException
+    {
+        if (channel == null || curFlushMark == 0) {
+            // cannot make room: increase buffer size
+            ByteBuffer old = buffer;
+            int capacity = 2 * old.capacity();
+            buffer = old.isDirect() ? ByteBuffer.allocateDirect(capacity)
+                                    : ByteBuffer.allocate(capacity);
+            old.flip();
+            buffer.put(old);
+            return;
+        }
+        int size = (curFlushMark > 0) ? curFlushMark : buffer.position();
+        buffer.flip();
+        ByteBuffer out = buffer.duplicate();
+        out.limit(size);
+        while (out.hasRemaining())
+            channel.write(out);
+        // leftover bytes to beginning of buffer:
+        buffer.position(size);
+        buffer.compact();
+        if (curFlushMark > 0)
+            curFlushMark = 0;
+    }
+
+    public void putByte(int b)
+        throws IOException
+    {
+        if (!buffer.hasRemaining())
+            flushBuffer();
+        buffer.put((byte) b);
+    }
+
+    public void putBytes(byte[] buf, int length)
+        throws IOException
+    {
+        putBytes(buf, 0, length);
+    }
+
+    public void putBytes(byte[] buf, int start, int length)
+        throws IOException
+    {
+        while (length > 0) {
+            if (!buffer.hasRemaining())
+                flushBuffer();
+            int L = Math.min(buffer.remaining(), length);
+            buffer.put(buf, start, L);
+            start += L;
+            length -= L;
+        }
+    }
+
+    public void padding(int size, int value)
+        throws IOException
+    {
+        for (; size > 0; --size)
+            putByte(value);
+    }
+
+    public void putInt(int code)
+        throws IOException
+    {
+        ensure(4);
+        buffer.putInt(code);
+    }
+
+    public void putLong(long code)
+        throws IOException
+    {
+        ensure(8);
+        buffer.putLong(code);
+    }
+
+    public void putDouble(double value)
+        throws IOException
+    {
+        putLong(Double.doubleToRawLongBits(value));
+    }
+
+    public void putVint(int code)
+        throws IOException
+    {
+        putVlong(code);
+    }
+
+    public void putVlong(long code)
+        throws IOException
+    {
+        if (code < 0)
+            throw new IllegalArgumentException("negative Vlong " + code);
+        ensure(9);
+        ByteBuffer buf = buffer;
+        if (code < 0x80) {
+            buf.put((byte) code);
+            return;
+        }
+        // count of following bytes: 7 bits per byte up to 42 bits
+        int more = (code < (1L << 42))
+                     ? (63 - Long.numberOfLeadingZeros(code)) / 7
+                     : (code < (1L << 48)) ? 6 : (code < (1L << 56)) ? 7 : 8;
+        int pos = buf.position();
+        int first = VLONG_MARKS[more];
+        if (more <= 5)
+            first |= (int) (code >>> (8 * more));
+        buf.put(pos, (byte) first);
+        // following bytes as the high bytes of a big-endian long; the
+        // trailing bytes are garbage beyond the position:
+        buf.putLong(pos + 1, code << (64 - 8 * more));
+        buf.position(pos + 1 + more);
+    }
+
+    /**
+     * Writes n Vints from <code>values[0 .. n[</code> (same as n calls of
+     * putVint).
+     */
+    public void encodeVints(int[] values, int n)
+        throws IOException
+    {
+        for (int i = 0; i < n; i++)
+            putVlong(values[i]);
+    }
+
+    public void putString(String s)
+        throws IOException
+    {
+        if (s == null)
+            s = "";
+        int length = s.length();
+        int utf8 = ByteOutputBase.wideUTF8Length(s, 0, length);
+        if (utf8 >= 0 && utf8Strings
+            && ByteOutputBase.preferUTF8(utf8, length)) {
+            putUTF8(s, 0, length, utf8);
+            return;
+        }
+        boolean wide = utf8 >= 0;
+        putVint((length << 1) + (wide ? 1 : 0));
+        int size = wide ? 2 * length : length;
+        if (buffer.remaining() < size) {
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (wide)
+                    putByte(c >> 8);
+                putByte(c);
+            }
+            return;
+        }
+        ByteBuffer buf = buffer;
+        int pos = buf.position();
+        if (wide)
+            for (int i = 0; i < length; i++)
+                buf.putChar(pos + 2 * i, s.charAt(i));
+        else
+            for (int i = 0; i < length; i++)
+                buf.put(pos + i, (byte) s.charAt(i));
+        buf.position(pos + size);
+    }
+
+    public void putChars(char[] chars, int start, int length)
+        throws IOException
+    {
+        if (start < 0 || start + length > chars.length)
+            throw new ArrayIndexOutOfBoundsException();
+        CharBuffer text = CharBuffer.wrap(chars);
+        int utf8 = ByteOutputBase.wideUTF8Length(text, start, length);
+        if (utf8 >= 0 && utf8Strings
+            && ByteOutputBase.preferUTF8(utf8, length)) {
+            putUTF8(text, start, length, utf8);
+            return;
+        }
+        boolean wide = utf8 >= 0;
+        putVint((length << 1) + (wide ? 1 : 0));
+        int size = wide ? 2 * length : length;
+        if (buffer.remaining() < size) {
+            for (int i = 0; i < length; i++) {
+                char c = chars[start + i];
+                if (wide)
+                    putByte(c >> 8);
+                putByte(c);
+            }
+            return;
+        }
+        if (wide) {
+            // big-endian view: same as MSB first
+            buffer.asCharBuffer().put(chars, start, length);
+        }
+        else {
+            ByteBuffer buf = buffer;
+            int pos = buf.position();
+            for (int i = 0; i < length; i++)
+                buf.put(pos + i, (byte) chars[start + i]);
+        }
+        buffer.position(buffer.position() + size);
+    }
+
+    private void putUTF8(CharSequence s, int start, int length, int size)
+        throws IOException
+    {
+        putVint(ByteOutputBase.STRING_UTF8);
+        putVint(size);
+        byte[] bytes = new byte[size];
+        ByteOutputBase.encodeUTF8(s, start, length, bytes, 0);
+        putBytes(bytes, 0, size);
+    }
+}
@@ -10,6 +10,7 @@
 package com.qizx.util.io;
 
 import java.io.*;
+import java.nio.CharBuffer;
 
 /**
  *	
@@ -23,7 +24,22 @@ public abstract class ByteInputBase //extends InputStream
     protected int    bufSize;
     protected int    ptr;
     protected char[] strBuffer = new char[128];
+    private transient CharBuffer textView;  // on strBuffer
     protected int    blocksRead;    // count
+    protected long   bufferStart;   // position in the stream of data[0]
+
+    // for each first byte of a Vlong, count of following bytes
+    // (-1 if invalid) and mask of the value bits it contains:
+    private static final byte[] VLONG_MORE = new byte[256];
+    private static final byte[] VLONG_MASK = new byte[256];
+    static {
+        for (int b = 0; b < 256; b++) {
+            int more = Integer.numberOfLeadingZeros(~(b << 24));
+            VLONG_MORE[b] = (byte) (b < 0xfc ? more : b - 0xf6);
+            VLONG_MASK[b] = (byte) (b < 0xfc ? 0x7f >> more : 0);
+        }
+        VLONG_MORE[0xff] = -1;
+    }
     
     public ByteInputBase() {
         this(4096);
@@ -45,6 +61,7 @@ public abstract class ByteInputBase //extends InputStream
     {
         bufSize = ptr = 0;
         blocksRead = 0;
+        bufferStart = 0;
     }
     
     public void close()
@@ -56,9 +73,10 @@ public abstract class ByteInputBase //extends InputStream
     protected abstract int readBuffer()
         throws IOException;
 
+    // buffers can have different sizes (short reads, blocks read in place)
     public long tell()
     {
-        return (blocksRead - 1) * data.length + ptr;
+        return bufferStart + ptr;
     }
     
     public int getByte()
@@ -70,6 +88,7 @@ public abstract class ByteInputBase //extends InputStream
                 return -1;
             }
             ++blocksRead;
+            bufferStart += bufSize;
             bufSize = L;
             ptr = 1;
             return data[0] & 0xff;
@@ -94,6 +113,7 @@ public abstract class ByteInputBase //extends InputStream
                 ++ blocksRead;
                 if(L <= 0)
                     return readsize;
+                bufferStart += bufSize;
                 bufSize = L;
                 ptr = 0;
             }
@@ -118,12 +138,28 @@ public abstract class ByteInputBase //extends InputStream
     public int getVint()
         throws IOException
     {
-        if (ptr <= bufSize - 5)
+        if (ptr <= bufSize - 9 || inBuffer())
             return (int) vdecode();
         else
             return (int) slowGetVlong();
     }
 
+    /**
+     * Reads n Vints into <code>out[0 .. n[</code> (same as n calls of
+     * getVint).
+     */
+    public void decodeVints(int[] out, int n)
+        throws IOException
+    {
+        for (int i = 0; i < n;) {
+            // values cannot exceed the buffer up to this point:
+            for (int limit = bufSize - 9; i < n && ptr <= limit;)
+                out[i++] = (int) vdecode();
+            if (i < n)
+                out[i++] = getVint();
+        }
+    }
+
     public long getLong()
         throws IOException
     {
@@ -137,7 +173,7 @@ public abstract class ByteInputBase //extends InputStream
     public long getVlong()
         throws IOException
     {
-        if (ptr <= bufSize - 9)
+        if (ptr <= bufSize - 9 || inBuffer())
             return vdecode();
         else
             return slowGetVlong();
@@ -186,20 +222,65 @@ public abstract class ByteInputBase //extends InputStream
         }
     }
     
+    /**
+     * Reads a string written by ByteOutputBase.putString.
+     */
+    @SuppressWarnings("deprecation")
     public String getString() throws IOException
     {
         int L = getVint();
+        if(L == ByteOutputBase.STRING_UTF8) {
+            L = getUTF8(getVint());     // can reallocate strBuffer
+            return new String(strBuffer, 0, L);
+        }
         boolean wide = (L & 1) != 0;
         L >>= 1;
+        if(!wide && ptr + L <= bufSize) {
+            // Latin-1 bytes straight to the String
+            String s = new String(data, 0, ptr, L);
+            ptr += L;
+            return s;
+        }
         if(L > strBuffer.length)
             strBuffer = new char[L + L / 4];
         getChars(strBuffer, 0, L, wide);
         return new String(strBuffer, 0, L);
     }
     
+    /**
+     * Reads a string written by ByteOutputBase.putString into a reusable
+     * buffer, without allocating a String.
+     * @return a view of the characters, valid until the next read of a
+     * string
+     */
+    public CharSequence getText() throws IOException
+    {
+        int L = getVint();
+        if(L == ByteOutputBase.STRING_UTF8)
+            L = getUTF8(getVint());
+        else {
+            boolean wide = (L & 1) != 0;
+            L >>= 1;
+            if(L > strBuffer.length)
+                strBuffer = new char[L + L / 4];
+            getChars(strBuffer, 0, L, wide);
+        }
+        if(textView == null || textView.array() != strBuffer)
+            textView = CharBuffer.wrap(strBuffer);
+        textView.clear();
+        textView.limit(L);
+        return textView;
+    }
+    
     public char[] getChars() throws IOException
     {
         int L = getVint();
+        if(L == ByteOutputBase.STRING_UTF8) {
+            L = getUTF8(getVint());
+            char[] chars = new char[L];
+            System.arraycopy(strBuffer, 0, chars, 0, L);
+            return chars;
+        }
         boolean wide = (L & 1) != 0;
         L >>= 1;
         char[] chars = new char[L];
@@ -207,132 +288,111 @@ public abstract class ByteInputBase //extends InputStream
         return chars;
     }
     
-    public void getChars(char[] chars, int length) throws IOException
+    // decodes 'size' bytes of UTF-8 into strBuffer, returns the length
+    private int getUTF8(int size) throws IOException
     {
-        getChars(chars, 0, length, true);
+        if(size > strBuffer.length)
+            strBuffer = new char[size + size / 4];
+        if(ptr + size <= bufSize) {
+            int L = decodeUTF8(data, ptr, ptr + size, strBuffer, 0);
+            ptr += size;
+            return L;
+        }
+        byte[] bytes = new byte[size];
+        if(getBytes(bytes, 0, size) < size)
+            throw new EOFException();
+        return decodeUTF8(bytes, 0, size, strBuffer, 0);
     }
     
-    private long slowGetVlong() throws IOException
+    /**
+     * Decodes modified UTF-8 from <code>bytes[start .. end[</code>. The
+     * char buffer must have room for end - start chars.
+     * @return the number of chars decoded
+     */
+    public static int decodeUTF8(byte[] bytes, int start, int end,
+                                 char[] chars, int pos)
     {
-        int b = getByte(), b2, b3;
-        
-        if(b < 128)
-            return b;
-        switch( b & 0x7f ) {
-        default:
-            // 14 bits
-            return ((b & 0x3f) << 8) | getByte();
-        
-        case 64: case 65: case 66: case 67: case 68: case 69: case 70: case 71: 
-        case 72: case 73: case 74: case 75: case 76: case 77: case 78: case 79: 
-        case 80: case 81: case 82: case 83: case 84: case 85: case 86: case 87: 
-        case 88: case 89: case 90: case 91: case 92: case 93: case 94: case 95:
-            // 21 bits:
-            b2 = getByte();
-            b3 = getByte();
-            return ((b & 0x1f) << 16) | (b2 << 8) | b3;
-            
-        case 96: case 97: case 98: case 99:
-        case 100: case 101: case 102: case 103: 
-        case 104: case 105: case 106: case 107:
-        case 108: case 109: case 110: case 111:
-            // 28 bits:
-            return slowGetBytes(b & 0x0f, 3);
-            
-        case 112: case 113: case 114: case 115:
-        case 116: case 117: case 118: case 119:
-            // 35 bits:
-            return slowGetBytes(b & 0x07, 4);
-            
-        case 120: case 121: case 122: case 123:  // 42 bits:
-            return slowGetBytes(b & 0x03, 5);
-        case 124:
-            return slowGetBytes(0, 6);	// 48 bits
-        case 125:
-            return slowGetBytes(0, 7);	// 56 bits
-        case 126:
-            return slowGetBytes(0, 8);	// 64 bits
-        case 127:	    
-            throw new ByteIOException("bad first byte for Vlong at ptr=" + ptr);
+        int p = start, c = pos;
+        while(p < end) {
+            int b = bytes[p];
+            if(b >= 0) {
+                chars[c++] = (char) b;
+                ++ p;
+            }
+            else if((b & 0xe0) == 0xc0) {
+                chars[c++] = (char) (((b & 0x1f) << 6) | (bytes[p + 1] & 0x3f));
+                p += 2;
+            }
+            else {
+                chars[c++] = (char) (((b & 0x0f) << 12)
+                                     | ((bytes[p + 1] & 0x3f) << 6)
+                                     | (bytes[p + 2] & 0x3f));
+                p += 3;
+            }
         }
+        return c - pos;
     }
     
-    private long slowGetBytes(long prefix, int bytes)
-        throws IOException
+    public void getChars(char[] chars, int length) throws IOException
+    {
+        getChars(chars, 0, length, true);
+    }
+    
+    // true if the Vlong at ptr is entirely in the buffer
+    private boolean inBuffer()
     {
-        int shift = (bytes - 1) * 8;
-        prefix <<= shift + 8;
-        for (int i = 0; i < bytes; i++, shift -= 8)
-            prefix |= ((long) getByte()) << shift;
-        return prefix;
+        return ptr < bufSize && ptr + VLONG_MORE[data[ptr] & 0xff] < bufSize;
+    }
+
+    private long slowGetVlong() throws IOException
+    {
+        int b = getByte();
+        if (b < 128)
+            return b;   // or -1 at EOF
+        int more = VLONG_MORE[b];
+        if (more < 0)
+            throw new ByteIOException("bad first byte for Vlong at ptr=" + ptr);
+        long value = b & VLONG_MASK[b];
+        for (; more > 0; --more)
+            value = (value << 8) | getByte();
+        return value;
     }
     
     /**
-     * Decodes a variable length integer (any size)
+     * Decodes a variable length integer (any size). Assumes that the value
+     * is entirely in the buffer.
      */
+    @SuppressWarnings("fallthrough")
     public long vdecode() throws ByteIOException
     {
-        byte b = data[ptr];
+        byte[] d = data;
+        int p = ptr;
+        int b = d[p++];
         
         if(b >= 0) {
-            ++ ptr;
+            ptr = p;
             return b;
         }
-        
-        switch( b & 0x7f ) {
+        b &= 0xff;
+        int more = VLONG_MORE[b];
+        long value = b & VLONG_MASK[b];
+        // unrolled: one jump, then one step per byte
+        // (each case intentionally falls through to the next)
+        switch (more) {
+        case 8: value = (value << 8) | (d[p++] & 0xff);
+        case 7: value = (value << 8) | (d[p++] & 0xff);
+        case 6: value = (value << 8) | (d[p++] & 0xff);
+        case 5: value = (value << 8) | (d[p++] & 0xff);
+        case 4: value = (value << 8) | (d[p++] & 0xff);
+        case 3: value = (value << 8) | (d[p++] & 0xff);
+        case 2: value = (value << 8) | (d[p++] & 0xff);
+        case 1: value = (value << 8) | (d[p++] & 0xff);
+            break;
         default:
-            // 14 bits
-            ptr += 2;
-            return ((b & 0x3f) << 8) | (data[ptr - 1] & 0xff);
-        
-        case 64: case 65: case 66: case 67: case 68: case 69: case 70: case 71: 
-        case 72: case 73: case 74: case 75: case 76: case 77: case 78: case 79: 
-        case 80: case 81: case 82: case 83: case 84: case 85: case 86: case 87: 
-        case 88: case 89: case 90: case 91: case 92: case 93: case 94: case 95:
-            // 21 bits:
-            ptr += 3;
-            return ((b & 0x1f) << 16)
-                | ((data[ptr-2] & 0xff) << 8)
-                | (data[ptr-1] & 0xff);
-            
-        case 96: case 97: case 98: case 99:
-        case 100: case 101: case 102: case 103: 
-        case 104: case 105: case 106: case 107:
-        case 108: case 109: case 110: case 111:
-            // 28 bits:
-            ptr += 4;
-            int lo = ((b & 0xf) << 24)
-                   | ((data[ptr-3] & 0xff) << 16)
-                   | ((data[ptr-2] & 0xff) << 8)
-                   | (data[ptr-1] & 0xff);
-            return lo & 0xffffffffL;
-
-        case 112: case 113: case 114: case 115:
-        case 116: case 117: case 118: case 119:  // 35 bits:
-            return decodeBytes(b & 0x07, 4);     // 3 bits + 4 bytes
-            
-        case 120: case 121: case 122: case 123:  // 42 bits:
-            return decodeBytes(b & 0x03, 5);     // 2 bits + 5 bytes
-        
-        case 124:
-            return decodeBytes(0, 6);	// 48 bits
-        case 125:
-            return decodeBytes(0, 7);	// 56 bits
-        case 126:
-            return decodeBytes(0, 8);	// 64 bits
-        case 127:	    
             throw new ByteIOException("bad first byte for Vlong at ptr=" + ptr);
         }
-    }
-    
-    private long decodeBytes(long prefix, int bytes)
-    {
-        int shift = (bytes - 1) * 8;
-        prefix <<= shift + 8;
-        for(int i = 1; i <= bytes; i++, shift -= 8)
-            prefix |= ((long)(data[ptr + i] & 0xff)) << shift;
-        ptr += bytes + 1;
-        return prefix;
+        ptr = p;
+        return value;
     }
     
     // ------------- InputStream ----------------------
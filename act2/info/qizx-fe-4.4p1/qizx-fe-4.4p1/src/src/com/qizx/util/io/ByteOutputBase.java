@@ -11,6 +11,7 @@ package com.qizx.util.io;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
 /**
@@ -19,12 +20,18 @@ import java.util.Arrays;
 public abstract class ByteOutputBase
     implements ByteOutput, Serializable
 {
+    /**
+     * String header announcing modified UTF-8 (see putString).
+     */
+    public static final int STRING_UTF8 = 1;
+    
     protected int    bufferSize;	// allocated size
     protected byte[] data;
     protected int    bufPtr;
     protected int    curFlushMark = -1;
     protected boolean trace = false;
     protected long   byteCount;
+    protected boolean utf8Strings = false;
     
     protected ByteOutputBase() {
         this(8192);
@@ -46,6 +53,18 @@ public abstract class ByteOutputBase
     protected abstract void writeBuffer(byte[] buffer, int size)
         throws IOException;
     
+    /**
+     * Allows strings to be written in modified UTF-8 (see putString).
+     * Disabled by default: readers before this format version take the
+     * header {@link #STRING_UTF8} for an empty string and lose sync, so it
+     * must be enabled only for data read by current code (all readers
+     * accept both forms). Data written with this option is not readable
+     * by older versions.
+     */
+    public void setUTF8Strings(boolean enabled) {
+        utf8Strings = enabled;
+    }
+    
     /**
      * Discards any buffered data.
      */
@@ -152,6 +171,21 @@ public abstract class ByteOutputBase
             slowPutVlong(code);
     }
     
+    /**
+     * Writes n Vints from <code>values[0 .. n[</code> (same as n calls of
+     * putVint).
+     */
+    public void encodeVints(int[] values, int n) throws IOException
+    {
+        for (int i = 0; i < n;) {
+            // room for a Vint of 5 bytes up to this point:
+            for (int limit = bufferSize - 5; i < n && bufPtr <= limit;)
+                bufPtr = encodeInt(values[i++], data, bufPtr);
+            if (i < n)
+                putVint(values[i++]);
+        }
+    }
+    
     public void putLong(long code) throws IOException
     {
         putByte((byte)(code >> 56));
@@ -196,45 +230,21 @@ public abstract class ByteOutputBase
             slowPutBytes(r, 8);
     }
     
+    /**
+     * Writes a string. The header is a Vint: if even, it is twice the
+     * length of a Latin-1 string written with 1 byte per char; if odd and
+     * greater than 1, twice the length of a string written with 2 bytes per
+     * char (MSB first); if equal to {@link #STRING_UTF8}, it is followed by
+     * the size in bytes of the string in modified UTF-8 (like
+     * DataOutput.writeUTF). UTF-8 is used only if enabled by
+     * {@link #setUTF8Strings} and smaller than 2 bytes per char.
+     */
     public void  putString(String s) throws IOException
     {
         if(s == null)
             s = "";
         if(trace) System.err.println(" put chars "+s);
-        int length = s.length();
-        boolean wide = ByteOutputBase.isWideString(s);
-        putVint((length << 1) + (wide ? 1 : 0));
-        if(wide) {
-            if(bufPtr + 2 * length <= bufferSize) {
-                for(int i = 0; i < length; i++) {    
-                    int p = bufPtr + 2 * i;
-                    char c = s.charAt(i);
-                    data[p] = (byte) (c >> 8);
-                    data[p + 1] = (byte) c;
-                }
-                bufPtr += 2 * length;
-            }
-            else
-                for(int i = 0; i < length; i++) {    
-                    char c = s.charAt(i);
-                    putByte( (byte) (c >> 8) );
-                    putByte( (byte) c );
-                }
-        }
-        else {
-            if(bufPtr + length <= bufferSize) {
-                for(int i = 0; i < length; i++) {    
-                    char c = s.charAt(i);
-                    data[bufPtr + i] = (byte) c;
-                }
-                bufPtr += length;
-            }
-            else
-                for(int i = 0; i < length; i++) {    
-                    char c = s.charAt(i);
-                    putByte( (byte) c );
-                }
-        }
+        putText(s, 0, s.length());
     }
     
     public void putChars(char[] chars, int start, int length) throws IOException
@@ -242,14 +252,51 @@ public abstract class ByteOutputBase
         if(start < 0 || start + length > chars.length)
             throw new ArrayIndexOutOfBoundsException();
         if(trace) System.err.println(" put chars "+new String(chars));
-        // putVint(length);
-        boolean wide = ByteOutputBase.isWideString(chars, start, length);
-        putVint((length << 1) + (wide ? 1 : 0));
-        if(wide) {
+        putText(CharBuffer.wrap(chars), start, length);
+    }
+    
+    private void putText(CharSequence s, int start, int length)
+        throws IOException
+    {
+        // fast path: Latin-1 copied after its header, without prior scan
+        if(bufPtr <= bufferSize - 5 - length) {
+            byte[] d = data;
+            int ptr = encodeInt(length << 1, d, bufPtr), i = 0;
+            for(; i < length; i++) {
+                char c = s.charAt(start + i);
+                if(c >= 256)
+                    break;
+                d[ptr + i] = (byte) c;
+            }
+            if(i == length) {
+                bufPtr = ptr + length;
+                return;
+            }
+            // wide: rewritten below
+        }
+        int utf8 = wideUTF8Length(s, start, length);
+        if(utf8 < 0) {
+            putVint(length << 1);
+            for(int i = 0; i < length; i++)
+                putByte((byte) s.charAt(start + i));
+        }
+        else if(utf8Strings && preferUTF8(utf8, length)) {
+            putVint(STRING_UTF8);
+            putVint(utf8);
+            if(bufPtr + utf8 <= bufferSize)
+                bufPtr = encodeUTF8(s, start, length, data, bufPtr);
+            else {
+                byte[] bytes = new byte[utf8];
+                encodeUTF8(s, start, length, bytes, 0);
+                putBytes(bytes, utf8);
+            }
+        }
+        else {
+            putVint((length << 1) + 1);
             if(bufPtr + 2 * length <= bufferSize) {
                 for(int i = 0; i < length; i++) {    
                     int p = bufPtr + 2 * i;
-                    char c = chars[start + i];
+                    char c = s.charAt(start + i);
                     data[p] = (byte) (c >> 8);
                     data[p + 1] = (byte) c;
                 }
@@ -257,25 +304,11 @@ public abstract class ByteOutputBase
             }
             else
                 for(int i = 0; i < length; i++) {    
-                    char c = chars[start + i];
+                    char c = s.charAt(start + i);
                     putByte( (byte) (c >> 8) );
                     putByte( (byte) c );
                 }
         }
-        else {
-            if(bufPtr + length <= bufferSize) {
-                for(int i = 0; i < length; i++) {
-                    char c = chars[start + i];
-                    data[bufPtr + i] = (byte) c;
-                }
-                bufPtr += length;
-            }
-            else
-                for(int i = 0; i < length; i++) {    
-                    char c = chars[start + i];
-                    putByte( (byte) c );
-                }
-        }
     }
     
     //	fixed-width encoding (Unicode MSB first)
@@ -313,6 +346,9 @@ public abstract class ByteOutputBase
         return bytesForVlong( Math.abs(code) << 1 );
     }
 
+    /**
+     * Size of a string in the fixed-width formats (1 or 2 bytes per char).
+     */
     public static int bytesForString( String txt )
     {
         int L = txt.length();
@@ -334,6 +370,60 @@ public abstract class ByteOutputBase
         return false;   
     }
 
+    /**
+     * Returns the size of a string in modified UTF-8 (chars 1 to 0x7f on 1
+     * byte, 0 and up to 0x7ff on 2 bytes, others on 3 bytes), or -1 if all
+     * characters are Latin-1.
+     */
+    public static int wideUTF8Length(CharSequence s, int start, int length)
+    {
+        int size = length;
+        boolean wide = false;
+        for(int i = 0; i < length; i++) {
+            char c = s.charAt(start + i);
+            if(c >= 0x80 || c == 0) {
+                if(c < 0x800)
+                    ++ size;
+                else
+                    size += 2;
+                wide |= (c >= 256);
+            }
+        }
+        return wide ? size : -1;
+    }
+    
+    // true if the UTF-8 form is smaller than 2 bytes per char
+    static boolean preferUTF8(int utf8Length, int length)
+    {
+        return bytesForVint(utf8Length) + 1 + utf8Length
+               < bytesForVint((length << 1) + 1) + 2 * length;
+    }
+    
+    /**
+     * Stores a string in modified UTF-8. Assumes that the buffer is large
+     * enough.
+     * @return the new buffer size.
+     */
+    public static int encodeUTF8(CharSequence s, int start, int length,
+                                 byte[] buffer, int bufSize)
+    {
+        for(int i = 0; i < length; i++) {
+            char c = s.charAt(start + i);
+            if(c < 0x80 && c != 0)
+                buffer[bufSize++] = (byte) c;
+            else if(c < 0x800) {
+                buffer[bufSize++] = (byte) (0xc0 | (c >> 6));
+                buffer[bufSize++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else {
+                buffer[bufSize++] = (byte) (0xe0 | (c >> 12));
+                buffer[bufSize++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[bufSize++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return bufSize;
+    }
+    
     private void slowPutVlong( long code ) throws IOException
     {
         if(code < 0)
@@ -47,6 +47,7 @@ public class CoreByteInput extends ByteInputBase
         this.data = buffer;
         this.bufSize = size;
         this.ptr = 0;
+        this.bufferStart = 0;
     }
     
     protected int readBuffer() {
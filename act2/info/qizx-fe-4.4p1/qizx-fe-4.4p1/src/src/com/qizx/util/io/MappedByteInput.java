@@ -0,0 +1,112 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file, or a region of a file, through memory mapping: data is read
+ * from the page cache without being copied.
+ * <p>
+ * The region is mapped by windows (256 Mb by default), so that files larger
+ * than 2 Gb can be read.
+ */
+public class MappedByteInput extends ByteBufferInput
+{
+    private static final int DEFAULT_WINDOW = 1 << 28;
+
+    private FileChannel channel;
+    private RandomAccessFile file;  // if opened here
+    private long start;
+    private long end;
+    private long windowStart;   // file offset of current buffer
+    private int windowSize;
+
+    public MappedByteInput(File file)
+        throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        init(this.file.getChannel(), 0, this.file.length(), DEFAULT_WINDOW);
+    }
+
+    /**
+     * Reads <code>size</code> bytes of a channel from <code>position</code>.
+     * The channel is not closed by {@link #close()}.
+     */
+    public MappedByteInput(FileChannel channel, long position, long size,
+                           int windowSize)
+        throws IOException
+    {
+        init(channel, position, size, windowSize);
+    }
+
+    private void init(FileChannel channel, long position, long size,
+                      int windowSize)
+        throws IOException
+    {
+        this.channel = channel;
+        this.windowSize = windowSize;
+        start = position;
+        end = position + size;
+        map(start);
+    }
+
+    private void map(long offset)
+        throws IOException
+    {
+        windowStart = offset;
+        long size = Math.min(windowSize, end - offset);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    protected ByteBuffer nextBuffer()
+        throws IOException
+    {
+        long next = windowStart + buffer.limit();
+        if (next >= end)
+            return null;
+        map(next);
+        return buffer;
+    }
+
+    /**
+     * Returns the current position, relative to the start of the region.
+     */
+    public long tell()
+    {
+        return windowStart + buffer.position() - start;
+    }
+
+    /**
+     * Moves to a position relative to the start of the region.
+     */
+    public void seek(long position)
+        throws IOException
+    {
+        long offset = start + position;
+        if (offset < start || offset > end)
+            throw new ByteIOException("seek out of bounds: " + position);
+        if (offset < windowStart || offset >= windowStart + buffer.limit())
+            map(Math.min(offset, Math.max(start, end - 1)));
+        buffer.position((int) (offset - windowStart));
+    }
+
+    public void close()
+        throws IOException
+    {
+        super.close();
+        if (file != null)
+            file.close();
+        file = null;
+    }
+}
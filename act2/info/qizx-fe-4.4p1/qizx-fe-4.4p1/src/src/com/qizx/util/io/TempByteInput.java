@@ -25,12 +25,17 @@ public class TempByteInput extends ByteInputBase
 {
     private File tempFile;
     private FileInputStream input;
+    private byte[][] blocks;    // data in memory
+    private int blockPtr;
     
     public TempByteInput(TempByteOutput source) throws IOException
     {
         super(source.bufferSize);
         tempFile = source.tempFile;
-        if(tempFile == null) {  // data only in buffer
+        if(tempFile == null && source instanceof AsyncTempByteOutput) {
+            blocks = ((AsyncTempByteOutput) source).getMemoryBlocks();
+        }
+        else if(tempFile == null) {  // data only in buffer
             bufSize = source.savedSize;
             System.arraycopy(source.data, 0, data, 0, bufSize);
         }
@@ -59,6 +64,12 @@ public class TempByteInput extends ByteInputBase
 
     protected int readBuffer() throws IOException
     {
+        if(blocks != null) {
+            if(blockPtr >= blocks.length)
+                return -1;
+            data = blocks[blockPtr ++];     // read in place
+            return data.length;
+        }
         return (input == null)? -1 : input.read(data, 0, data.length);
     }
 }
@@ -0,0 +1,92 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.api.util;
+
+import com.qizx.api.QName;
+import com.qizx.util.MicroBench;
+import com.qizx.xdm.IQName;
+
+import java.io.OutputStream;
+
+/**
+ * Serialization of a document of about 1 MB of text in UTF-8, ISO-8859-1
+ * and US-ASCII. Text is mostly ASCII with a few chars to escape, plus
+ * accented and non-Latin words (encoded as char references where the
+ * charset cannot represent them). Uses only the public API of previous
+ * versions, so that it can be run with previous classes first in the
+ * classpath.
+ */
+public class XMLSerializerBench
+{
+    private static final int RECORDS = 10000;
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        String[] texts = {
+            "The quick brown fox jumps over the lazy dog, again and again.",
+            "Price < 100 & weight > 2kg: see \"notes\" for details.",
+            "Caf\u00e9 cr\u00e8me, na\u00efve r\u00e9sum\u00e9 and fa\u00e7ade.",
+            "Plain identifiers: record-1234, item_5678, ref#90.",
+            "\u0391\u03b8\u03ae\u03bd\u03b1 and \u041c\u043e\u0441\u043a\u0432\u0430 are cities."
+        };
+        String[] encodings = { "UTF-8", "ISO-8859-1", "US-ASCII" };
+        for (int e = 0; e < encodings.length; e++)
+            run(encodings[e], texts);
+    }
+
+    private static void run(final String encoding, final String[] texts)
+        throws Exception
+    {
+        final QName RECORD = IQName.get("record");
+        final QName TITLE = IQName.get("title");
+        final QName ID = IQName.get("id");
+        final QName LABEL = IQName.get("label");
+        final long[] volume = new long[1];
+        final OutputStream sink = new OutputStream() {
+            public void write(int b) {
+                ++volume[0];
+            }
+            public void write(byte[] b, int off, int len) {
+                volume[0] += len;
+            }
+        };
+        MicroBench.Task task = new MicroBench.Task() {
+            public long run() throws Exception {
+                volume[0] = 0;
+                XMLSerializer serial = new XMLSerializer(sink, encoding);
+                serial.putDocumentStart();
+                serial.putElementStart(IQName.get("records"));
+                for (int r = 0; r < RECORDS; r++) {
+                    serial.putElementStart(RECORD);
+                    serial.putAttribute(ID, Integer.toString(r), null);
+                    serial.putAttribute(LABEL, texts[r % texts.length], null);
+                    serial.putElementStart(TITLE);
+                    serial.putText(texts[(r + 1) % texts.length]);
+                    serial.putElementEnd(TITLE);
+                    for (int t = 0; t < texts.length; t++)
+                        serial.putText(texts[(r + t) % texts.length]);
+                    serial.putElementEnd(RECORD);
+                }
+                serial.putElementEnd(IQName.get("records"));
+                serial.putDocumentEnd();
+                serial.flush();
+                return volume[0];
+            }
+        };
+        long chars = 0;
+        for (int t = 0; t < texts.length; t++)
+            chars += texts[t].length();
+        // chars of text and attribute values per document
+        long perDoc = RECORDS * (chars + 2 * chars / texts.length);
+        task.run();
+        System.out.println(encoding + ": " + volume[0] + " bytes");
+        MicroBench.measure("  ns per char of text", perDoc, task);
+    }
+}
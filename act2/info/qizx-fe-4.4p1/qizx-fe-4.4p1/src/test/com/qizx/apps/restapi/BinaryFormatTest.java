@@ -0,0 +1,110 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.apps.restapi;
+
+import com.qizx.api.Configuration;
+import com.qizx.api.Expression;
+import com.qizx.api.ItemSequence;
+import com.qizx.api.QName;
+import com.qizx.api.XQuerySession;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.util.SelfTest;
+import com.qizx.util.io.ByteInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Round trip of the binary format of the 'eval' request: the items of a
+ * local evaluation are written by BinaryItemWriter and read back by
+ * BinaryItemSequence, which must restore the type and value of atomic items
+ * and nodes that serialize identically.
+ */
+public class BinaryFormatTest extends SelfTest
+{
+    private static final String QUERY =
+        "(<a x='1' xmlns:p='urn:p'>text <p:b y='&#233;'/><!--c--><?pi d?></a>,"
+        + " document { <r>caf&#233; &#x4e2d; &#x1F600;</r> },"
+        + " attribute att { 'v' }, text { 'standalone' }, comment { 'c' },"
+        + " 0, 42, -7, 9223372036854775807, -9223372036854775807,"
+        + " 1.5e0, xs:float(2.5), 1.25, true(), false(),"
+        + " 'string', '', xs:date('2010-01-01'),"
+        + " fn:QName('urn:q', 'p:local'), xs:QName('xml:lang'),"
+        + " <a x='1' xmlns:p='urn:p'>repeated</a>)";
+
+    private XQuerySession session;
+
+    public static void main(String[] args)
+    {
+        execute(new BinaryFormatTest());
+    }
+
+    protected void run()
+        throws Exception
+    {
+        session = Configuration.createSessionManager(".").createSession();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryItemWriter writer = new BinaryItemWriter(bytes);
+        ItemSequence items = evaluate();
+        writer.putHeader("C1234", BinaryItemWriter.COUNT_EXACT,
+                         items.countItems());
+        while (items.moveToNextItem())
+            writer.putItem(items.getCurrentItem());
+        writer.putEnd();
+
+        BinaryItemSequence read = new BinaryItemSequence(
+            new ByteInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        ItemSequence expected = evaluate();
+        checkEquals("C1234", read.getCursor(), "cursor");
+        checkEquals(expected.countItems(), read.countItems(), "count");
+
+        XMLSerializer serializer = new XMLSerializer();
+        serializer.setOmitXMLDeclaration(true);
+        int position = 0;
+        for (; expected.moveToNextItem(); ++position) {
+            String what = "item " + position;
+            if (!read.moveToNextItem()) {
+                check(false, what + ": missing");
+                break;
+            }
+            checkEquals(expected.getType().toString(),
+                        read.getType().toString(), what + " type");
+            checkEquals(expected.isNode(), read.isNode(), what + " is node");
+            if (expected.isNode())
+                checkEquals(serializer.serializeToString(expected.getNode()),
+                            serializer.serializeToString(read.getNode()),
+                            what + " node");
+            else {
+                checkEquals(expected.getString(), read.getString(),
+                            what + " string value");
+                // the classes of values can differ: compare QNames fully
+                if (expected.getObject() instanceof QName) {
+                    QName name = expected.getQName(), got = read.getQName();
+                    checkEquals(name.getNamespaceURI(), got.getNamespaceURI(),
+                                what + " namespace");
+                    checkEquals(name.getLocalPart(), got.getLocalPart(),
+                                what + " local name");
+                    checkEquals(name.getPrefix(), got.getPrefix(),
+                                what + " prefix");
+                }
+            }
+        }
+        check(!read.moveToNextItem(), "no extra item");
+        checkEquals(position, read.getPosition(), "position at end");
+        check(read.getProfilingAnnotations() == null, "no profiling");
+    }
+
+    private ItemSequence evaluate()
+        throws Exception
+    {
+        Expression expr = session.compileExpression(QUERY);
+        return expr.evaluate();
+    }
+}
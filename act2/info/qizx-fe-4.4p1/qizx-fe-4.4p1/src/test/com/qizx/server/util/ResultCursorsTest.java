@@ -0,0 +1,164 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.Configuration;
+import com.qizx.api.ItemSequence;
+import com.qizx.api.XQuerySession;
+import com.qizx.util.SelfTest;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the life cycle of result cursors: a parked sequence is taken back
+ * once, by its owner only, until it expires; the oldest cursors of a user
+ * are dropped beyond the limit; concurrent requests on the same cursor get
+ * the sequence only once.
+ */
+public class ResultCursorsTest extends SelfTest
+{
+    private XQuerySession session;
+    private QizxDriver driver;
+
+    public static void main(String[] args)
+    {
+        execute(new ResultCursorsTest());
+    }
+
+    protected void run()
+        throws Exception
+    {
+        session = Configuration.createSessionManager(".").createSession();
+        // without sequence cache, released sequences are left to the GC
+        driver = new QizxDriver(null, new File("."));
+
+        takeAndPark();
+        perUserLimit();
+        expiration();
+        concurrentTake();
+    }
+
+    private void takeAndPark()
+        throws Exception
+    {
+        ResultCursors cursors = new ResultCursors(driver, 4, 60000);
+        HashSet<String> ids = new HashSet<String>();
+        for (int i = 0; i < 1000; i++)
+            ids.add(cursors.newId());
+        checkEquals(1000, ids.size(), "unique identifiers");
+
+        String id = cursors.newId();
+        checkEquals(null, cursors.take(id, "alice"), "take unknown cursor");
+        ItemSequence seq = sequence();
+        seq.moveToNextItem();
+        cursors.park(id, seq, "alice");
+        checkEquals(1, cursors.size(), "size after park");
+        checkEquals(null, cursors.take(id, "bob"), "take by another user");
+        checkEquals(null, cursors.take(id, null), "take without user");
+        ItemSequence taken = cursors.take(id, "alice");
+        check(taken == seq, "take by owner");
+        checkEquals(1, taken.getPosition(), "position kept");
+        checkEquals(null, cursors.take(id, "alice"), "take while in use");
+        checkEquals(0, cursors.size(), "size while in use");
+
+        cursors.park(id, taken, "alice");
+        check(cursors.take(id, "alice") == seq, "take after park again");
+
+        String anon = cursors.newId();
+        cursors.park(anon, sequence(), null);
+        check(cursors.take(anon, null) != null, "anonymous cursor");
+
+        cursors.park(cursors.newId(), sequence(), "alice");
+        cursors.park(cursors.newId(), sequence(), "bob");
+        checkEquals(2, cursors.clear(), "clear");
+        checkEquals(0, cursors.size(), "size after clear");
+    }
+
+    private void perUserLimit()
+        throws Exception
+    {
+        ResultCursors cursors = new ResultCursors(driver, 2, 60000);
+        String[] ids = new String[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = cursors.newId();
+            cursors.park(ids[i], sequence(), "alice");
+            Thread.sleep(5);    // distinct access times
+        }
+        String other = cursors.newId();
+        cursors.park(other, sequence(), "bob");
+        checkEquals(3, cursors.size(), "size with limit");
+        checkEquals(null, cursors.take(ids[0], "alice"), "oldest dropped");
+        check(cursors.take(ids[1], "alice") != null, "second kept");
+        check(cursors.take(ids[2], "alice") != null, "third kept");
+        check(cursors.take(other, "bob") != null, "other user kept");
+    }
+
+    private void expiration()
+        throws Exception
+    {
+        ResultCursors cursors = new ResultCursors(driver, 10, 50);
+        String idle = cursors.newId(), reaped = cursors.newId();
+        cursors.park(idle, sequence(), "alice");
+        cursors.park(reaped, sequence(), "alice");
+        checkEquals(0, cursors.expire(), "expire before time-out");
+        Thread.sleep(120);
+        checkEquals(null, cursors.take(idle, "alice"), "take expired");
+        checkEquals(1, cursors.size(), "expired cursor removed by take");
+        String fresh = cursors.newId();
+        cursors.park(fresh, sequence(), "alice");
+        checkEquals(1, cursors.expire(), "expire");
+        check(cursors.take(fresh, "alice") != null, "recent cursor kept");
+    }
+
+    private void concurrentTake()
+        throws Exception
+    {
+        final int rounds = 200, threads = 4;
+        final ResultCursors cursors = new ResultCursors(driver, rounds, 60000);
+        final String[] ids = new String[rounds];
+        for (int r = 0; r < rounds; r++) {
+            ids[r] = cursors.newId();
+            cursors.park(ids[r], sequence(), "alice");
+        }
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                public void run()
+                {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int r = 0; r < rounds; r++)
+                        if (cursors.take(ids[r], "alice") != null)
+                            taken.incrementAndGet();
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < threads; t++)
+            workers[t].join();
+        checkEquals(rounds, taken.get(), "each cursor taken once");
+        checkEquals(0, cursors.size(), "no cursor left");
+    }
+
+    private ItemSequence sequence()
+        throws Exception
+    {
+        return session.compileExpression("1 to 10").evaluate();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util;
+
+/**
+ * Minimal timing harness for the benchmarks of the test sources.
+ * <p>
+ * A task is run in rounds: the first rounds warm up the JIT, the best time
+ * of the following rounds is reported per operation. Benchmarks use only
+ * public methods that already existed in previous versions when they compare
+ * an implementation with its predecessor, so that the same benchmark can be
+ * run with the classes of the previous version first in the classpath
+ * (for example lib/qizx.jar of a release).
+ */
+public class MicroBench
+{
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    // results are accumulated so that the JIT cannot drop the work
+    private static volatile long sink;
+
+    public interface Task
+    {
+        /**
+         * Performs one round of operations.
+         * @return any value depending on the work done
+         */
+        long run()
+            throws Exception;
+    }
+
+    /**
+     * Measures a task and prints the best time per operation.
+     * @param label name of the measurement
+     * @param ops number of operations performed by one round
+     * @return best time per operation in nanoseconds
+     */
+    public static double measure(String label, long ops, Task task)
+        throws Exception
+    {
+        for (int r = 0; r < WARMUP_ROUNDS; r++)
+            sink += task.run();
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long t0 = System.nanoTime();
+            sink += task.run();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        double perOp = best / (double) ops;
+        System.out.println(String.format("%-40s %12.2f ns/op %12.1f Mop/s",
+                                         label, perOp, 1000 / perOp));
+        return perOp;
+    }
+}
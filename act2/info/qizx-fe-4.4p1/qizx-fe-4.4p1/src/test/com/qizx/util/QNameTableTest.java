@@ -0,0 +1,139 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util;
+
+import com.qizx.xdm.IQName;
+
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks QNameTable in sequential use, then with threads entering and
+ * looking up overlapping names while the table grows: each name must get a
+ * single code, the same in all threads, and lookups without lock must never
+ * return a wrong or unpublished code.
+ */
+public class QNameTableTest extends SelfTest
+{
+    private static final int THREADS = 8;
+    private static final int NAMES = 20000;
+
+    public static void main(String[] args)
+    {
+        execute(new QNameTableTest());
+    }
+
+    protected void run()
+        throws Exception
+    {
+        sequential();
+        for (int round = 0; round < 5; round++)
+            concurrent(round);
+    }
+
+    private void sequential()
+    {
+        QNameTable table = new QNameTable();
+        checkEquals(-1, table.find("", "a"), "find in empty table");
+        checkEquals(null, table.getName(0), "getName in empty table");
+        checkEquals(0, table.enter("", "a"), "first code");
+        checkEquals(1, table.enter("urn:x", "a"), "same local name, other uri");
+        checkEquals(0, table.enter("", "a"), "enter again");
+        checkEquals(1, table.find(IQName.get("urn:x", "a")), "find QName");
+        checkEquals(2, table.enter(IQName.get("urn:x", "b")), "enter QName");
+        checkEquals(IQName.get("urn:x", "b"), table.getName(2), "getName");
+        checkEquals(null, table.getName(3), "getName beyond size");
+        checkEquals(3, table.size(), "size");
+        checkEquals(2, table.getNamespaces().length, "namespaces");
+
+        // loading: a duplicate gets a new code and replaces the former one
+        checkEquals(3, table.addName("", "a"), "addName duplicate");
+        checkEquals(3, table.find("", "a"), "find after addName");
+
+        for (int i = 0; i < 1000; i++)
+            table.enter("urn:" + (i % 7), "n" + i);
+        int errors = 0;
+        for (int i = 0; i < 1000; i++) {
+            int code = table.find("urn:" + (i % 7), "n" + i);
+            if (!IQName.get("urn:" + (i % 7), "n" + i).equals(table.getName(code)))
+                ++errors;
+        }
+        checkEquals(0, errors, "find after growth");
+
+        table.clear();
+        checkEquals(0, table.size(), "size after clear");
+        checkEquals(-1, table.find("", "n1"), "find after clear");
+        checkEquals(0, table.enter("", "n1"), "enter after clear");
+    }
+
+    private void concurrent(int round)
+        throws Exception
+    {
+        final QNameTable table = new QNameTable();
+        final int[][] codes = new int[THREADS][NAMES];
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run()
+                {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    // each thread starts at a different place
+                    for (int n = 0; n < NAMES; n++) {
+                        int i = (n + thread * NAMES / THREADS) % NAMES;
+                        String uri = "urn:" + (i % 13), local = "n" + i;
+                        int code = table.enter(uri, local);
+                        codes[thread][i] = code;
+                        IQName name = table.getName(code);
+                        if (name == null || !name.getLocalPart().equals(local)
+                            || !name.getNamespaceURI().equals(uri))
+                            errors.incrementAndGet();
+                        // lookup of a name probably entered by another thread
+                        int j = (i + NAMES / 2) % NAMES;
+                        int other = table.find("urn:" + (j % 13), "n" + j);
+                        if (other >= 0) {
+                            name = table.getName(other);
+                            if (name == null
+                                || !name.getLocalPart().equals("n" + j))
+                                errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < THREADS; t++)
+            threads[t].join();
+
+        String label = "round " + round;
+        checkEquals(0, errors.get(), label + ": lookups during insertions");
+        checkEquals(NAMES, table.size(), label + ": size");
+        int disagreements = 0;
+        HashSet<Integer> distinct = new HashSet<Integer>();
+        for (int i = 0; i < NAMES; i++) {
+            distinct.add(codes[0][i]);
+            for (int t = 1; t < THREADS; t++)
+                if (codes[t][i] != codes[0][i])
+                    ++disagreements;
+            if (table.find("urn:" + (i % 13), "n" + i) != codes[0][i])
+                ++disagreements;
+        }
+        checkEquals(0, disagreements, label + ": same code in all threads");
+        checkEquals(NAMES, distinct.size(), label + ": distinct codes");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util;
+
+/**
+ * Base of the regression tests of the test sources: a test is a program
+ * whose main() calls {@link #execute}, which runs the checks and exits with
+ * status 1 if one of them failed.
+ * <p>
+ * Tests depend only on the engine and server classes and the libraries of
+ * the distribution (lib and server/standalone/lib).
+ */
+public abstract class SelfTest
+{
+    private int checkCount;
+    private int failureCount;
+
+    /**
+     * Performs the checks of the test.
+     */
+    protected abstract void run()
+        throws Exception;
+
+    protected void check(boolean condition, String what)
+    {
+        ++ checkCount;
+        if (!condition) {
+            ++ failureCount;
+            System.err.println("FAILED: " + what);
+        }
+    }
+
+    protected void checkEquals(Object expected, Object actual, String what)
+    {
+        boolean same = (expected == null) ? actual == null
+                                          : expected.equals(actual);
+        check(same, what + ": expected <" + expected
+                    + "> but was <" + actual + ">");
+    }
+
+    protected void checkEquals(long expected, long actual, String what)
+    {
+        check(expected == actual, what + ": expected <" + expected
+                                  + "> but was <" + actual + ">");
+    }
+
+    /**
+     * Checks that a task throws an exception of a given class.
+     */
+    protected void checkThrows(Class<? extends Throwable> expected,
+                               String what, Task task)
+    {
+        try {
+            task.run();
+            check(false, what + ": no " + expected.getSimpleName());
+        }
+        catch (Throwable e) {
+            check(expected.isInstance(e), what + ": expected "
+                  + expected.getSimpleName() + " but was " + e);
+        }
+    }
+
+    public interface Task
+    {
+        void run()
+            throws Exception;
+    }
+
+    /**
+     * Runs a test, prints a summary and exits with status 1 on failure.
+     */
+    protected static void execute(SelfTest test)
+    {
+        String name = test.getClass().getSimpleName();
+        try {
+            test.run();
+        }
+        catch (Throwable e) {
+            ++ test.failureCount;
+            System.err.println("FAILED: " + name + " aborted");
+            e.printStackTrace();
+        }
+        System.out.println(name + ": " + test.checkCount + " checks, "
+                           + test.failureCount + " failures");
+        System.exit(test.failureCount > 0 ? 1 : 0);
+    }
+}
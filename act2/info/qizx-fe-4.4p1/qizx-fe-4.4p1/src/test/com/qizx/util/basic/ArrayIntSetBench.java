@@ -0,0 +1,93 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.MicroBench;
+
+import java.util.Random;
+
+/**
+ * Microbenchmark of the bitset operations of ArrayIntSet.
+ * <p>
+ * Uses only methods that existed with 32-bit words, so that it can be run
+ * with the previous classes first in the classpath for comparison.
+ * Arguments: [universe size] [density in percent].
+ */
+public class ArrayIntSetBench
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        final int universe = (args.length > 0)? Integer.parseInt(args[0]) : 1 << 22;
+        int density = (args.length > 1)? Integer.parseInt(args[1]) : 10;
+
+        Random random = new Random(1);
+        final ArrayIntSet set = new ArrayIntSet();
+        for (int i = 0; i < universe; i++)
+            if (random.nextInt(100) < density)
+                set.add(i);
+        final int card = set.size();
+        final int[] probes = new int[1 << 16];
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = random.nextInt(universe);
+
+        System.out.println("universe " + universe + ", " + card + " elements");
+        MicroBench.measure("size", universe, new MicroBench.Task() {
+            public long run() {
+                return set.size();
+            }
+        });
+        // few probes: rank was linear in the size of the set with 32-bit words
+        final int rankProbes = 1 << 10;
+        MicroBench.measure("rank", rankProbes, new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                for (int i = 0; i < rankProbes; i++)
+                    r += set.rank(probes[i]);
+                return r;
+            }
+        });
+        MicroBench.measure("test", probes.length, new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                for (int i = 0; i < probes.length; i++)
+                    if (set.test(probes[i]))
+                        ++r;
+                return r;
+            }
+        });
+        MicroBench.measure("getNext iteration", card, new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                for (int id = set.getNext(0); id >= 0; id = set.getNext(id + 1))
+                    r += id;
+                return r;
+            }
+        });
+        MicroBench.measure("getNextNotIn iteration", universe - card,
+                           new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                int bound = set.getUpperBound();
+                for (int id = set.getNextNotIn(0); id >= 0 && id < bound;
+                     id = set.getNextNotIn(id + 1))
+                    r += id;
+                return r;
+            }
+        });
+        MicroBench.measure("add", (universe + 2) / 3, new MicroBench.Task() {
+            public long run() {
+                ArrayIntSet s = new ArrayIntSet();
+                for (int i = 0; i < universe; i += 3)
+                    s.add(i);
+                return s.getUpperBound();
+            }
+        });
+    }
+}
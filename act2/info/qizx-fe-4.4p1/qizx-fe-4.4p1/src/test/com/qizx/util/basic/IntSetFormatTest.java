@@ -0,0 +1,97 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.SelfTest;
+import com.qizx.util.io.CoreByteOutput;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Round trip of the serialized forms decoded by IntSet.decode: a bitmap
+ * (ArrayIntSet, header 0xa1) and a container set (ContainerIntSet, header
+ * 0xa3) must be decoded as the same class with the same elements.
+ */
+public class IntSetFormatTest extends SelfTest
+{
+    public static void main(String[] args)
+    {
+        execute(new IntSetFormatTest());
+    }
+
+    protected void run()
+        throws Exception
+    {
+        Random random = new Random(11);
+        int[][] shapes = {
+            {},                                     // empty
+            { 0 },
+            { 0, 1, 2, 3, 63, 64, 65 },             // word boundaries
+            { 1000000, 1000001 },                   // high values only
+            { Integer.MAX_VALUE / 4 },
+        };
+        for (int c = 0; c < shapes.length; c++) {
+            roundTrip("shape " + c, new ArrayIntSet(), shapes[c]);
+            roundTrip("shape " + c, new ContainerIntSet(), shapes[c]);
+        }
+        // dense, sparse and mixed: several containers of different kinds
+        int[] densities = { 100, 90, 50, 3, 1 };
+        for (int c = 0; c < densities.length; c++) {
+            int[] items = randomItems(random, 300000, densities[c]);
+            roundTrip("density " + densities[c], new ArrayIntSet(), items);
+            roundTrip("density " + densities[c], new ContainerIntSet(), items);
+        }
+        checkEquals(null, IntSet.decode(new byte[] { 0x12, 0 }),
+                    "unknown header");
+    }
+
+    private void roundTrip(String label, IntSet set, int[] items)
+        throws IOException
+    {
+        label = set.getClass().getSimpleName() + " " + label;
+        for (int i = 0; i < items.length; i++)
+            set.add(items[i]);
+
+        CoreByteOutput out = new CoreByteOutput();
+        set.serialize(out);
+        byte[] bytes = out.getBytes();
+        int header = (set instanceof ContainerIntSet) ? ContainerIntSet.HEADER
+                                                      : ArrayIntSet.HEADER;
+        checkEquals(header, bytes[0] & 0xff, label + ": header");
+
+        IntSet decoded = IntSet.decode(bytes);
+        check(decoded != null && decoded.getClass() == set.getClass(),
+              label + ": decoded class " + decoded);
+        if (decoded == null)
+            return;
+        checkEquals(set.size(), decoded.size(), label + ": size");
+        int i = -1, j = -1, mismatches = 0;
+        do {
+            i = set.getNext(i + 1);
+            j = decoded.getNext(j + 1);
+            if (i != j)
+                ++mismatches;
+        }
+        while (i >= 0 && j >= 0);
+        checkEquals(0, mismatches, label + ": elements");
+    }
+
+    private static int[] randomItems(Random random, int universe, int density)
+    {
+        int[] items = new int[universe];
+        int count = 0;
+        for (int i = 0; i < universe; i++)
+            if (random.nextInt(100) < density)
+                items[count++] = i;
+        int[] result = new int[count];
+        System.arraycopy(items, 0, result, 0, count);
+        return result;
+    }
+}
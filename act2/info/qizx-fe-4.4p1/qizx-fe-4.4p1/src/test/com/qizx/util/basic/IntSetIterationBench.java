@@ -0,0 +1,89 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.MicroBench;
+
+import java.util.Random;
+
+/**
+ * Iteration throughput over large sets: getNext, forEach and nextBatch.
+ * Arguments: [element count] [density in percent].
+ */
+public class IntSetIterationBench
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        int elements = (args.length > 0)? Integer.parseInt(args[0]) : 10000000;
+        int density = (args.length > 1)? Integer.parseInt(args[1]) : 50;
+
+        Random random = new Random(1);
+        ArrayIntSet bits = new ArrayIntSet();
+        for (int i = 0, count = 0; count < elements; i++)
+            if (random.nextInt(100) < density) {
+                bits.add(i);
+                ++count;
+            }
+        ArrayIntSet bits2 = new ArrayIntSet();
+        for (int i = 0; i < bits.getUpperBound(); i++)
+            if (random.nextInt(100) < 90)
+                bits2.add(i);
+        ContainerIntSet containers = new ContainerIntSet();
+        containers.add(bits);
+        PagedIntSet pages = new PagedIntSet();
+        pages.add(bits);
+
+        run("ArrayIntSet", bits);
+        run("ContainerIntSet", containers);
+        run("PagedIntSet", pages);
+        run("Intersection bitmap/bitmap", new IntersectionIntSet(bits, bits2));
+        run("Intersection container/bitmap",
+            new IntersectionIntSet(containers, bits2));
+    }
+
+    private static void run(String label, final IntSet set)
+        throws Exception
+    {
+        final int size = set.size();
+        System.out.println(label + ", " + size + " elements");
+        MicroBench.measure("  getNext", size, new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                for (int i = -1; (i = set.getNext(i + 1)) >= 0;)
+                    r += i;
+                return r;
+            }
+        });
+        final long[] sum = new long[1];
+        MicroBench.measure("  forEach", size, new MicroBench.Task() {
+            public long run() {
+                sum[0] = 0;
+                set.forEach(new IntSet.IntConsumer() {
+                    public void accept(int value) {
+                        sum[0] += value;
+                    }
+                });
+                return sum[0];
+            }
+        });
+        final int[] batch = new int[1024];
+        MicroBench.measure("  nextBatch", size, new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                for (int from = 0, n; (n = set.nextBatch(from, batch)) > 0;) {
+                    for (int k = 0; k < n; k++)
+                        r += batch[k];
+                    from = batch[n - 1] + 1;
+                }
+                return r;
+            }
+        });
+    }
+}
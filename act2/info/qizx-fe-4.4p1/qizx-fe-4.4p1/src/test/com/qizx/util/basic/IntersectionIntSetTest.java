@@ -0,0 +1,100 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.SelfTest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks batch iteration of IntersectionIntSet, by several threads at the
+ * same time on the same set, and forEach.
+ */
+public class IntersectionIntSetTest extends SelfTest
+{
+    private static final int THREADS = 4;
+
+    public static void main(String[] args)
+    {
+        execute(new IntersectionIntSetTest());
+    }
+
+    protected void run()
+        throws Exception
+    {
+        Random random = new Random(3);
+        ArrayIntSet bits1 = MultiIntersectionIntSetTest.randomSet(random, 500000, 40);
+        ArrayIntSet bits2 = MultiIntersectionIntSetTest.randomSet(random, 500000, 60);
+        ContainerIntSet containers = new ContainerIntSet();
+        containers.add(bits1);
+
+        checkBatches("bitmap/bitmap", new IntersectionIntSet(bits1, bits2));
+        checkBatches("container/bitmap",
+                     new IntersectionIntSet(containers, bits2));
+    }
+
+    private void checkBatches(String label, final IntSet set)
+        throws Exception
+    {
+        final int[] expected = collect(set, 0);
+        checkEquals(set.size(), expected.length, label + " size");
+        final int[] each = new int[expected.length + 1];
+        final int[] count = new int[1];
+        set.forEach(new IntSet.IntConsumer() {
+            public void accept(int value) {
+                if (count[0] < each.length)
+                    each[count[0]++] = value;
+            }
+        });
+        check(Arrays.equals(expected, Arrays.copyOf(each, count[0])),
+              label + " forEach");
+        final int[][] results = new int[THREADS][];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    // different batch sizes to interleave differently
+                    for (int round = 0; round < 20; round++)
+                        results[thread] = collect(set, 1 + 97 * thread);
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < THREADS; t++) {
+            threads[t].join();
+            check(Arrays.equals(expected, results[t]),
+                  label + " concurrent batches of thread " + t);
+        }
+    }
+
+    private static int[] collect(IntSet set, int batchSize)
+    {
+        int[] items = new int[16];
+        int size = 0;
+        if (batchSize == 0) {   // reference: getNext
+            for (int i = -1; (i = set.getNext(i + 1)) >= 0;) {
+                if (size == items.length)
+                    items = Arrays.copyOf(items, 2 * size);
+                items[size++] = i;
+            }
+            return Arrays.copyOf(items, size);
+        }
+        int[] batch = new int[batchSize + 3];
+        for (int from = 0, n; (n = set.nextBatch(from, batch, 3, batchSize)) > 0;) {
+            if (size + n > items.length)
+                items = Arrays.copyOf(items, 2 * (size + n));
+            System.arraycopy(batch, 3, items, size, n);
+            size += n;
+            from = batch[3 + n - 1] + 1;
+        }
+        return Arrays.copyOf(items, size);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.MicroBench;
+
+import java.util.Random;
+
+/**
+ * Intersection of many operands of different densities: element-wise
+ * leapfrog (getNext) compared with the block-wise galloping of forEach.
+ * Arguments: [universe size] [operand count] [array|container].
+ */
+public class MultiIntersectionBench
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        int universe = (args.length > 0)? Integer.parseInt(args[0]) : 10000000;
+        int operands = (args.length > 1)? Integer.parseInt(args[1]) : 10;
+        boolean containers = args.length > 2 && "container".equals(args[2]);
+
+        Random random = new Random(1);
+        IntSet[] sets = new IntSet[operands];
+        for (int s = 0; s < operands; s++)  // from 1% to 90%
+        {
+            sets[s] = MultiIntersectionIntSetTest.randomSet(random, universe,
+                                         1 + 89 * s / Math.max(1, operands - 1));
+            if (containers) {
+                ContainerIntSet set = new ContainerIntSet();
+                set.add(sets[s]);
+                sets[s] = set;
+            }
+        }
+        final IntSet inter = MultiIntersectionIntSet.make(sets);
+        int size = inter.size();
+        System.out.println(operands + (containers? " container" : " array")
+                           + " operands, universe " + universe
+                           + ", " + size + " elements");
+        final long[] sum = new long[1];
+        MicroBench.measure("getNext", size, new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                for (int i = -1; (i = inter.getNext(i + 1)) >= 0;)
+                    r += i;
+                return r;
+            }
+        });
+        MicroBench.measure("forEach", size, new MicroBench.Task() {
+            public long run() {
+                sum[0] = 0;
+                inter.forEach(new IntSet.IntConsumer() {
+                    public void accept(int value) {
+                        sum[0] += value;
+                    }
+                });
+                return sum[0];
+            }
+        });
+        final int[] batch = new int[1024];
+        MicroBench.measure("nextBatch", size, new MicroBench.Task() {
+            public long run() {
+                long r = 0;
+                for (int from = 0, n; (n = inter.nextBatch(from, batch)) > 0;) {
+                    for (int k = 0; k < n; k++)
+                        r += batch[k];
+                    from = batch[n - 1] + 1;
+                }
+                return r;
+            }
+        });
+    }
+}
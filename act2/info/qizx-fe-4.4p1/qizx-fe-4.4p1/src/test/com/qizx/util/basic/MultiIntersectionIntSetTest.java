@@ -0,0 +1,93 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.basic;
+
+import com.qizx.util.SelfTest;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks the iterations of MultiIntersectionIntSet against an intersection
+ * computed by member tests, on operands of very different densities.
+ * Bitmaps and containers are mixed: containers are read by blocks.
+ */
+public class MultiIntersectionIntSetTest extends SelfTest
+{
+    public static void main(String[] args)
+    {
+        execute(new MultiIntersectionIntSetTest());
+    }
+
+    protected void run()
+    {
+        Random random = new Random(7);
+        int[][] densities = { { 50, 50 }, { 1, 90, 50 }, { 90, 2, 30, 60 },
+                              { 100, 100, 100 }, { 0, 50 }, { 5, 5, 5, 5, 5 } };
+        for (int c = 0; c < 4 * densities.length; c++) {
+            int universe = 1000 + random.nextInt(100000);
+            int[] density = densities[c % densities.length];
+            IntSet[] sets = new IntSet[density.length];
+            for (int s = 0; s < sets.length; s++) {
+                sets[s] = randomSet(random, universe, density[s]);
+                if (random.nextBoolean()) {
+                    ContainerIntSet set = new ContainerIntSet();
+                    set.add(sets[s]);
+                    sets[s] = set;
+                }
+            }
+            checkIntersection("case " + c, sets, universe);
+        }
+    }
+
+    private void checkIntersection(String label, IntSet[] sets, int universe)
+    {
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < universe; i++) {
+            boolean all = true;
+            for (int s = 0; s < sets.length && all; s++)
+                all = sets[s].test(i);
+            if (all)
+                expected.add(i);
+        }
+        IntSet inter = MultiIntersectionIntSet.make(sets);
+
+        ArrayList<Integer> next = new ArrayList<Integer>();
+        for (int i = -1; (i = inter.getNext(i + 1)) >= 0;)
+            next.add(i);
+        checkEquals(expected, next, label + " getNext");
+
+        final ArrayList<Integer> each = new ArrayList<Integer>();
+        inter.forEach(new IntSet.IntConsumer() {
+            public void accept(int value) {
+                each.add(value);
+            }
+        });
+        checkEquals(expected, each, label + " forEach");
+
+        // small batches: iteration resumes in the middle of blocks
+        ArrayList<Integer> batches = new ArrayList<Integer>();
+        int[] out = new int[7];
+        for (int from = 0, n; (n = inter.nextBatch(from, out)) > 0;) {
+            for (int k = 0; k < n; k++)
+                batches.add(out[k]);
+            from = out[n - 1] + 1;
+        }
+        checkEquals(expected, batches, label + " nextBatch");
+    }
+
+    static ArrayIntSet randomSet(Random random, int universe, int density)
+    {
+        ArrayIntSet set = new ArrayIntSet();
+        for (int i = 0; i < universe; i++)
+            if (random.nextInt(100) < density)
+                set.add(i);
+        return set;
+    }
+}
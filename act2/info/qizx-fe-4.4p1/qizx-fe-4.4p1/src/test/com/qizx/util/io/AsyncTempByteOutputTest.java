@@ -0,0 +1,73 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.io;
+
+import com.qizx.util.SelfTest;
+
+import java.io.File;
+
+/**
+ * Round trips through AsyncTempByteOutput in memory and spilled to a file,
+ * and cleanup while background writes are still queued.
+ */
+public class AsyncTempByteOutputTest extends SelfTest
+{
+    private static final int COUNT = 500000;
+
+    public static void main(String[] args)
+    {
+        execute(new AsyncTempByteOutputTest());
+    }
+
+    protected void run()
+        throws Exception
+    {
+        roundTrip("in memory", Long.MAX_VALUE, false);
+        roundTrip("spilled", 10000, true);
+        roundTrip("spilled at once", 0, true);
+
+        // many outputs discarded without close: queued writes are skipped
+        for (int i = 0; i < 20; i++) {
+            AsyncTempByteOutput out = new AsyncTempByteOutput(4096, null, 0);
+            fill(out);
+            File file = out.getFile();
+            out.cleanup();
+            check(file != null && !file.exists(), "temp file deleted " + i);
+        }
+        // the pool of buffers is still usable:
+        roundTrip("after cleanups", 0, true);
+    }
+
+    private void roundTrip(String label, long threshold, boolean spilled)
+        throws Exception
+    {
+        AsyncTempByteOutput out = new AsyncTempByteOutput(4096, null, threshold);
+        fill(out);
+        out.close();
+        check((out.getFile() != null) == spilled, label + ": spilled");
+        TempByteInput in = new TempByteInput(out);
+        boolean same = true;
+        for (int i = 0; i < COUNT && same; i++)
+            same = in.getVint() == i * 7 && in.getByte() == (i & 0x7f);
+        check(same, label + ": data read back");
+        File file = out.getFile();
+        in.close();
+        out.cleanup();
+        check(file == null || !file.exists(), label + ": temp file deleted");
+    }
+
+    private static void fill(ByteOutputBase out)
+        throws Exception
+    {
+        for (int i = 0; i < COUNT; i++) {
+            out.putVint(i * 7);
+            out.putByte((byte) (i & 0x7f));
+        }
+    }
+}
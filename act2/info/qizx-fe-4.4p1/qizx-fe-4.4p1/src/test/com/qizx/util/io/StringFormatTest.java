@@ -0,0 +1,112 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.io;
+
+import com.qizx.util.SelfTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Round trip of the string forms (16-bit or 8-bit chars, and STRING_UTF8
+ * when setUTF8Strings is enabled) through every reader: getString, getText
+ * and getChars must return the original string whichever form was written.
+ * The stream reader is given strings longer than its buffer.
+ */
+public class StringFormatTest extends SelfTest
+{
+    private String[] strings;
+
+    public static void main(String[] args)
+    {
+        execute(new StringFormatTest());
+    }
+
+    protected void run()
+        throws Exception
+    {
+        StringBuilder longAscii = new StringBuilder();
+        StringBuilder longMixed = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            longAscii.append((char) ('a' + i % 26));
+            longMixed.append("x\u00e9\u4e2d\ud83d\ude00".charAt(i % 5));
+        }
+        strings = new String[] {
+            "", "a", "plain ASCII text", "caf\u00e9 \u00e0 la cr\u00e8me",
+            "\u4e2d\u6587\u5b57\u7b26", "emoji \ud83d\ude00 pair",
+            "\u0000 nul and \u007f del", "\uffff",
+            longAscii.toString(), longMixed.toString(), ""
+        };
+
+        for (int utf8 = 0; utf8 < 2; utf8++) {
+            String form = (utf8 == 1) ? "UTF-8" : "default";
+
+            CoreByteOutput core = new CoreByteOutput();
+            core.setUTF8Strings(utf8 == 1);
+            write(core);
+            byte[] bytes = core.getBytes();
+            read(form + " core", new CoreByteInput(bytes, bytes.length));
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            ByteOutputStream sout = new ByteOutputStream(stream);
+            sout.setUTF8Strings(utf8 == 1);
+            write(sout);
+            sout.flush();
+            byte[] sbytes = stream.toByteArray();
+            check(Arrays.equals(bytes, sbytes),
+                  form + ": stream and core outputs identical");
+            read(form + " stream",
+                 new ByteInputStream(new ByteArrayInputStream(sbytes)));
+
+            ByteBufferOutput bout = new ByteBufferOutput(1 << 16);
+            bout.setUTF8Strings(utf8 == 1);
+            write(bout);
+            ByteBuffer buffer = bout.getBuffer();
+            byte[] bbytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bbytes);
+            check(Arrays.equals(bytes, bbytes),
+                  form + ": buffer and core outputs identical");
+            read(form + " buffer", new ByteBufferInput(buffer));
+        }
+    }
+
+    // each string three times, for getString, getText (or getString
+    // again if not available) and getChars,
+    // followed by a marker that detects a loss of sync
+    private void write(ByteOutput out)
+        throws Exception
+    {
+        for (int s = 0; s < strings.length; s++)
+            for (int r = 0; r < 3; r++) {
+                out.putString(strings[s]);
+                out.putVint(s);
+            }
+    }
+
+    private void read(String label, ByteInput in)
+        throws Exception
+    {
+        for (int s = 0; s < strings.length; s++) {
+            String what = label + " string " + s;
+            checkEquals(strings[s], in.getString(), what + " getString");
+            checkEquals(s, in.getVint(), what + " sync");
+            if (in instanceof ByteInputBase)
+                checkEquals(strings[s], ((ByteInputBase) in).getText().toString(),
+                            what + " getText");
+            else
+                checkEquals(strings[s], in.getString(), what + " getString");
+            checkEquals(s, in.getVint(), what + " sync");
+            checkEquals(strings[s], new String(in.getChars()),
+                        what + " getChars");
+            checkEquals(s, in.getVint(), what + " sync");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of Qizx XQuery engine
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.util.io;
+
+import com.qizx.util.MicroBench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Decoding of Vints and Vlongs from a stream, for several distributions of
+ * values. getVint and getVlong existed in previous versions, so that the
+ * benchmark can be run with previous classes first in the classpath; the
+ * bulk decodeVints is measured only when present.
+ */
+public class VintBench
+{
+    private static final int COUNT = 1 << 20;
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        Random random = new Random(17);
+        long[] gaps = new long[COUNT];      // dense postings: mostly 1 byte
+        long[] offsets = new long[COUNT];   // sparse postings: 1 to 3 bytes
+        long[] mixed = new long[COUNT];     // 1 to 4 bytes, log-uniform
+        long[] longs = new long[COUNT];     // 1 to 9 bytes, log-uniform
+        for (int i = 0; i < COUNT; i++) {
+            gaps[i] = 1 + (long) (-20 * Math.log(1 - random.nextDouble()));
+            offsets[i] = (long) (-2000 * Math.log(1 - random.nextDouble()));
+            mixed[i] = random.nextInt(1 << random.nextInt(28)) + 1;
+            longs[i] = random.nextLong() >>> (1 + random.nextInt(63));
+        }
+        run("dense gaps", gaps, false);
+        run("sparse gaps", offsets, false);
+        run("ints below 2^27", mixed, false);
+        run("longs", longs, true);
+    }
+
+    private static void run(String label, long[] values, final boolean vlong)
+        throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteOutputStream out = new ByteOutputStream(bytes);
+        for (int i = 0; i < values.length; i++)
+            if (vlong)
+                out.putVlong(values[i]);
+            else
+                out.putVint((int) values[i]);
+        out.flush();
+        final byte[] data = bytes.toByteArray();
+        System.out.println(label + String.format(": %.2f bytes per value",
+                                                 data.length / (double) COUNT));
+
+        long check = 0;
+        for (int i = 0; i < values.length; i++)
+            check += values[i];
+        final long expected = check;
+        MicroBench.measure(vlong ? "  getVlong" : "  getVint", COUNT,
+                           new MicroBench.Task() {
+            public long run() throws Exception {
+                ByteInputStream in =
+                    new ByteInputStream(new ByteArrayInputStream(data));
+                long sum = 0;
+                for (int i = 0; i < COUNT; i++)
+                    sum += vlong ? in.getVlong() : in.getVint();
+                if (sum != expected)
+                    throw new IllegalStateException("bad decoding");
+                return sum;
+            }
+        });
+        if (vlong)
+            return;
+        try {
+            final int[] block = new int[128];
+            MicroBench.measure("  decodeVints", COUNT, new MicroBench.Task() {
+                public long run() throws Exception {
+                    ByteInputStream in =
+                        new ByteInputStream(new ByteArrayInputStream(data));
+                    long sum = 0;
+                    for (int i = 0; i < COUNT; i += block.length) {
+                        in.decodeVints(block, block.length);
+                        for (int k = 0; k < block.length; k++)
+                            sum += block[k];
+                    }
+                    if (sum != expected)
+                        throw new IllegalStateException("bad decoding");
+                    return sum;
+                }
+            });
+        }
+        catch (NoSuchMethodError e) {
+            // previous version
+        }
+    }
+}